@@ -7,25 +7,54 @@ import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Broker extends Node {
     private Terminal terminal;
     /**
-     * Map channel names to a list of its Subscribers.
+     * Map channel names to a list of its Subscribers. The lists are copy-on-write
+     * so publications can iterate them while another channel's requests run.
      */
-    static public Map<String, ArrayList<Pair<InetSocketAddress, Boolean>>> subscriberMap = new HashMap<String, ArrayList<Pair<InetSocketAddress, Boolean>>>();
+    static public Map<String, List<Pair<InetSocketAddress, Boolean>>> subscriberMap =
+            new ConcurrentHashMap<String, List<Pair<InetSocketAddress, Boolean>>>();
     /** Map channel numbers to channel names. */
-    static public Map<Integer, String> channelNumbers = new HashMap<Integer, String>();
+    static public Map<Integer, String> channelNumbers = new ConcurrentHashMap<Integer, String>();
+    /**
+     * Map channel names to the credit state of each flow-controlled subscriber.
+     * Subscribers without an entry receive every publication immediately.
+     */
+    static public Map<String, Map<InetSocketAddress, Credit>> creditMap =
+            new ConcurrentHashMap<String, Map<InetSocketAddress, Credit>>();
+    /**
+     * Map channel names to the next sequence number of their standard (index 0)
+     * and premium (index 1) publications.
+     */
+    static public Map<String, AtomicInteger[]> sequenceMap = new ConcurrentHashMap<String, AtomicInteger[]>();
+    /** Latest publications for new subscribers, or null if the cache is off. */
+    private LastValueCache lastValues;
 
     /*
      * Constructor of the Broker. Initialises the terminal, listener and hashmaps.
+     * If concurrent is true, every received packet is handled on its own (virtual)
+     * thread, with packets for the same channel still handled in arrival order.
+     * If cacheBytes is positive, up to that many bytes of latest publications are
+     * kept and sent to each new subscriber.
      */
-    Broker(Terminal terminal) {
+    Broker(Terminal terminal, boolean concurrent, long cacheBytes) {
         this.terminal = terminal;
         try {
+            if (concurrent) {
+                dispatcher = new OrderedDispatcher();
+            }
+            if (cacheBytes > 0) {
+                lastValues = new LastValueCache(cacheBytes);
+            }
             socket = new DatagramSocket(BKR_PORT);
             listener.go();
         } catch (java.lang.Exception e) {
@@ -35,27 +64,29 @@ public class Broker extends Node {
 
     /*
      * Mainline of the Broker. Initialises the terminal and calls the constructor
-     * and start function.
+     * and start function. Run with -Dbroker.concurrent=true to handle requests
+     * concurrently, and -Dbroker.lvc.bytes=<size> to cache latest publications.
      */
     public static void main(String[] args) {
         try {
             Terminal terminal = new Terminal("Broker");
-            (new Broker(terminal)).start();
+            (new Broker(terminal, Boolean.getBoolean("broker.concurrent"), Long.getLong("broker.lvc.bytes", 0)))
+                    .start();
         } catch (java.lang.Exception e) {
             e.printStackTrace();
         }
     }
 
     /*
-     * Creates a channel given data from a creation packet. Returns true if the
+     * Creates a channel given the header of a creation packet. Returns true if the
      * channel is created, false otherwise (if the channel already exists).
      */
-    private boolean createChannel(byte[] data) {
-        ArrayList<Pair<InetSocketAddress, Boolean>> socketNumbers = new ArrayList<Pair<InetSocketAddress, Boolean>>();
-        String channelName = getMessage(data);
-        if (!subscriberMap.containsKey(channelName)) {
-            subscriberMap.put(channelName, socketNumbers);
-            int topicNumber = getChannelNumber(data);
+    private boolean createChannel(Header header) {
+        List<Pair<InetSocketAddress, Boolean>> socketNumbers =
+                new CopyOnWriteArrayList<Pair<InetSocketAddress, Boolean>>();
+        String channelName = header.getMessage();
+        if (subscriberMap.putIfAbsent(channelName, socketNumbers) == null) {
+            int topicNumber = header.getChannel();
             channelNumbers.put(topicNumber, channelName);
             terminal.println("Created a new channel: " + channelName);
             return true;
@@ -64,31 +95,42 @@ public class Broker extends Node {
     }
 
     /*
-     * Publishes a message for a topic given data from a publication packet. Returns
-     * true if the message is published, false otherwise (the topic does not exist).
+     * Publishes a message for a topic given the header of a publication packet.
+     * Returns true if the message is published, false otherwise (the topic does
+     * not exist).
      */
-    private boolean publish(byte[] data) {
-        int channelNumber = getChannelNumber(data);
-        boolean premium = getChannelPremium(data) != 0;
-        setType(data, PUBLICATION);
+    private boolean publish(Header header) {
+        int channelNumber = header.getChannel();
+        boolean premium = header.isPremium();
         if (channelNumbers.containsKey(channelNumber)) {
             String channelName = channelNumbers.get(channelNumber);
-            ArrayList<Pair<InetSocketAddress, Boolean>> dstAddresses = subscriberMap.get(channelName);
+            header.setType(PUBLICATION);
+            header.setSequence(Integer.toUnsignedLong(nextSequence(channelName, premium)));
+            byte[] data = header.encode();
+            if (lastValues != null) {
+                header.setSnapshot(true);
+                lastValues.put(channelName, premium, header.getKey(), header.encode());
+            }
+            List<Pair<InetSocketAddress, Boolean>> dstAddresses = subscriberMap.get(channelName);
+            Map<InetSocketAddress, Credit> credits = creditMap.get(channelName);
             if (!dstAddresses.isEmpty()) {
                 if (!premium) {
                     for (int i = 0; i < dstAddresses.size(); i++) {
-                        DatagramPacket publication = new DatagramPacket(data, data.length,
-                                dstAddresses.get(i).getLeft());
-                        try {
-                            socket.send(publication);
-                            terminal.println("A new message has been published in the channel: " + channelName);
-                        } catch (IOException e) {
-                            e.printStackTrace();
+                        if (acquireCredit(credits, dstAddresses.get(i).getLeft(), data)) {
+                            DatagramPacket publication = new DatagramPacket(data, data.length,
+                                    dstAddresses.get(i).getLeft());
+                            try {
+                                socket.send(publication);
+                                terminal.println("A new message has been published in the channel: " + channelName);
+                            } catch (IOException e) {
+                                e.printStackTrace();
+                            }
                         }
                     }
                 } else {
                     for (int i = 0; i < dstAddresses.size(); i++) {
-                        if (dstAddresses.get(i).getRight()) {
+                        if (dstAddresses.get(i).getRight()
+                                && acquireCredit(credits, dstAddresses.get(i).getLeft(), data)) {
                             DatagramPacket publication = new DatagramPacket(data, data.length,
                                     dstAddresses.get(i).getLeft());
                             try {
@@ -108,15 +150,81 @@ public class Broker extends Node {
     }
 
     /*
-     * Subscribes a subscriber to a channel given data from a subscription packet
-     * and the subscriber's address. Returns true if the subscriber is successfully
-     * added to the subscription list, false otherwise (the channel does not exist).
+     * Returns the next sequence number for a channel. Premium publications are
+     * numbered separately because standard subscribers never receive them, so
+     * a single count would show them a gap for every premium message.
+     */
+    private int nextSequence(String channelName, boolean premium) {
+        AtomicInteger[] sequences = sequenceMap.computeIfAbsent(channelName,
+                k -> new AtomicInteger[] { new AtomicInteger(), new AtomicInteger() });
+        return sequences[premium ? 1 : 0].getAndIncrement();
+    }
+
+    /*
+     * Returns true if a publication may be sent to the subscriber now. A
+     * flow-controlled subscriber without credit gets the publication held back
+     * until it grants more credit.
      */
-    private boolean subscribe(byte[] data, SocketAddress subscriberAddress) {
-        String channelName = getMessage(data);
-        boolean premium = getChannelPremium(data) != 0;
+    private boolean acquireCredit(Map<InetSocketAddress, Credit> credits, InetSocketAddress subscriberAddress,
+            byte[] data) {
+        if (credits == null) {
+            return true;
+        }
+        Credit credit = credits.get(subscriberAddress);
+        return credit == null || credit.tryAcquire(data);
+    }
+
+    /*
+     * Updates the credit of a subscriber given the header of a credit packet and
+     * the subscriber's address, then sends any publications that were held back
+     * for it. The first credit packet turns on flow control for that subscriber.
+     * Returns false if the packet carries no credit totals or the address is not
+     * subscribed to the channel.
+     */
+    private boolean credit(Header header, SocketAddress subscriberAddress) {
+        byte[] totals = header.getExtension(Header.EXT_CREDIT);
+        long[] counts;
+        try {
+            counts = totals == null ? null : Header.decodeVarints(totals, 2);
+        } catch (RuntimeException e) {
+            counts = null;
+        }
+        if (counts == null) {
+            return false;
+        }
+        String channelName = header.getMessage();
+        List<Pair<InetSocketAddress, Boolean>> subscribers = subscriberMap.get(channelName);
+        if (subscribers == null) {
+            return false;
+        }
+        boolean subscribed = false;
+        for (Pair<InetSocketAddress, Boolean> subscriber : subscribers) {
+            subscribed |= subscriber.getLeft().equals(subscriberAddress);
+        }
+        if (!subscribed) {
+            return false;
+        }
+        Credit credit = creditMap.computeIfAbsent(channelName, k -> new ConcurrentHashMap<InetSocketAddress, Credit>())
+                .computeIfAbsent((InetSocketAddress) subscriberAddress, k -> new Credit());
+        for (byte[] held : credit.grant(counts[0], counts[1])) {
+            try {
+                socket.send(new DatagramPacket(held, held.length, subscriberAddress));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return true;
+    }
+
+    /*
+     * Subscribes a subscriber to a channel given its name, whether the subscriber
+     * is premium and the subscriber's address. Returns true if the subscriber is
+     * successfully added to the subscription list, false otherwise (the channel
+     * does not exist).
+     */
+    private boolean subscribe(String channelName, boolean premium, SocketAddress subscriberAddress) {
         if (subscriberMap.containsKey(channelName)) {
-            ArrayList<Pair<InetSocketAddress, Boolean>> subscribers = subscriberMap.get(channelName);
+            List<Pair<InetSocketAddress, Boolean>> subscribers = subscriberMap.get(channelName);
             subscribers.add(new Pair<InetSocketAddress, Boolean>((InetSocketAddress) subscriberAddress, premium));
             subscriberMap.put(channelName, subscribers);
             terminal.println("A new subscriber has subscribed to the channel: " + channelName);
@@ -126,20 +234,23 @@ public class Broker extends Node {
     }
 
     /*
-     * Unsubscribes a subscriber from a channel given data from an unsubscription
-     * packet and the subscriber's address. Returns true if the subscriber is
+     * Unsubscribes a subscriber from a channel given its name and the subscriber's
+     * address. Returns true if the subscriber is
      * successfully removed to the subscription list, false otherwise (the channel
      * does not exist).
      */
-    private boolean unsubscribe(byte[] data, SocketAddress subscriberAddress) {
+    private boolean unsubscribe(String channelName, SocketAddress subscriberAddress) {
         boolean unsubscribed = false;
-        String channelName = getMessage(data);
         if (subscriberMap.containsKey(channelName)) {
-            ArrayList<Pair<InetSocketAddress, Boolean>> subscribers = subscriberMap.get(channelName);
+            List<Pair<InetSocketAddress, Boolean>> subscribers = subscriberMap.get(channelName);
             if (!subscribers.isEmpty()) {
                 for (int i = 0; i < subscribers.size(); i++) {
                     if (subscribers.get(i).getLeft().equals(subscriberAddress)) {
                         subscribers.remove(i);
+                        Map<InetSocketAddress, Credit> credits = creditMap.get(channelName);
+                        if (credits != null) {
+                            credits.remove(subscriberAddress);
+                        }
                         terminal.println("A subscriber unsubscribed from " + channelName + ".");
                         unsubscribed = true;
                     }
@@ -151,16 +262,15 @@ public class Broker extends Node {
     }
 
     /*
-     * Upgrades a subscriber from a channel to a premium subscribe given data from
-     * an ungrading packet and the subscriber's address. Returns true if the
+     * Upgrades a subscriber from a channel to a premium subscribe given the
+     * channel's name and the subscriber's address. Returns true if the
      * subscriber is successfully upgraded, false otherwise (the user has not
      * subscribed to the channel).
      */
-    private boolean upgrade(byte[] data, SocketAddress subscriberAddress) {
+    private boolean upgrade(String channelName, SocketAddress subscriberAddress) {
         boolean upgraded = false;
-        String channelName = getMessage(data);
         if (subscriberMap.containsKey(channelName)) {
-            ArrayList<Pair<InetSocketAddress, Boolean>> subscribers = subscriberMap.get(channelName);
+            List<Pair<InetSocketAddress, Boolean>> subscribers = subscriberMap.get(channelName);
             if (!subscribers.isEmpty()) {
                 for (int i = 0; i < subscribers.size(); i++) {
                     if (subscribers.get(i).getLeft().equals(subscriberAddress)) {
@@ -178,16 +288,15 @@ public class Broker extends Node {
     }
 
     /*
-     * Cancels a subscriber's premium from a channel given data from an cancellation
-     * packet and the subscriber's address. Returns true if the subscriber's premium
+     * Cancels a subscriber's premium from a channel given the channel's name and
+     * the subscriber's address. Returns true if the subscriber's premium
      * is successfully cancelled, false otherwise (the channel does not exist or the
      * subscriber was not a premium subscriber).
      */
-    private boolean cancel(byte[] data, SocketAddress subscriberAddress) {
+    private boolean cancel(String channelName, SocketAddress subscriberAddress) {
         boolean cancelled = false;
-        String channelName = getMessage(data);
         if (subscriberMap.containsKey(channelName)) {
-            ArrayList<Pair<InetSocketAddress, Boolean>> subscribers = subscriberMap.get(channelName);
+            List<Pair<InetSocketAddress, Boolean>> subscribers = subscriberMap.get(channelName);
             if (!subscribers.isEmpty()) {
                 for (int i = 0; i < subscribers.size(); i++) {
                     if (subscribers.get(i).getLeft().equals(subscriberAddress)
@@ -206,12 +315,28 @@ public class Broker extends Node {
     }
 
     /*
-     * Sends a message in a Datagram Packet given the message as a String and the
-     * destination address.
+     * Sends a message in a Datagram Packet given the message as a String, the
+     * destination address and the type of the request it answers.
+     */
+    private void sendMessage(String message, SocketAddress socketAddress, int requestType) {
+        sendMessage(message, socketAddress, requestType, 0);
+    }
+
+    /*
+     * Sends a message about a particular channel, with the channel number in the
+     * channel field so clients can map the numbers on publications to names. The
+     * type of the request it answers goes in an extension, so a client with
+     * several requests outstanding can tell which one the message is for. A
+     * message that would not fit in a packet beside the extension is cut short.
      */
-    private void sendMessage(String message, SocketAddress socketAddress) {
-        InetSocketAddress inetSocketAddress = (InetSocketAddress) socketAddress;
-        DatagramPacket packet = createPackets(MESSAGE, 0, false, message, inetSocketAddress)[0];
+    private void sendMessage(String message, SocketAddress socketAddress, int requestType, int channelNumber) {
+        Header header = new Header(MESSAGE, channelNumber, false);
+        header.setExtension(Header.EXT_REPLY_TO, new byte[] { (byte) requestType });
+        byte[] messageArray = message.getBytes();
+        int room = PACKETSIZE - Header.MAX_BASE_LENGTH - header.getExtensionsLength();
+        header.setMessage(messageArray, 0, Math.min(messageArray.length, room));
+        byte[] data = header.encode();
+        DatagramPacket packet = new DatagramPacket(data, data.length, socketAddress);
         try {
             socket.send(packet);
             terminal.println("Broker sent a message: " + message);
@@ -221,6 +346,35 @@ public class Broker extends Node {
         }
     }
 
+    /*
+     * Sends a new subscriber the cached latest publications of a channel. Premium
+     * publications only go to premium subscribers.
+     */
+    private void sendSnapshot(String channelName, boolean premium, SocketAddress subscriberAddress) {
+        if (lastValues == null) {
+            return;
+        }
+        for (byte[] publication : lastValues.snapshot(channelName, premium)) {
+            try {
+                socket.send(new DatagramPacket(publication, publication.length, subscriberAddress));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /*
+     * Returns the number of a channel given its name, or 0 if it has none.
+     */
+    private int channelNumberOf(String channelName) {
+        for (Map.Entry<Integer, String> entry : channelNumbers.entrySet()) {
+            if (entry.getValue().equals(channelName)) {
+                return entry.getKey();
+            }
+        }
+        return 0;
+    }
+
     /*
      * Start function for the Broker. The Broker never initialises contact unless
      * contacted by another node first, so just waits.
@@ -232,62 +386,84 @@ public class Broker extends Node {
         }
     }
 
+    /*
+     * Requests are ordered per channel. Publications name their channel by
+     * number, every other request by name.
+     */
+    @Override
+    protected Object orderingKey(Header header) {
+        if (header.getType() == PUBLICATION) {
+            String channelName = channelNumbers.get(header.getChannel());
+            return channelName != null ? channelName : Integer.valueOf(header.getChannel());
+        }
+        return header.getMessage();
+    }
+
     /*
      * Implementation of the abstract function in Node.java to handle received
-     * Datagram Packets.
+     * Datagram Packets, given the header the listener decoded. Not synchronized:
+     * shared state lives in concurrent maps and the dispatcher keeps each
+     * channel's requests in order.
      */
-    public synchronized void onReceipt(DatagramPacket packet) {
+    public void onReceipt(DatagramPacket packet, Header header) {
         try {
-            this.notify();
-            byte[] data = packet.getData();
-            switch (getType(data)) {
+            switch (header.getType()) {
             case CREATION:
                 terminal.println("Recieved the request to create a channel");
-                if (!createChannel(data)) {
-                    sendMessage("This is already a channel", packet.getSocketAddress());
+                if (!createChannel(header)) {
+                    sendMessage("This is already a channel", packet.getSocketAddress(), CREATION);
                 } else {
-                    sendMessage("Channel creation successful", packet.getSocketAddress());
+                    sendMessage("Channel creation successful", packet.getSocketAddress(), CREATION);
                 }
                 break;
             case PUBLICATION:
                 terminal.println("Recieved the request to publish a message");
-                if (!publish(data)) {
-                    sendMessage("This channel does not exist", packet.getSocketAddress());
+                if (!publish(header)) {
+                    sendMessage("This channel does not exist", packet.getSocketAddress(), PUBLICATION);
                 } else {
-                    sendMessage("Publication successful", packet.getSocketAddress());
+                    sendMessage("Publication successful", packet.getSocketAddress(), PUBLICATION);
                 }
                 break;
             case SUBSCRIPTION:
                 terminal.println("Recieved the request to subscribe to a channel");
-                if (!subscribe(data, packet.getSocketAddress())) {
-                    sendMessage("This channel does not exist", packet.getSocketAddress());
+                String channelName = header.getMessage();
+                if (!subscribe(channelName, header.isPremium(), packet.getSocketAddress())) {
+                    sendMessage("This channel does not exist: " + channelName, packet.getSocketAddress(),
+                            SUBSCRIPTION);
                 } else {
-                    sendMessage("Subscription successful", packet.getSocketAddress());
+                    sendMessage("Subscription successful: " + channelName, packet.getSocketAddress(), SUBSCRIPTION,
+                            channelNumberOf(channelName));
+                    sendSnapshot(channelName, header.isPremium(), packet.getSocketAddress());
                 }
                 break;
             case UNSUBSCRIPTION:
                 terminal.println("Request recieved to unsubscribe from a channel");
-                if (!unsubscribe(data, packet.getSocketAddress())) {
-                    sendMessage("This channel does not exist", packet.getSocketAddress());
+                if (!unsubscribe(header.getMessage(), packet.getSocketAddress())) {
+                    sendMessage("This channel does not exist", packet.getSocketAddress(), UNSUBSCRIPTION);
                 } else {
-                    sendMessage("Unsubscription successful", packet.getSocketAddress());
+                    sendMessage("Unsubscription successful", packet.getSocketAddress(), UNSUBSCRIPTION);
                 }
                 break;
             case UPGRADING:
                 terminal.println("Request recieved to upgrade to premium user for a channel");
-                if (!upgrade(data, packet.getSocketAddress())) {
-                    sendMessage("This channel does not exist", packet.getSocketAddress());
+                if (!upgrade(header.getMessage(), packet.getSocketAddress())) {
+                    sendMessage("This channel does not exist", packet.getSocketAddress(), UPGRADING);
                 } else {
-                    sendMessage("Upgrading successful", packet.getSocketAddress());
+                    sendMessage("Upgrading successful", packet.getSocketAddress(), UPGRADING);
+                }
+                break;
+            case CREDIT:
+                if (!credit(header, packet.getSocketAddress())) {
+                    terminal.println("Ignored credit that is malformed or from a subscriber that is not subscribed");
                 }
                 break;
             case CANCELLATION:
                 terminal.println("Request recieved to cancel premium user for a channel");
-                if (!cancel(data, packet.getSocketAddress())) {
+                if (!cancel(header.getMessage(), packet.getSocketAddress())) {
                     sendMessage("This channel does not exist or the user was not a premium user",
-                            packet.getSocketAddress());
+                            packet.getSocketAddress(), CANCELLATION);
                 } else {
-                    sendMessage("Cancellation successful", packet.getSocketAddress());
+                    sendMessage("Cancellation successful", packet.getSocketAddress(), CANCELLATION);
                 }
                 break;
             }
@@ -319,3 +495,57 @@ class Pair<L, R> {
     }
 
 }
+
+/*
+ * Credit granted by a flow-controlled subscriber for one channel. Publications
+ * that arrive while it has no credit are held in a bounded backlog, oldest
+ * dropped first, and released as credit comes in.
+ *
+ * Both sides count in totals rather than deltas, so a lost or repeated credit
+ * packet does no harm. A publication counts as used once it is sent or dropped
+ * from the backlog, because either way the subscriber finds it only as a gap in
+ * the sequence numbers.
+ */
+class Credit {
+    static final int BACKLOG_LIMIT = 256;
+
+    /** Total credit the subscriber has granted. */
+    private long granted;
+    /** Publications sent to or dropped for the subscriber. */
+    private long used;
+    private final ArrayDeque<byte[]> backlog = new ArrayDeque<byte[]>();
+
+    /*
+     * Takes one credit if there is one and nothing is waiting ahead of this
+     * publication. Otherwise keeps a copy of the publication and returns false.
+     */
+    public synchronized boolean tryAcquire(byte[] data) {
+        if (used < granted && backlog.isEmpty()) {
+            used++;
+            return true;
+        }
+        if (backlog.size() == BACKLOG_LIMIT) {
+            backlog.poll();
+            used++;
+        }
+        backlog.add(data.clone());
+        return false;
+    }
+
+    /*
+     * Takes the subscriber's totals and returns the held publications that can
+     * now be sent. The subscriber's count of charged publications includes any
+     * it wrote off as lost, so it can run ahead of this one; the higher count
+     * wins.
+     */
+    public synchronized List<byte[]> grant(long total, long charged) {
+        granted = Math.max(granted, total);
+        used = Math.max(used, charged);
+        List<byte[]> released = new ArrayList<byte[]>();
+        while (used < granted && !backlog.isEmpty()) {
+            released.add(backlog.poll());
+            used++;
+        }
+        return released;
+    }
+}
@@ -0,0 +1,381 @@
+import java.util.Arrays;
+
+/**
+ * Versioned packet header for custom Publish-Subscribe protocol.
+ *
+ * Layout of version 1; byte 0 = magic (high nibble 0xA) and version (low
+ * nibble), then varints for type, channel number and flags, then the sequence
+ * number if FLAG_SEQUENCED is set, then the extensions if FLAG_EXTENSIONS is
+ * set (a varint count, then tag, length and value for each), then the message
+ * length as a varint and the message bytes.
+ *
+ * Varints are unsigned LEB128: 7 bits per byte, low bits first, high bit set on
+ * every byte but the last. Packets whose first byte has no magic nibble use the
+ * fixed layout of earlier versions; byte 0 = type, byte 1 = channel number,
+ * byte 2 = premium, remaining bytes = message (or bytes 3 to 6 = sequence
+ * number before the message for SEQUENCED_PUBLICATION).
+ */
+public class Header {
+	static final int MAGIC = 0xA0;
+	static final int MAGIC_MASK = 0xF0;
+	static final int VERSION = 1;
+
+	/** Flag bits. */
+	static final int FLAG_PREMIUM = 1;
+	static final int FLAG_SEQUENCED = 2;
+	static final int FLAG_EXTENSIONS = 4;
+	static final int FLAG_SNAPSHOT = 8;
+
+	/** Extension tags. */
+	static final int EXT_KEY = 1;
+	/** On a broker's MESSAGE, the type of the request it answers, as one byte. */
+	static final int EXT_REPLY_TO = 2;
+	/**
+	 * On a CREDIT, two varints: the total credit the subscriber has granted for
+	 * the channel, and how many publications it has seen charged against it.
+	 */
+	static final int EXT_CREDIT = 3;
+
+	/** Largest encoding of everything but extensions and the message. */
+	static final int MAX_BASE_LENGTH = 1 + 5 + 5 + 5 + 10 + 5;
+
+	/** Accept packets in the fixed layout of earlier versions. */
+	static final boolean ACCEPT_LEGACY = !"false".equals(System.getProperty("pubsub.legacy"));
+	/** Send packets in the fixed layout, for peers that only know that one. */
+	static final boolean ENCODE_LEGACY = "legacy".equals(System.getProperty("pubsub.header"));
+
+	private static final int LEGACY_OFFSET = 3;
+	private static final int LEGACY_SEQUENCED_OFFSET = 7;
+	private static final byte[] NO_BYTES = new byte[0];
+
+	private int type;
+	private int channel;
+	private int flags;
+	private long sequence;
+	private int extensionCount;
+	private int[] tags = new int[0];
+	private byte[][] values = new byte[0][];
+	private byte[] message = NO_BYTES;
+	private int messageOffset;
+	private int messageLength;
+
+	/** Read position while decoding. */
+	private int cursor;
+
+	Header(int type, int channel, boolean premium) {
+		this.type = type;
+		this.channel = channel;
+		this.flags = premium ? FLAG_PREMIUM : 0;
+	}
+
+	private Header() {
+	}
+
+	/*
+	 * Decode the header at the start of a packet. The message is not copied; it
+	 * still refers to the packet data.
+	 */
+	static Header decode(byte[] data) {
+		Header header = new Header();
+		if ((data[0] & MAGIC_MASK) != MAGIC) {
+			if (!ACCEPT_LEGACY) {
+				throw new IllegalArgumentException("Packet is not in a versioned format");
+			}
+			header.decodeLegacy(data);
+			return header;
+		}
+		if ((data[0] & 0x0F) != VERSION) {
+			throw new IllegalArgumentException("Unsupported header version " + (data[0] & 0x0F));
+		}
+		header.cursor = 1;
+		header.type = (int) header.readVarint(data);
+		header.channel = (int) header.readVarint(data);
+		header.flags = (int) header.readVarint(data);
+		if ((header.flags & FLAG_SEQUENCED) != 0) {
+			header.sequence = header.readVarint(data);
+		}
+		if ((header.flags & FLAG_EXTENSIONS) != 0) {
+			int count = (int) header.readVarint(data);
+			header.tags = new int[count];
+			header.values = new byte[count][];
+			for (int i = 0; i < count; i++) {
+				header.tags[i] = (int) header.readVarint(data);
+				int length = (int) header.readVarint(data);
+				header.values[i] = Arrays.copyOfRange(data, header.cursor, header.cursor + length);
+				header.cursor += length;
+			}
+			header.extensionCount = count;
+		}
+		header.messageLength = (int) header.readVarint(data);
+		header.message = data;
+		header.messageOffset = header.cursor;
+		if (header.messageOffset + header.messageLength > data.length) {
+			throw new IllegalArgumentException("Message runs past the end of the packet");
+		}
+		return header;
+	}
+
+	/*
+	 * Fill in the header from the fixed layout. The message runs to the first
+	 * zero byte.
+	 */
+	private void decodeLegacy(byte[] data) {
+		type = data[0];
+		channel = data[1];
+		flags = data[2] != 0 ? FLAG_PREMIUM : 0;
+		messageOffset = LEGACY_OFFSET;
+		if (type == Node.SEQUENCED_PUBLICATION) {
+			type = Node.PUBLICATION;
+			flags |= FLAG_SEQUENCED;
+			sequence = ((data[3] & 0xFFL) << 24) | ((data[4] & 0xFF) << 16) | ((data[5] & 0xFF) << 8)
+					| (data[6] & 0xFF);
+			messageOffset = LEGACY_SEQUENCED_OFFSET;
+		}
+		int end = messageOffset;
+		while (end < data.length && data[end] != 0) {
+			end++;
+		}
+		message = data;
+		messageLength = end - messageOffset;
+	}
+
+	/*
+	 * Encode the header and message into a packet sized to fit exactly, or into
+	 * the fixed layout when ENCODE_LEGACY is set. The fixed layout has no room
+	 * for extensions, so a header that carries any is always versioned rather
+	 * than silently losing them.
+	 */
+	byte[] encode() {
+		if (ENCODE_LEGACY && (flags & FLAG_EXTENSIONS) == 0) {
+			return encodeLegacy();
+		}
+		int length = 1 + varintSize(type) + varintSize(channel) + varintSize(flags) + varintSize(messageLength)
+				+ messageLength + getExtensionsLength();
+		if ((flags & FLAG_SEQUENCED) != 0) {
+			length += varintSize(sequence);
+		}
+		byte[] data = new byte[length];
+		data[0] = (byte) (MAGIC | VERSION);
+		int pos = 1;
+		pos = writeVarint(data, pos, type);
+		pos = writeVarint(data, pos, channel);
+		pos = writeVarint(data, pos, flags);
+		if ((flags & FLAG_SEQUENCED) != 0) {
+			pos = writeVarint(data, pos, sequence);
+		}
+		if ((flags & FLAG_EXTENSIONS) != 0) {
+			pos = writeVarint(data, pos, extensionCount);
+			for (int i = 0; i < extensionCount; i++) {
+				pos = writeVarint(data, pos, tags[i]);
+				pos = writeVarint(data, pos, values[i].length);
+				System.arraycopy(values[i], 0, data, pos, values[i].length);
+				pos += values[i].length;
+			}
+		}
+		pos = writeVarint(data, pos, messageLength);
+		System.arraycopy(message, messageOffset, data, pos, messageLength);
+		return data;
+	}
+
+	/*
+	 * Encode into the fixed layout, for a header without extensions.
+	 */
+	private byte[] encodeLegacy() {
+		byte[] data = new byte[Node.PACKETSIZE];
+		data[0] = (byte) type;
+		data[1] = (byte) channel;
+		data[2] = (byte) ((flags & FLAG_PREMIUM) != 0 ? 1 : 0);
+		int offset = LEGACY_OFFSET;
+		if ((flags & FLAG_SEQUENCED) != 0) {
+			data[0] = Node.SEQUENCED_PUBLICATION;
+			data[3] = (byte) (sequence >>> 24);
+			data[4] = (byte) (sequence >>> 16);
+			data[5] = (byte) (sequence >>> 8);
+			data[6] = (byte) sequence;
+			offset = LEGACY_SEQUENCED_OFFSET;
+		}
+		System.arraycopy(message, messageOffset, data, offset, Math.min(messageLength, data.length - offset));
+		return data;
+	}
+
+	public int getType() {
+		return type;
+	}
+
+	public void setType(int type) {
+		this.type = type;
+	}
+
+	public int getChannel() {
+		return channel;
+	}
+
+	public boolean isPremium() {
+		return (flags & FLAG_PREMIUM) != 0;
+	}
+
+	public boolean isSequenced() {
+		return (flags & FLAG_SEQUENCED) != 0;
+	}
+
+	public long getSequence() {
+		return sequence;
+	}
+
+	public void setSequence(long sequence) {
+		this.sequence = sequence;
+		flags |= FLAG_SEQUENCED;
+	}
+
+	/*
+	 * Return true if the publication is a cached value replayed to a new
+	 * subscriber rather than a live one.
+	 */
+	public boolean isSnapshot() {
+		return (flags & FLAG_SNAPSHOT) != 0;
+	}
+
+	public void setSnapshot(boolean snapshot) {
+		flags = snapshot ? flags | FLAG_SNAPSHOT : flags & ~FLAG_SNAPSHOT;
+	}
+
+	/*
+	 * Return the message key of a keyed publication, or the empty string.
+	 */
+	public String getKey() {
+		byte[] key = getExtension(EXT_KEY);
+		return key == null ? "" : new String(key);
+	}
+
+	/*
+	 * Return the value of an extension, or null if the header does not carry it.
+	 */
+	public byte[] getExtension(int tag) {
+		for (int i = 0; i < extensionCount; i++) {
+			if (tags[i] == tag) {
+				return values[i];
+			}
+		}
+		return null;
+	}
+
+	/*
+	 * Return the number of bytes the extensions take up when encoded, count
+	 * included, or 0 for a header without any. Added to MAX_BASE_LENGTH, this
+	 * gives the room the header leaves for the message.
+	 */
+	public int getExtensionsLength() {
+		if ((flags & FLAG_EXTENSIONS) == 0) {
+			return 0;
+		}
+		int length = varintSize(extensionCount);
+		for (int i = 0; i < extensionCount; i++) {
+			length += varintSize(tags[i]) + varintSize(values[i].length) + values[i].length;
+		}
+		return length;
+	}
+
+	/*
+	 * Add an extension, replacing any earlier value with the same tag. Extensions
+	 * with tags this version does not know are kept as they are when a decoded
+	 * header is encoded again.
+	 */
+	public void setExtension(int tag, byte[] value) {
+		for (int i = 0; i < extensionCount; i++) {
+			if (tags[i] == tag) {
+				values[i] = value;
+				return;
+			}
+		}
+		if (extensionCount == tags.length) {
+			tags = Arrays.copyOf(tags, extensionCount + 2);
+			values = Arrays.copyOf(values, extensionCount + 2);
+		}
+		tags[extensionCount] = tag;
+		values[extensionCount] = value;
+		extensionCount++;
+		flags |= FLAG_EXTENSIONS;
+	}
+
+	public String getMessage() {
+		return new String(message, messageOffset, messageLength).trim();
+	}
+
+	public void setMessage(byte[] message, int offset, int length) {
+		this.message = message;
+		this.messageOffset = offset;
+		this.messageLength = length;
+	}
+
+	/*
+	 * Encode numbers as consecutive varints, for extensions that carry numbers.
+	 */
+	static byte[] encodeVarints(long... numbers) {
+		int length = 0;
+		for (long number : numbers) {
+			length += varintSize(number);
+		}
+		byte[] data = new byte[length];
+		int pos = 0;
+		for (long number : numbers) {
+			pos = writeVarint(data, pos, number);
+		}
+		return data;
+	}
+
+	/*
+	 * Decode a given count of consecutive varints from an extension value.
+	 */
+	static long[] decodeVarints(byte[] data, int count) {
+		Header reader = new Header();
+		long[] numbers = new long[count];
+		for (int i = 0; i < count; i++) {
+			numbers[i] = reader.readVarint(data);
+		}
+		return numbers;
+	}
+
+	/*
+	 * Read a varint at the cursor and move the cursor past it. The one and two
+	 * byte cases cover every field but large sequence numbers.
+	 */
+	private long readVarint(byte[] data) {
+		int b = data[cursor++];
+		if (b >= 0) {
+			return b;
+		}
+		long value = b & 0x7F;
+		b = data[cursor++];
+		if (b >= 0) {
+			return value | (b << 7);
+		}
+		value |= (long) (b & 0x7F) << 7;
+		for (int shift = 14; shift < 64; shift += 7) {
+			b = data[cursor++];
+			value |= (long) (b & 0x7F) << shift;
+			if (b >= 0) {
+				return value;
+			}
+		}
+		throw new IllegalArgumentException("Malformed varint");
+	}
+
+	/*
+	 * Write a varint and return the position after it.
+	 */
+	private static int writeVarint(byte[] data, int pos, long value) {
+		while ((value & ~0x7FL) != 0) {
+			data[pos++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		data[pos++] = (byte) value;
+		return pos;
+	}
+
+	/*
+	 * Number of bytes in the varint encoding of a value, without branching.
+	 */
+	static int varintSize(long value) {
+		return (63 - Long.numberOfLeadingZeros(value | 1)) / 7 + 1;
+	}
+}
@@ -0,0 +1,89 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps the latest publication of each channel, or of each key within a channel
+ * for keyed publications, so a new subscriber can be sent the current state
+ * straight away. Standard and premium publications are kept apart, so a
+ * premium publication never replaces the value standard subscribers see. The
+ * total size is capped and the least recently used entries are evicted first,
+ * whichever channel they belong to.
+ */
+public class LastValueCache {
+	/** Rough per-entry cost of the maps and key strings, on top of the packet. */
+	private static final int ENTRY_OVERHEAD = 64;
+
+	private final long capacityBytes;
+	private long usedBytes;
+	/** Every entry, keyed by channel and stream key, in least recently used order. */
+	private final LinkedHashMap<String, byte[]> entries = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+	/** The stream keys cached for each channel: '1' for premium or '0', then the message key. */
+	private final Map<String, Set<String>> keysByChannel = new HashMap<String, Set<String>>();
+
+	LastValueCache(long capacityBytes) {
+		this.capacityBytes = capacityBytes;
+	}
+
+	/*
+	 * Store a publication as the latest for its channel, premium flag and key.
+	 * The key is the empty string for publications without one.
+	 */
+	public synchronized void put(String channelName, boolean premium, String key, byte[] publication) {
+		key = (premium ? '1' : '0') + key;
+		String entryKey = channelName + '\0' + key;
+		byte[] previous = entries.put(entryKey, publication);
+		if (previous != null) {
+			usedBytes -= cost(entryKey, previous);
+		} else {
+			keysByChannel.computeIfAbsent(channelName, k -> new LinkedHashSet<String>()).add(key);
+		}
+		usedBytes += cost(entryKey, publication);
+		evict();
+	}
+
+	/*
+	 * Return the cached publications of a channel, oldest key first. Premium
+	 * publications are only included for a premium subscriber.
+	 */
+	public synchronized List<byte[]> snapshot(String channelName, boolean premium) {
+		List<byte[]> publications = new ArrayList<byte[]>();
+		Set<String> keys = keysByChannel.get(channelName);
+		if (keys != null) {
+			for (String key : keys) {
+				if (premium || key.charAt(0) == '0') {
+					publications.add(entries.get(channelName + '\0' + key));
+				}
+			}
+		}
+		return publications;
+	}
+
+	/*
+	 * Drop least recently used entries until the cache is within its cap.
+	 */
+	private void evict() {
+		Iterator<Map.Entry<String, byte[]>> iterator = entries.entrySet().iterator();
+		while (usedBytes > capacityBytes && iterator.hasNext()) {
+			Map.Entry<String, byte[]> eldest = iterator.next();
+			iterator.remove();
+			usedBytes -= cost(eldest.getKey(), eldest.getValue());
+			int split = eldest.getKey().indexOf('\0');
+			String channelName = eldest.getKey().substring(0, split);
+			Set<String> keys = keysByChannel.get(channelName);
+			keys.remove(eldest.getKey().substring(split + 1));
+			if (keys.isEmpty()) {
+				keysByChannel.remove(channelName);
+			}
+		}
+	}
+
+	private static long cost(String entryKey, byte[] publication) {
+		return publication.length + 2L * entryKey.length() + ENTRY_OVERHEAD;
+	}
+}
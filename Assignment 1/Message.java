@@ -0,0 +1,40 @@
+/** A publication delivered to a SubscriberClient.
+  */
+
+public final class Message {
+    private final String channel;
+    private final String content;
+    private final boolean premium;
+
+    Message(String channel, String content, boolean premium) {
+        this.channel = channel;
+        this.content = content;
+        this.premium = premium;
+    }
+
+    /*
+     * Returns the name of the channel the message was published under.
+     */
+    public String getChannel() {
+        return channel;
+    }
+
+    /*
+     * Returns the text of the publication.
+     */
+    public String getContent() {
+        return content;
+    }
+
+    /*
+     * Returns true if the publication was for premium subscribers only.
+     */
+    public boolean isPremium() {
+        return premium;
+    }
+
+    @Override
+    public String toString() {
+        return channel + ": " + content;
+    }
+}
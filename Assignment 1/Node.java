@@ -3,6 +3,8 @@ import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
 import java.net.SocketException;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 
 public abstract class Node {
 	static final int PACKETSIZE = 1000;
@@ -21,10 +23,29 @@ public abstract class Node {
 	static final byte UPGRADING = 5;
 	static final byte CANCELLATION = 6;
 	static final byte MESSAGE = 7;
+	static final byte CREDIT = 8;
+	/** Publication with a sequence number in the fixed layout; see Header. */
+	static final byte SEQUENCED_PUBLICATION = 9;
+
+	/** Offset of the message in the fixed packet layout. */
+	static final int MESSAGE_OFFSET = 3;
+	/**
+	 * How long, in milliseconds, a missing publication may hold back the ones
+	 * after it before subscribers give up on it and report the gap.
+	 */
+	static final long GAP_TIMEOUT = Long.getLong("subscriber.gap.timeout", 500);
+	/** One thread runs the periodic tasks of every node in the JVM. */
+	static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(task -> {
+		Thread thread = new Thread(task, "Node timers");
+		thread.setDaemon(true);
+		return thread;
+	});
 
 	DatagramSocket socket;
 	Listener listener;
 	CountDownLatch latch;
+	/** Worker threads for received packets, null to handle them on the listener thread. */
+	OrderedDispatcher dispatcher;
 
 	Node() {
 		latch = new CountDownLatch(1);
@@ -34,47 +55,46 @@ public abstract class Node {
 	}
 
 	/**
-	 * Create an array of bytes for a DatagramPacket and returns it. Based on custom
-	 * packet data layout; byte 0 = type, byte 1 = channel number, byte 2 = premium,
-	 * remaining bytes = message.
+	 * Take the type of packet, channel number, premium, message and destination
+	 * address and return an array of one or more packets. The layout is set by
+	 * Header; messages too long for one packet are split across several.
 	 */
-	private byte[] createPacketData(int type, int channelNumber, boolean premium, byte[] message) {
-		byte[] data = new byte[PACKETSIZE];
-		data[0] = (byte) type;
-		data[1] = (byte) channelNumber;
-		data[2] = premium ? (byte) 1 : 0;
-		for (int i = 0; i < message.length && i < PACKETSIZE; i++) {
-			data[i + 3] = message[i];
-		}
-		return data;
+	protected DatagramPacket[] createPackets(int type, int channelNumber, boolean premium, String message,
+			InetSocketAddress dstAddress) {
+		return createPackets(type, channelNumber, premium, message, dstAddress, "");
 	}
 
 	/**
-	 * Take the type of packet, channel number, premium, message and destination
-	 * address and return an array of one or more packets. Assumes a message can be
-	 * stored in multiple packets, but the actual program will only work if the
-	 * message fits in one packet.
+	 * Create packets as above for a keyed publication. A broker with a last-value
+	 * cache keeps the latest publication per key instead of per channel. An empty
+	 * key means the message has none. Every packet carries the key, so less of the
+	 * message fits in each.
 	 */
 	protected DatagramPacket[] createPackets(int type, int channelNumber, boolean premium, String message,
-			InetSocketAddress dstAddress) {
-		int messageSize = PACKETSIZE - 3;
-		byte[] tmpArray = message.getBytes();
-		byte[] messageArray = new byte[tmpArray.length];
-		for (int i = 0; i < tmpArray.length; i++) {
-			messageArray[i] = tmpArray[i];
+			InetSocketAddress dstAddress, String key) {
+		byte[] keyBytes = key.getBytes();
+		int extensionsLength = 0;
+		if (!key.isEmpty()) {
+			Header keyed = new Header(type, channelNumber, premium);
+			keyed.setExtension(Header.EXT_KEY, keyBytes);
+			extensionsLength = keyed.getExtensionsLength();
 		}
-		int numberOfPackets = 0;
-		for (int messageLength = messageArray.length; messageLength > 0; messageLength -= messageSize) {
-			numberOfPackets++;
+		int messageSize = Header.ENCODE_LEGACY && key.isEmpty() ? PACKETSIZE - MESSAGE_OFFSET
+				: PACKETSIZE - Header.MAX_BASE_LENGTH - extensionsLength;
+		if (messageSize <= 0) {
+			throw new IllegalArgumentException("Key is too long to fit in a packet: " + key.length() + " characters");
 		}
+		byte[] messageArray = message.getBytes();
+		int numberOfPackets = Math.max(1, (messageArray.length + messageSize - 1) / messageSize);
 		DatagramPacket[] packets = new DatagramPacket[numberOfPackets];
 		int offset = 0;
 		for (int sequenceNumber = 0; sequenceNumber < numberOfPackets; sequenceNumber++) {
-			byte[] dividedMessage = new byte[messageSize];
-			for (int j = offset; j < offset + messageArray.length; j++) {
-				dividedMessage[j] = messageArray[j + offset];
+			Header header = new Header(type, channelNumber, premium);
+			header.setMessage(messageArray, offset, Math.min(messageSize, messageArray.length - offset));
+			if (!key.isEmpty()) {
+				header.setExtension(Header.EXT_KEY, keyBytes);
 			}
-			byte[] data = createPacketData(type, channelNumber, premium, dividedMessage);
+			byte[] data = header.encode();
 			DatagramPacket packet = new DatagramPacket(data, data.length, dstAddress);
 			packets[sequenceNumber] = packet;
 			offset += messageSize;
@@ -83,47 +103,20 @@ public abstract class Node {
 	}
 
 	/**
-	 * Return the type of packet.
+	 * Handle a received packet, given its header, which the listener decodes
+	 * once for the ordering key and the handler both.
 	 */
-	protected int getType(byte[] data) {
-		return data[0];
-	}
+	public abstract void onReceipt(DatagramPacket packet, Header header);
 
 	/**
-	 * Return the channel number.
+	 * Return the key that received packets must stay ordered by when a dispatcher
+	 * is in use. Packets with equal keys are handled one at a time in arrival
+	 * order. The default of null means no ordering is needed.
 	 */
-	protected int getChannelNumber(byte[] data) {
-		return data[1];
+	protected Object orderingKey(Header header) {
+		return null;
 	}
 
-	/**
-	 * Return if the user is a premium user at the channel.
-	 */
-	protected int getChannelPremium(byte[] data) {
-		return data[2];
-	}
-
-	/**
-	 * Return the actual content of the message.
-	 */
-	protected String getMessage(byte[] data) {
-		byte[] messageArray = new byte[data.length - 3];
-		for (int i = 0; i < messageArray.length && data[i + 3] != 0; i++) {
-			messageArray[i] = data[i + 3];
-		}
-		String message = new String(messageArray).trim();
-		return message;
-	}
-
-	/**
-	 * Set the type of packet.
-	 */
-	protected void setType(byte[] data, byte type) {
-		data[0] = type;
-	}
-
-	public abstract void onReceipt(DatagramPacket packet);
-
 	/**
 	 *
 	 * Listener thread
@@ -151,8 +144,19 @@ public abstract class Node {
 				while (true) {
 					DatagramPacket packet = new DatagramPacket(new byte[PACKETSIZE], PACKETSIZE);
 					socket.receive(packet);
-
-					onReceipt(packet);
+					Header header;
+					try {
+						header = Header.decode(packet.getData());
+					} catch (RuntimeException e) {
+						e.printStackTrace(); // malformed, skip it
+						continue;
+					}
+
+					if (dispatcher == null) {
+						onReceipt(packet, header);
+					} else {
+						dispatcher.execute(orderingKey(header), () -> onReceipt(packet, header));
+					}
 				}
 			} catch (Exception e) {
 				if (!(e instanceof SocketException))
@@ -0,0 +1,66 @@
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Hands received packets to a thread-per-task executor. Tasks that share a key
+ * (for example a channel name) run one after another in the order they were
+ * submitted, tasks with different keys run at the same time.
+ */
+public class OrderedDispatcher {
+	private final ExecutorService executor;
+	/** The last task submitted for each key that has work in flight. */
+	private final ConcurrentHashMap<Object, CompletableFuture<Void>> tails =
+			new ConcurrentHashMap<Object, CompletableFuture<Void>>();
+
+	OrderedDispatcher() {
+		executor = newPerTaskExecutor();
+	}
+
+	/*
+	 * Run a task after every earlier task with the same key has finished. A null
+	 * key means the task has no ordering constraint.
+	 */
+	public void execute(Object key, Runnable task) {
+		Runnable guarded = () -> {
+			try {
+				task.run();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		};
+		if (key == null) {
+			executor.execute(guarded);
+			return;
+		}
+		CompletableFuture<Void> tail = tails.compute(key, (k, previous) -> previous == null
+				? CompletableFuture.runAsync(guarded, executor)
+				: previous.thenRunAsync(guarded, executor));
+		// Forget the key once its queue drains so idle channels cost nothing.
+		tail.whenComplete((result, error) -> tails.remove(key, tail));
+	}
+
+	/*
+	 * Stop accepting tasks. Tasks already submitted still run.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	/*
+	 * Use a virtual thread per task when the runtime has them (Java 21 and later),
+	 * otherwise fall back to a cached pool of daemon threads.
+	 */
+	static ExecutorService newPerTaskExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newCachedThreadPool(r -> {
+				Thread thread = new Thread(r);
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+	}
+}
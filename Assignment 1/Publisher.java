@@ -75,6 +75,8 @@ public class Publisher extends Node {
     String premium = terminal.read("Enter yes if it is a premium subscribers only message, no if it isn't: ");
     terminal.println("Enter yes if it is a premium subscribers only message, no if it isn't: " + premium);
     boolean isPremium = premium.toLowerCase().contains("yes");
+    String key = terminal.read("Enter a key to keep only the latest message per key, or leave it empty: ");
+    terminal.println("Enter a key to keep only the latest message per key, or leave it empty: " + key);
     int channelNumber = Integer.MAX_VALUE;
     for (int i = 0; i < Broker.channelNumbers.size(); i++) {
       if ((Broker.channelNumbers.get(i)).equals(channel)) {
@@ -82,7 +84,8 @@ public class Publisher extends Node {
       }
     }
 
-    DatagramPacket[] packets = createPackets(PUBLICATION, channelNumber, isPremium, message, dstAddress);
+    DatagramPacket[] packets = createPackets(PUBLICATION, channelNumber, isPremium, message, dstAddress,
+        key.trim());
     try {
       socket.send(packets[0]);
     } catch (IOException e) {
@@ -119,10 +122,9 @@ public class Publisher extends Node {
    * no extra processing of received packets is required.
    */
   @Override
-  public synchronized void onReceipt(DatagramPacket packet) {
+  public synchronized void onReceipt(DatagramPacket packet, Header header) {
     this.notify();
-    byte[] data = packet.getData();
-    terminal.println("Got a new message from the broker: " + getMessage(data));
+    terminal.println("Got a new message from the broker: " + header.getMessage());
   }
 
 }
@@ -0,0 +1,220 @@
+import java.util.function.Consumer;
+
+/**
+ * Puts the sequenced publications of one channel stream back in order. Items
+ * that arrive early wait in a bounded reorder buffer, duplicates are dropped
+ * using a bitmap of the sequence numbers held in the buffer, and missing
+ * numbers are reported as gaps once the buffer can no longer wait for them,
+ * either because it is full or because expire finds they have held back the
+ * items behind them for too long. A number further behind the highest one seen
+ * than the buffer spans is no duplicate but the start of a new stream, as after the sender restarts
+ * its count; what is buffered from the old stream is delivered and tracking
+ * starts again from there.
+ *
+ * A tracker is not thread-safe; accept and expire must be called under one
+ * lock, or all from the listener thread.
+ */
+public class SequenceTracker<T> {
+	/** Number of sequence numbers the reorder buffer can span. A power of two. */
+	static final int WINDOW = 256;
+	private static final int MASK = WINDOW - 1;
+
+	/**
+	 * A run of sequence numbers that will never be delivered, with the
+	 * tracker's totals at the time it was reported.
+	 */
+	public static final class Gap {
+		public final long firstMissing;
+		public final long count;
+		public final long totalGaps;
+		public final long totalLost;
+
+		Gap(long firstMissing, long count, long totalGaps, long totalLost) {
+			this.firstMissing = firstMissing;
+			this.count = count;
+			this.totalGaps = totalGaps;
+			this.totalLost = totalLost;
+		}
+
+		@Override
+		public String toString() {
+			return "missed " + count + " publication(s) from sequence number " + firstMissing;
+		}
+	}
+
+	private final Consumer<T> deliver;
+	private final Consumer<Gap> gapListener;
+	private final Object[] buffer = new Object[WINDOW];
+	/** Bit i is set when buffer[i] holds an item. */
+	private final long[] present = new long[WINDOW / 64];
+	/** Next sequence number to deliver, or -1 before the first item. */
+	private long next = -1;
+	/** Highest sequence number accepted in the current stream. */
+	private long highest = -1;
+	/** True once a live item has been accepted. */
+	private boolean started;
+	/** Number of items in the buffer. */
+	private int buffered;
+	/** When the missing item at next began holding back the buffer, in nanoseconds. */
+	private long waitingSince;
+
+	private long delivered;
+	private long duplicates;
+	private long gaps;
+	private long lost;
+
+	SequenceTracker(Consumer<T> deliver, Consumer<Gap> gapListener) {
+		this.deliver = deliver;
+		this.gapListener = gapListener;
+	}
+
+	/*
+	 * Take an item and deliver everything that is now in order. The first item
+	 * seen sets where the stream starts.
+	 */
+	public void accept(long sequenceNumber, T item) {
+		if (next < 0) {
+			next = sequenceNumber;
+		}
+		started = true;
+		if (sequenceNumber < next) {
+			if (highest - sequenceNumber <= WINDOW) {
+				duplicates++;
+				return;
+			}
+			restartAt(sequenceNumber);
+		}
+		highest = Math.max(highest, sequenceNumber);
+		if (sequenceNumber - next >= WINDOW) {
+			skipTo(sequenceNumber - WINDOW + 1);
+		}
+		int slot = (int) (sequenceNumber & MASK);
+		if (isPresent(slot)) {
+			duplicates++;
+			return;
+		}
+		if (sequenceNumber == next) {
+			deliver.accept(item);
+			delivered++;
+			next++;
+			releaseInOrder();
+		} else {
+			buffer[slot] = item;
+			present[slot >>> 6] |= 1L << slot;
+			if (buffered++ == 0) {
+				waitingSince = System.nanoTime();
+			}
+		}
+	}
+
+	/*
+	 * Note that an item with this sequence number reached the consumer some other
+	 * way, such as a cached snapshot. Before live items arrive this moves the
+	 * start of the stream past it, so the first live item is not reported as
+	 * following a gap and an older one is not delivered again.
+	 */
+	public void startAfter(long sequenceNumber) {
+		if (!started && sequenceNumber + 1 > next) {
+			next = sequenceNumber + 1;
+		}
+	}
+
+	/*
+	 * Give up on the missing items at the head of the stream if they have held
+	 * back the buffered ones for at least maxWaitNanos: report them as a gap and
+	 * deliver what follows, up to the next missing item, which then has its own
+	 * time to arrive. Returns true if a gap was reported.
+	 */
+	public boolean expire(long maxWaitNanos) {
+		if (buffered == 0 || System.nanoTime() - waitingSince < maxWaitNanos) {
+			return false;
+		}
+		long target = next;
+		while (!isPresent((int) (target & MASK))) {
+			target++;
+		}
+		skipTo(target);
+		return true;
+	}
+
+	public long getDelivered() {
+		return delivered;
+	}
+
+	public long getDuplicates() {
+		return duplicates;
+	}
+
+	public long getGaps() {
+		return gaps;
+	}
+
+	public long getLost() {
+		return lost;
+	}
+
+	/*
+	 * End the current stream and start a new one at a sequence number. Items
+	 * still buffered are delivered, with the missing ones among them reported as
+	 * gaps; anything the old stream was still owed past them is not.
+	 */
+	private void restartAt(long sequenceNumber) {
+		long last = next - 1;
+		for (long s = next; s < next + WINDOW; s++) {
+			if (isPresent((int) (s & MASK))) {
+				last = s;
+			}
+		}
+		skipTo(last + 1);
+		next = sequenceNumber;
+		highest = sequenceNumber;
+	}
+
+	/*
+	 * Advance the stream to a sequence number, delivering buffered items and
+	 * reporting each run of missing ones on the way.
+	 */
+	private void skipTo(long target) {
+		while (next < target) {
+			if (isPresent((int) (next & MASK))) {
+				releaseInOrder();
+				continue;
+			}
+			long first = next;
+			while (next < target && !isPresent((int) (next & MASK))) {
+				next++;
+			}
+			gaps++;
+			lost += next - first;
+			gapListener.accept(new Gap(first, next - first, gaps, lost));
+		}
+		releaseInOrder();
+	}
+
+	/*
+	 * Deliver buffered items for as long as the next expected one is present.
+	 */
+	@SuppressWarnings("unchecked")
+	private void releaseInOrder() {
+		int slot = (int) (next & MASK);
+		if (!isPresent(slot)) {
+			return;
+		}
+		while (isPresent(slot)) {
+			T item = (T) buffer[slot];
+			buffer[slot] = null;
+			present[slot >>> 6] &= ~(1L << slot);
+			buffered--;
+			deliver.accept(item);
+			delivered++;
+			next++;
+			slot = (int) (next & MASK);
+		}
+		// A later item still waits, now behind the next missing one.
+		waitingSince = System.nanoTime();
+	}
+
+	private boolean isPresent(int slot) {
+		return (present[slot >>> 6] & (1L << slot)) != 0;
+	}
+}
@@ -6,7 +6,10 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.TimeUnit;
 
 public class Subscriber extends Node {
     /** Constant substrings to recognize user input. */
@@ -18,6 +21,11 @@ public class Subscriber extends Node {
 
     private Terminal terminal;
     private InetSocketAddress dstAddress;
+    /**
+     * Reorders the sequenced publications of each channel. Keyed by channel number
+     * times two, plus one for the premium stream.
+     */
+    private Map<Integer, SequenceTracker<String>> trackers = new HashMap<Integer, SequenceTracker<String>>();
 
     /*
      * Subscriber constructor. Initialises the terminal, datagram socket and
@@ -30,6 +38,7 @@ public class Subscriber extends Node {
             Random rand = new Random();
             socket = new DatagramSocket(SUB_PORT + rand.nextInt(1000));
             listener.go();
+            TIMER.scheduleWithFixedDelay(this::expireGaps, GAP_TIMEOUT, GAP_TIMEOUT / 4 + 1, TimeUnit.MILLISECONDS);
         } catch (java.lang.Exception e) {
         }
     }
@@ -141,19 +150,50 @@ public class Subscriber extends Node {
         }
     }
 
+    /*
+     * Returns the tracker for the standard or premium publications of a channel,
+     * creating it on first use.
+     */
+    private SequenceTracker<String> tracker(int channelNumber, boolean premium) {
+        int stream = channelNumber * 2 + (premium ? 1 : 0);
+        SequenceTracker<String> tracker = trackers.get(stream);
+        if (tracker == null) {
+            tracker = new SequenceTracker<String>(
+                    message -> terminal.println("Got a new publication from the broker: " + message),
+                    gap -> terminal.println("Channel " + channelNumber + " " + gap + " (" + gap.totalLost
+                            + " lost in total)"));
+            trackers.put(stream, tracker);
+        }
+        return tracker;
+    }
+
+    /*
+     * Run on the timer. Reports the publications that have held back a channel
+     * for longer than the gap timeout as lost, and prints the ones behind them.
+     */
+    private synchronized void expireGaps() {
+        for (SequenceTracker<String> tracker : trackers.values()) {
+            tracker.expire(TimeUnit.MILLISECONDS.toNanos(GAP_TIMEOUT));
+        }
+    }
+
     /*
      * Implementation of the abstract method in Node.java to handle incoming
      * Datagram Packets.
      */
     @Override
-    public synchronized void onReceipt(DatagramPacket packet) {
+    public synchronized void onReceipt(DatagramPacket packet, Header header) {
         try {
             this.notify();
-            byte[] data = packet.getData();
-            if (getType(data) == MESSAGE) {
-                terminal.println("Got a new message from the broker: " + getMessage(data));
-            } else if (getType(data) == PUBLICATION) {
-                terminal.println("Got a new publication from the broker: " + getMessage(data));
+            if (header.getType() == MESSAGE) {
+                terminal.println("Got a new message from the broker: " + header.getMessage());
+            } else if (header.getType() == PUBLICATION && !header.isSequenced()) {
+                terminal.println("Got a new publication from the broker: " + header.getMessage());
+            } else if (header.getType() == PUBLICATION && header.isSnapshot()) {
+                tracker(header.getChannel(), header.isPremium()).startAfter(header.getSequence());
+                terminal.println("Latest publication in the channel: " + header.getMessage());
+            } else if (header.getType() == PUBLICATION) {
+                tracker(header.getChannel(), header.isPremium()).accept(header.getSequence(), header.getMessage());
             } else {
             }
         } catch (Exception e) {
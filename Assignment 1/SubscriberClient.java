@@ -0,0 +1,482 @@
+/** Programmatic subscriber for custom Publish-Subscribe protocol. Each channel
+  * is exposed as a java.util.concurrent.Flow.Publisher, and the demand signalled
+  * with request(n) is passed on to the broker as credit.
+  */
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+public class SubscriberClient extends Node {
+    /** Most credit a channel keeps outstanding at the broker at any time. */
+    static final int CREDIT_WINDOW = 64;
+
+    /** How long a subscription request may wait for the broker's reply. */
+    static final long HANDSHAKE_TIMEOUT = Long.getLong("subscriber.handshake.timeout", 2000);
+
+    private static final String SUBSCRIBED = "Subscription successful";
+    private static final String NO_CHANNEL = "This channel does not exist";
+
+    private InetSocketAddress dstAddress;
+    /** Active subscriptions by the channel number the broker uses on publications. */
+    private final Map<Integer, ChannelSubscription> channels = new ConcurrentHashMap<Integer, ChannelSubscription>();
+    /**
+     * Subscriptions waiting for the broker's reply. Replies only say whether the
+     * request worked and for which channel, so one subscription request is
+     * outstanding at a time.
+     */
+    private final Queue<ChannelSubscription> handshakes = new ArrayDeque<ChannelSubscription>();
+    /** When the request at the head of handshakes was sent, in nanoseconds. */
+    private long handshakeSentAt;
+    /** Told the channel name of each gap found in a channel's publications. */
+    private volatile BiConsumer<String, SequenceTracker.Gap> gapListener = (channel, gap) -> {
+    };
+
+    /*
+     * Constructor of the client. Opens the datagram socket on the given port and
+     * starts the listener.
+     */
+    SubscriberClient(int port) throws SocketException {
+        dstAddress = new InetSocketAddress(DEFAULT_DST, BKR_PORT);
+        socket = new DatagramSocket(port);
+        listener.go();
+        TIMER.scheduleWithFixedDelay(this::onTimer, GAP_TIMEOUT, GAP_TIMEOUT / 4 + 1, TimeUnit.MILLISECONDS);
+    }
+
+    /*
+     * Returns a publisher for a channel. Each call to subscribe sends a
+     * subscription request to the broker; a channel can have one Flow subscriber
+     * per client at a time.
+     */
+    public Flow.Publisher<Message> channel(String channelName, boolean premium) {
+        return subscriber -> {
+            ChannelSubscription subscription = new ChannelSubscription(channelName, premium, subscriber);
+            subscriber.onSubscribe(subscription);
+            boolean first;
+            synchronized (handshakes) {
+                first = handshakes.isEmpty();
+                handshakes.add(subscription);
+                if (first) {
+                    handshakeSentAt = System.nanoTime();
+                }
+            }
+            if (first) {
+                send(createPackets(SUBSCRIPTION, 0, premium, channelName, dstAddress)[0]);
+            }
+        };
+    }
+
+    /*
+     * Sets the listener told about publications that were lost on the way from
+     * the broker. Downstream consumers can use it to reconcile only when needed.
+     */
+    public void setGapListener(BiConsumer<String, SequenceTracker.Gap> gapListener) {
+        this.gapListener = gapListener;
+    }
+
+    /*
+     * Implementation of the abstract method in Node.java. Publications are queued
+     * on their channel's subscription and delivered as far as demand allows;
+     * replies to subscription requests complete the outstanding one if they name
+     * its channel, or if they come from a broker that names none. Replies to
+     * other requests, such as an unsubscription from a channel that
+     * is gone, are ignored; only a broker sending the fixed layout leaves out
+     * which request a reply answers.
+     */
+    @Override
+    public void onReceipt(DatagramPacket packet, Header header) {
+        if (header.getType() == PUBLICATION) {
+            ChannelSubscription subscription = channels.get(header.getChannel());
+            if (subscription != null) {
+                Message message = new Message(subscription.channelName, header.getMessage(), header.isPremium());
+                if (header.isSnapshot()) {
+                    subscription.startAfter(header.isPremium(), header.getSequence());
+                    subscription.onPublication(message);
+                } else if (header.isSequenced()) {
+                    subscription.accept(header.isPremium(), header.getSequence(), message);
+                } else {
+                    subscription.onLivePublication(message);
+                }
+            }
+        } else if (header.getType() == MESSAGE) {
+            byte[] replyTo = header.getExtension(Header.EXT_REPLY_TO);
+            if (replyTo != null && (replyTo.length != 1 || replyTo[0] != SUBSCRIPTION)) {
+                return;
+            }
+            String reply = header.getMessage();
+            if (reply.startsWith(SUBSCRIBED) || reply.startsWith(NO_CHANNEL)) {
+                boolean subscribed = reply.startsWith(SUBSCRIBED);
+                String prefix = (subscribed ? SUBSCRIBED : NO_CHANNEL) + ": ";
+                String channelName = reply.startsWith(prefix) ? reply.substring(prefix.length()) : null;
+                completeHandshake(channelName, subscribed, header.getChannel(), NO_CHANNEL);
+            }
+        }
+    }
+
+    /*
+     * Run on the timer. Gives up on a subscription request the broker has not
+     * answered, and on publications that have held back a channel for longer
+     * than the gap timeout, telling the gap listener. Then lets each channel
+     * recover credit that has gone missing.
+     */
+    private void onTimer() {
+        expireHandshake();
+        for (ChannelSubscription subscription : channels.values()) {
+            subscription.expireGaps();
+            subscription.resync();
+        }
+    }
+
+    /*
+     * Fails the outstanding subscription request if the broker has not answered
+     * it in time, so the requests queued behind it are not held up. The broker
+     * may have subscribed and only the reply been lost, so the client also
+     * unsubscribes; a late reply names the channel and is then ignored.
+     */
+    private void expireHandshake() {
+        ChannelSubscription late;
+        synchronized (handshakes) {
+            late = handshakes.peek();
+            if (late == null
+                    || System.nanoTime() - handshakeSentAt < TimeUnit.MILLISECONDS.toNanos(HANDSHAKE_TIMEOUT)) {
+                return;
+            }
+        }
+        send(createPackets(UNSUBSCRIPTION, 0, false, late.channelName, dstAddress)[0]);
+        completeHandshake(late.channelName, false, 0, "No reply to the subscription request");
+    }
+
+    /*
+     * Finishes the outstanding subscription request and sends the next one, if
+     * any. A reply naming another channel answers a request that has already
+     * timed out, and is ignored; channelName is null for a broker that does not
+     * name the channel.
+     */
+    private void completeHandshake(String channelName, boolean subscribed, int channelNumber, String failure) {
+        ChannelSubscription done;
+        ChannelSubscription next;
+        synchronized (handshakes) {
+            done = handshakes.peek();
+            if (done == null || channelName != null && !channelName.equals(done.channelName)) {
+                return;
+            }
+            handshakes.poll();
+            next = handshakes.peek();
+            handshakeSentAt = System.nanoTime();
+        }
+        if (subscribed) {
+            done.activate(channelNumber);
+        } else {
+            done.fail(new IllegalStateException(failure + ": " + done.channelName));
+        }
+        if (next != null) {
+            send(createPackets(SUBSCRIPTION, 0, next.premium, next.channelName, dstAddress)[0]);
+        }
+    }
+
+    /*
+     * Sends a packet to the broker, printing any error.
+     */
+    private void send(DatagramPacket packet) {
+        try {
+            socket.send(packet);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /*
+     * Mainline of the client. Subscribes to one channel and prints each
+     * publication, asking for the next one after each is printed.
+     */
+    public static void main(String[] args) {
+        try {
+            Terminal terminal = new Terminal("Subscriber client");
+            SubscriberClient client = new SubscriberClient(SUB_PORT + new java.util.Random().nextInt(1000));
+            String channel = terminal.read("Enter the channel to subscribe to: ");
+            terminal.println("Enter the channel to subscribe to: " + channel);
+            client.channel(channel, false).subscribe(new Flow.Subscriber<Message>() {
+                private Flow.Subscription subscription;
+
+                public void onSubscribe(Flow.Subscription subscription) {
+                    this.subscription = subscription;
+                    subscription.request(1);
+                }
+
+                public void onNext(Message message) {
+                    terminal.println("Got a new publication from the broker: " + message);
+                    subscription.request(1);
+                }
+
+                public void onError(Throwable throwable) {
+                    terminal.println(throwable.getMessage());
+                }
+
+                public void onComplete() {
+                }
+            });
+        } catch (java.lang.Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Subscription to one channel. Publications wait in a lock-free queue until
+     * there is demand, and are delivered in batches by whichever thread finds
+     * work: the listener when a publication arrives, or the consumer when it
+     * calls request(n). Demand is turned into broker credit a window at a time,
+     * sent as running totals so a lost credit packet is made good by the next.
+     * Every signal to the subscriber, errors included, is sent from drain, so
+     * they never overlap.
+     */
+    class ChannelSubscription implements Flow.Subscription {
+        final String channelName;
+        final boolean premium;
+        private final Flow.Subscriber<? super Message> downstream;
+        private final Queue<Message> queue = new ConcurrentLinkedQueue<Message>();
+        private final AtomicLong requested = new AtomicLong();
+        /** Total credit granted to the broker. */
+        private final AtomicLong granted = new AtomicLong();
+        /**
+         * Publications the broker has charged credit for, as far as is known here:
+         * live ones received, and those reported missing or written off as lost.
+         */
+        private final AtomicLong charged = new AtomicLong();
+        /** When a publication last arrived, or the subscription became active. */
+        private volatile long lastArrival;
+        /** Count of drain requests; only the thread that moves it from 0 drains. */
+        private final AtomicInteger wip = new AtomicInteger();
+        /** The error to end the subscription with, delivered by drain. */
+        private volatile Throwable error;
+        /** Set by drain once onError has been delivered; only read while draining. */
+        private boolean terminated;
+        private volatile boolean active;
+        private volatile boolean cancelled;
+        /** Set by whichever of cancel and activate sends the unsubscription. */
+        private final AtomicBoolean unsubscribed = new AtomicBoolean();
+        private int channelNumber;
+        /** Standard and premium publications are numbered separately by the broker. */
+        private final SequenceTracker<Message> standard;
+        private final SequenceTracker<Message> premiumOnly;
+
+        ChannelSubscription(String channelName, boolean premium, Flow.Subscriber<? super Message> downstream) {
+            this.channelName = channelName;
+            this.premium = premium;
+            this.downstream = downstream;
+            standard = new SequenceTracker<Message>(this::onLivePublication, this::onGap);
+            premiumOnly = new SequenceTracker<Message>(this::onLivePublication, this::onGap);
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                fail(new IllegalArgumentException("request must be positive, was " + n));
+                return;
+            }
+            long current;
+            do {
+                current = requested.get();
+                if (current == Long.MAX_VALUE) {
+                    return;
+                }
+            } while (!requested.compareAndSet(current, current + n < 0 ? Long.MAX_VALUE : current + n));
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            if (active) {
+                unsubscribe();
+            }
+        }
+
+        /*
+         * Tells the broker to stop sending, once. Cancel and activate can race, and
+         * both call this when they see the other has run.
+         */
+        private void unsubscribe() {
+            if (unsubscribed.compareAndSet(false, true)) {
+                channels.remove(channelNumber, this);
+                send(createPackets(UNSUBSCRIPTION, 0, false, channelName, dstAddress)[0]);
+            }
+        }
+
+        /*
+         * Passes a sequenced publication to the tracker of its stream. The timer
+         * expires gaps on another thread, so both hold the tracker's lock.
+         */
+        void accept(boolean premiumPublication, long sequenceNumber, Message message) {
+            SequenceTracker<Message> tracker = premiumPublication ? premiumOnly : standard;
+            synchronized (tracker) {
+                tracker.accept(sequenceNumber, message);
+            }
+        }
+
+        void startAfter(boolean premiumPublication, long sequenceNumber) {
+            SequenceTracker<Message> tracker = premiumPublication ? premiumOnly : standard;
+            synchronized (tracker) {
+                tracker.startAfter(sequenceNumber);
+            }
+        }
+
+        void expireGaps() {
+            synchronized (standard) {
+                standard.expire(TimeUnit.MILLISECONDS.toNanos(GAP_TIMEOUT));
+            }
+            synchronized (premiumOnly) {
+                premiumOnly.expire(TimeUnit.MILLISECONDS.toNanos(GAP_TIMEOUT));
+            }
+        }
+
+        /*
+         * Called when the broker confirms the subscription.
+         */
+        void activate(int channelNumber) {
+            this.channelNumber = channelNumber;
+            lastArrival = System.nanoTime();
+            channels.put(channelNumber, this);
+            active = true;
+            if (cancelled) {
+                unsubscribe();
+            } else {
+                drain();
+            }
+        }
+
+        /*
+         * Ends the subscription with an error. The error is delivered by drain,
+         * so it never overlaps an onNext running on another thread.
+         */
+        void fail(Throwable error) {
+            if (this.error == null) {
+                this.error = error;
+            }
+            cancel();
+            drain();
+        }
+
+        /*
+         * Run on the timer. If demand is unmet but nothing has arrived for the gap
+         * timeout while credit is outstanding, that credit either never reached the
+         * broker or went on publications that were lost after the last one
+         * received, so no gap will ever show them. It is written off and granted
+         * again; on an idle channel the broker just moves its count up to match.
+         */
+        void resync() {
+            if (!active || cancelled || System.nanoTime() - lastArrival < TimeUnit.MILLISECONDS.toNanos(GAP_TIMEOUT)) {
+                return;
+            }
+            long held = granted.get() - charged.get();
+            if (held > 0 && requested.get() > queue.size()) {
+                charged.addAndGet(held);
+                lastArrival = System.nanoTime();
+                drain();
+            }
+        }
+
+        /*
+         * Takes a live publication, which the broker charged one credit for. Cached
+         * snapshots are not charged and go straight to onPublication.
+         */
+        void onLivePublication(Message message) {
+            charged.incrementAndGet();
+            lastArrival = System.nanoTime();
+            onPublication(message);
+        }
+
+        /*
+         * Takes a gap in the sequence numbers. The missing publications were charged
+         * whether they were lost on the way or dropped from the broker's backlog.
+         */
+        private void onGap(SequenceTracker.Gap gap) {
+            charged.addAndGet(gap.count);
+            gapListener.accept(channelName, gap);
+        }
+
+        void onPublication(Message message) {
+            if (cancelled) {
+                return;
+            }
+            queue.offer(message);
+            drain();
+        }
+
+        /*
+         * Delivers as many queued publications as there is demand for, then tops up
+         * the broker's credit once for the whole batch. Once the subscription has
+         * failed, delivers the error instead, and nothing after it.
+         */
+        private void drain() {
+            if (wip.getAndIncrement() != 0) {
+                return;
+            }
+            int missed = 1;
+            do {
+                if (error != null) {
+                    if (!terminated) {
+                        terminated = true;
+                        queue.clear();
+                        downstream.onError(error);
+                    }
+                    missed = wip.addAndGet(-missed);
+                    continue;
+                }
+                long demand = requested.get();
+                long delivered = 0;
+                while (delivered != demand && !cancelled) {
+                    Message message = queue.poll();
+                    if (message == null) {
+                        break;
+                    }
+                    downstream.onNext(message);
+                    delivered++;
+                }
+                if (delivered != 0 && demand != Long.MAX_VALUE) {
+                    requested.addAndGet(-delivered);
+                }
+                replenish();
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        /*
+         * Grants the broker enough credit to cover unmet demand, up to the window.
+         * Small top-ups are batched until half the window is free. Credit held can
+         * be negative when the broker dropped publications from its backlog.
+         */
+        private void replenish() {
+            if (!active || cancelled) {
+                return;
+            }
+            long wanted = Math.min(requested.get() - queue.size(), CREDIT_WINDOW);
+            long held = granted.get() - charged.get();
+            long grant = wanted - held;
+            if (grant > 0 && (held <= 0 || grant >= CREDIT_WINDOW / 2)) {
+                long total = granted.addAndGet(grant);
+                Header header = new Header(CREDIT, 0, premium);
+                byte[] name = channelName.getBytes();
+                header.setMessage(name, 0, name.length);
+                header.setExtension(Header.EXT_CREDIT, Header.encodeVarints(total, charged.get()));
+                byte[] data = header.encode();
+                send(new DatagramPacket(data, data.length, dstAddress));
+            }
+        }
+    }
+}
@@ -0,0 +1,64 @@
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Where every node listens, and which node a datagram came from. A node's
+ * address is the one the topology file gives it, if any; otherwise it listens
+ * on LOCALHOST at BASE_PORT_NUMBER plus its position among the nodes in id
+ * order, the controller taking the first port. Node ids can then be any
+ * positive int while the ports stay in one small range. Read-only once built.
+ */
+public class AddressBook {
+	private final Map<Integer, InetSocketAddress> addresses = new HashMap<Integer, InetSocketAddress>();
+	private final Map<InetSocketAddress, Integer> ids = new HashMap<InetSocketAddress, Integer>();
+	/** Ids of nodes on this host by port, for datagrams that arrive from another local address. */
+	private final Map<Integer, Integer> localIds = new HashMap<Integer, Integer>();
+
+	AddressBook(Topology topology) {
+		int position = 0;
+		add(Node.CONTROLLER_PORT, topology.getAddress(Node.CONTROLLER_PORT), position++);
+		for (int index = 1; index < topology.size(); index++) {
+			int id = topology.id(index);
+			add(id, topology.getAddress(id), position++);
+		}
+	}
+
+	private void add(int id, InetSocketAddress address, int position) {
+		if (address == null) {
+			if (Node.BASE_PORT_NUMBER + position > 0xFFFF) {
+				throw new IllegalArgumentException("No port left for node " + id + "; give it an address");
+			}
+			address = new InetSocketAddress(Node.LOCALHOST, Node.BASE_PORT_NUMBER + position);
+		}
+		addresses.put(id, address);
+		ids.put(address, id);
+		InetAddress host = address.getAddress();
+		if (host != null && (host.isLoopbackAddress() || host.isAnyLocalAddress())) {
+			localIds.putIfAbsent(address.getPort(), id);
+		}
+	}
+
+	/*
+	 * Return the address of a node, or null if it is not in the topology.
+	 */
+	InetSocketAddress address(int id) {
+		return addresses.get(id);
+	}
+
+	/*
+	 * Return the id of the node at an address, or -1 if there is none.
+	 */
+	int id(SocketAddress address) {
+		Integer id = ids.get(address);
+		if (id == null && address instanceof InetSocketAddress) {
+			InetSocketAddress socketAddress = (InetSocketAddress) address;
+			if (socketAddress.getAddress() != null && socketAddress.getAddress().isLoopbackAddress()) {
+				id = localIds.get(socketAddress.getPort());
+			}
+		}
+		return id == null ? -1 : id;
+	}
+}
@@ -1,52 +1,122 @@
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetSocketAddress;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 public class Controller extends Node {
 
-	public static final byte R1 = 1;
-	public static final byte R2 = 2;
-	public static final byte R3 = 3;
-	public static final byte R4 = 4;
-	public static final byte R5 = 5;
-	public static final byte R6 = 6;
-	public static final byte R7 = 7;
-	public static final byte R8 = 8;
-	public static final byte E1 = 9;
-	public static final byte E2 = 10;
-	public static final byte E3 = 11;
-	public static final byte E4 = 12;
-
 	private static Terminal terminal;
 
+	/** The network the controller computes routes for, read from a topology file. */
+	private final Topology topology;
+	/** Current shortest-path routes; replaced as a whole when a link changes. */
+	private volatile Routes routes;
+	/**
+	 * If true, routers start with empty tables and a flow is installed when its
+	 * first packet misses. Otherwise every flow is installed at start-up.
+	 */
+	private final boolean reactive;
+	/**
+	 * Idle and hard timeouts given to every flow entry, in seconds, 0 for none.
+	 * Idle entries expire after 10 seconds by default in reactive mode.
+	 */
+	private final int idleTimeout;
+	private final int hardTimeout;
+	/** Flows installed so far in reactive mode, keyed by flowKey. */
+	private final Set<Long> activeFlows = ConcurrentHashMap.newKeySet();
+	/** Start-up and table state of each router by id; filled in once by the constructor. */
+	private final Map<Integer, RouterState> routerStates = new HashMap<Integer, RouterState>();
+	/** Completed once every router has acknowledged its first flow table. */
+	private final CompletableFuture<Void> fabricReady;
+	/**
+	 * How long a router has to finish its handshake, or acknowledge a table
+	 * version, before it is tried again.
+	 */
+	private final long routerTimeout = Long.getLong("controller.bootstrap.timeout", 1000);
+	private final int bootstrapRetries = Integer.getInteger("controller.bootstrap.retries", 5);
+	private ScheduledExecutorService routerTimer;
+	/** How often to poll the routers' flow counters, 0 for never. */
+	private final long statsInterval = Long.getLong("controller.stats.interval", 0);
+	private final AtomicInteger statsRequestId = new AtomicInteger();
+	/** Bytes per second sent over each link at the last poll, keyed by linkKey. */
+	private final ConcurrentHashMap<Long, Double> linkRates = new ConcurrentHashMap<Long, Double>();
+	/**
+	 * A started router not heard from for this long, and through this many
+	 * liveness checks in a row, is taken to have failed, and routes are computed
+	 * around it. Any packet from the router counts, not only keepalives.
+	 */
+	private final long livenessTimeout = Long.getLong("controller.liveness.timeout", 1000);
+	private final int livenessMisses = Math.max(1, Integer.getInteger("controller.liveness.misses", 3));
+	/** Cost of each link taken down by a failure, keyed by linkKey with the lower id first. */
+	private final Map<Long, Integer> downLinks = new HashMap<Long, Integer>();
+	/** Latency of each path end users have reported telemetry for, keyed by flowKey. */
+	private final ConcurrentHashMap<Long, PathLatency> pathLatencies = new ConcurrentHashMap<Long, PathLatency>();
+	/** How often to log the paths reported since the last log, 0 for never. */
+	private final long telemetryInterval = Long.getLong("controller.telemetry.interval", 5000);
+	/**
+	 * PACKET_INs waiting for the worker that handles them, metered to
+	 * controller.packetin.rate a second per router (default 5000, 0 for no
+	 * limit) with bursts of controller.packetin.burst (default 2000), at most
+	 * controller.packetin.queue of them (default 4096).
+	 */
+	private final PacketInQueue packetIns;
 	/**
-	 * 2D Array storing the preconfiguration information of the controller. Column 0
-	 * = source end user, column 1 = destination end user, column 2 = current
-	 * router, column 3 = previous router or end user, column 4 = next router or end
-	 * user.
-	 */
-	private static final byte[][] PRECONF_INFO = { { E1, E2, R1, E1, R3 }, { E1, E2, R3, R1, R6 },
-			{ E1, E2, R6, R3, R8 }, { E1, E2, R8, R6, E2 }, { E2, E1, R8, E2, R7 }, { E2, E1, R7, R8, R5 },
-			{ E2, E1, R5, R7, R2 }, { E2, E1, R2, R5, R1 }, { E2, E1, R1, R2, E1 }, { E1, E3, R1, E1, R4 },
-			{ E1, E3, R4, R1, R6 }, { E1, E3, R6, R4, E3 }, { E3, E1, R6, E3, R4 }, { E3, E1, R4, R6, R1 },
-			{ E3, E1, R1, R4, E1 }, { E1, E4, R1, E1, R4 }, { E1, E4, R4, R1, R7 }, { E1, E4, R7, R4, E4 },
-			{ E4, E1, R7, E4, R4 }, { E4, E1, R4, R6, R1 }, { E4, E1, R1, R4, E1 }, { E2, E3, R8, E2, R6 },
-			{ E2, E3, R6, R8, E3 }, { E3, E2, R6, E3, R8 }, { E3, E2, R8, R6, E2 }, { E2, E4, R8, E2, R7 },
-			{ E2, E4, R7, R8, E4 }, { E4, E2, R7, E4, R8 }, { E4, E2, R8, R7, E2 }, { E3, E4, R6, E3, R4 },
-			{ E3, E4, R4, R6, R7 }, { E3, E4, R7, R4, E4 }, { E4, E3, R7, E4, R4 }, { E4, E3, R4, R7, R6 },
-			{ E4, E3, R6, R4, E3 } };
-
-	/* Arrays to store the other nodes once they are initialised. */
-	private Router[] routers;
-	private EndUser[] endNodes;
-
-	/* Contruct a new Controller and start its functionality. */
+	 * Whether proactive tables are sent with the entries to each destination
+	 * aggregated into one wildcard entry.
+	 */
+	private final boolean aggregateTables = Boolean
+			.parseBoolean(System.getProperty("controller.table.aggregate", "true"));
+	/** PACKET_INs turned away by admission control at the last log. */
+	private long loggedTurnedAway;
+
+	/* The routers by id, once they are initialised. */
+	private final Map<Integer, Router> routers;
+	/** Carries every packet the controller receives and sends. */
+	private final Transport transport;
+	/** Worker threads for received packets, null to handle them on the transport's thread. */
+	private final OrderedDispatcher dispatcher;
+
+	/*
+	 * Contruct a new Controller and start its functionality. Run with
+	 * -Dcontroller.concurrent=true to handle router requests concurrently, and
+	 * -Dcontroller.topology=<file> to read a topology other than topology.txt, and
+	 * -Dcontroller.reactive=true to install flows only when they are first used.
+	 * -Dcontroller.bootstrap.timeout=<ms> and -Dcontroller.bootstrap.retries=<n>
+	 * set how long and how often a router's handshake is tried at start-up.
+	 * -Dcontroller.flow.idle=<s> and -Dcontroller.flow.hard=<s> set the timeouts
+	 * of flow entries. -Dcontroller.stats.interval=<ms> polls the routers' flow
+	 * counters at that interval and logs the traffic on each link.
+	 * -Dcontroller.liveness.timeout=<ms> and -Dcontroller.liveness.misses=<n> set
+	 * how long, and through how many liveness checks, a router can go unheard
+	 * before it is taken to have failed.
+	 * -Dcontroller.telemetry.interval=<ms> sets how often the latency of the
+	 * paths reported by end users is logged.
+	 * -Dcontroller.packetin.rate=<n>, -Dcontroller.packetin.burst=<n> and
+	 * -Dcontroller.packetin.queue=<n> set how many PACKET_INs a second each
+	 * router may send, and how many may wait for the worker that handles them.
+	 * -Dcontroller.table.aggregate=false sends proactive tables with an entry
+	 * per flow rather than one per destination.
+	 */
 	public static void main(String[] args) {
 		try {
 			terminal = new Terminal("Controller");
-			(new Controller(terminal)).start();
+			Topology topology = Topology.load(System.getProperty("controller.topology", "topology.txt"));
+			(new Controller(terminal, topology, Boolean.getBoolean("controller.concurrent"),
+					Boolean.getBoolean("controller.reactive"))).start();
 		} catch (java.lang.Exception e) {
 			e.printStackTrace();
 		}
@@ -54,137 +124,877 @@ public class Controller extends Node {
 
 	/*
 	 * Initialises the Controller as well as each of the routers and end nodes in
-	 * the network. Passed the terminal that it will use for output.
+	 * the topology, and computes the routes between every pair of end users.
+	 * Passed the terminal that it will use for output. If concurrent
+	 * is true, each received packet is handled on its own (virtual) thread while
+	 * packets from the same router keep their order. If reactive is true, flows
+	 * are installed on their first PACKET_IN.
 	 */
-	Controller(Terminal terminal) throws SocketException {
+	Controller(Terminal terminal, Topology topology, boolean concurrent, boolean reactive) throws SocketException {
+		this(terminal, topology, concurrent, reactive, new AddressBook(topology));
+	}
+
+	private Controller(Terminal terminal, Topology topology, boolean concurrent, boolean reactive,
+			AddressBook addresses) throws SocketException {
+		this(terminal, topology, concurrent, reactive, (id, receiver) -> new UdpTransport(addresses, id, receiver),
+				createRouters(topology, addresses));
+		// Initialise EndNodes, telling each which other end users there are
+		int[] endUserIds = topology.nodesOfType(Topology.END_USER);
+		for (int id : endUserIds) {
+			new EndUser(id, endUserIds, addresses);
+		}
+	}
+
+	/*
+	 * Initialises the Controller for routers that have already been created,
+	 * keyed by id, with its transport opened from the given factory. End users
+	 * are left to the caller.
+	 */
+	Controller(Terminal terminal, Topology topology, boolean concurrent, boolean reactive,
+			Transport.Factory transports, Map<Integer, Router> routers) throws SocketException {
 		// Initialise Controller
 		Controller.terminal = terminal;
-		this.socket = new DatagramSocket(BASE_PORT_NUMBER + CONTROLLER_PORT);
-		listener.go();
-		// Initialise routers
-		routers = new Router[NUM_ROUTERS + 1];
-		for (byte i = R1; i <= NUM_ROUTERS; i++) {
-			routers[i] = new Router(i);
+		this.topology = topology;
+		this.reactive = reactive;
+		this.idleTimeout = Math.min(Integer.getInteger("controller.flow.idle", reactive ? 10 : 0), 0xFFFF);
+		this.hardTimeout = Math.min(Integer.getInteger("controller.flow.hard", 0), 0xFFFF);
+		this.routes = Routes.compute(topology);
+		dispatcher = concurrent ? new OrderedDispatcher() : null;
+		this.routers = routers;
+		List<CompletableFuture<Void>> ready = new ArrayList<CompletableFuture<Void>>();
+		for (int id : routers.keySet()) {
+			RouterState state = new RouterState();
+			routerStates.put(id, state);
+			ready.add(state.ready);
 		}
-		// Initialise EndNodes
-		endNodes = new EndUser[NUM_END_NODES];
-		for (byte j = 0; j < NUM_END_NODES; j++) {
-			endNodes[j] = new EndUser((byte) (j + NUM_ROUTERS + 1));
+		fabricReady = CompletableFuture.allOf(ready.toArray(new CompletableFuture<?>[0]));
+		packetIns = new PacketInQueue(routers.keySet(), Long.getLong("controller.packetin.rate", 5000),
+				Long.getLong("controller.packetin.burst", 2000), Integer.getInteger("controller.packetin.queue", 4096),
+				this::handleMisses);
+		try {
+			transport = transports.open(CONTROLLER_PORT, this::receive);
+		} catch (SocketException e) {
+			throw e;
+		} catch (IOException e) {
+			throw new SocketException(e.getMessage());
 		}
 	}
 
 	/*
-	 * Start the initial router. Once the first router has finished setup the second
-	 * router will start, and so on.
+	 * Create a UDP router, with its own terminal window, for every router in the
+	 * topology.
+	 */
+	private static Map<Integer, Router> createRouters(Topology topology, AddressBook addresses)
+			throws SocketException {
+		Map<Integer, Router> routers = new LinkedHashMap<Integer, Router>();
+		for (int i : topology.nodesOfType(Topology.ROUTER)) {
+			routers.put(i, new Router(i, addresses));
+		}
+		return routers;
+	}
+
+	/*
+	 * Start every router at once. Each handshake that has not finished within the
+	 * timeout is started again, up to the retry limit. fabricReady() completes
+	 * when every router has its first table.
 	 */
 	public synchronized void start() throws Exception {
-		startRouter(R1);
+		long startTime = System.nanoTime();
+		routerTimer = Executors.newSingleThreadScheduledExecutor(task -> {
+			Thread thread = new Thread(task, "router-timer");
+			thread.setDaemon(true);
+			return thread;
+		});
+		for (int i : routers.keySet()) {
+			startRouter(i);
+		}
+		routerTimer.scheduleWithFixedDelay(this::checkRouters, routerTimeout, routerTimeout / 4 + 1,
+				TimeUnit.MILLISECONDS);
+		routerTimer.scheduleWithFixedDelay(this::logTurnedAway, 1, 1, TimeUnit.SECONDS);
+		fabricReady.whenComplete((ignored, failure) -> {
+			if (failure == null) {
+				terminal.println("All routers ready after "
+						+ TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime) + " ms.");
+				if (statsInterval > 0) {
+					routerTimer.scheduleWithFixedDelay(this::pollStats, 0, statsInterval, TimeUnit.MILLISECONDS);
+				}
+				if (livenessTimeout > 0) {
+					routerTimer.scheduleWithFixedDelay(this::checkLiveness, livenessTimeout, livenessTimeout / 4 + 1,
+							TimeUnit.MILLISECONDS);
+				}
+				if (telemetryInterval > 0) {
+					routerTimer.scheduleWithFixedDelay(this::logLatencies, telemetryInterval, telemetryInterval,
+							TimeUnit.MILLISECONDS);
+				}
+			}
+		});
+	}
+
+	/*
+	 * Return a future completed once every router has acknowledged its first
+	 * flow table, or failed if a router ran out of retries.
+	 */
+	CompletableFuture<Void> fabricReady() {
+		return fabricReady;
 	}
 
 	/*
-	 * Call the start method of the next router, beginning its setup sequence where
-	 * the router will send a hello packet.
+	 * Call the start method of a router, beginning its setup sequence where the
+	 * router will send a hello packet.
 	 */
-	private synchronized void startRouter(int routerNumber) {
-		Router s = routers[routerNumber];
-		s.start();
+	private void startRouter(int routerNumber) {
+		RouterState state = routerStates.get(routerNumber);
+		state.attempts++;
+		state.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(routerTimeout);
+		routers.get(routerNumber).start();
 	}
 
 	/*
-	 * Send the relevant flow table to the relevant router. Parses out the relevant
-	 * information from the preconfiguration information into a two-dimensional
-	 * array. Converts this into a one-dimensional array which can be encapsulated
-	 * into a Datagram Packet to send to the router.
+	 * Run on the timer. Start again every router whose handshake is overdue, or
+	 * give up on it once it has used its retries. Send the whole table again to
+	 * a started router that has not acknowledged its latest version in time,
+	 * unless it is taken to have failed.
 	 */
-	private synchronized void sendTable(byte routerNumber) {
-		// create a new flow mod table; the row corresponds to the router number
-		byte[] table = new byte[PRECONF_INFO.length * PRECONF_INFO[0].length];
-		for (int i = 0; i < PRECONF_INFO.length; i++) {
-			if (routerNumber == PRECONF_INFO[i][ROUTER_INDEX]) {
-				int j = 0;
-				while (table[j] != 0) {
-					j++; // set j to an index where the value is zero
+	private void checkRouters() {
+		long now = System.nanoTime();
+		for (Map.Entry<Integer, RouterState> router : routerStates.entrySet()) {
+			int i = router.getKey();
+			RouterState state = router.getValue();
+			if (now - state.deadline < 0) {
+				continue;
+			}
+			if (state.ready.isDone()) {
+				if (!state.alive) {
+					continue;
 				}
-				for (int k = 0; k <= OUTPUT_INDEX; k++) {
-					table[j] = PRECONF_INFO[i][k];
-					j++;
+				synchronized (state) {
+					if (state.ackedVersion - state.version < 0) {
+						terminal.println("Router " + i + " did not acknowledge table version " + state.version
+								+ "; sending the whole table again.");
+						sendFullTable(i);
+					}
 				}
+			} else if (state.attempts > bootstrapRetries) {
+				terminal.println("Router " + i + " did not respond; giving up.");
+				state.ready.completeExceptionally(new IOException("Router " + i + " did not respond"));
+			} else {
+				terminal.println("Router " + i + " timed out; starting it again.");
+				startRouter(i);
 			}
 		}
-		// It is a 2D array. The first row is full of zeros. The other
-		// rows correspond to router numbers and contain the tables that should
-		// be sent in a packet.
-		byte[] flowTable = new byte[table.length + 1];
-		// set the first byte of the flowTable to be the type, a FLOW_MOD
-		// packet
-		for (int i = 0; i < table.length; i++) {
-			flowTable[i + 1] = table[i];
+	}
+
+	/*
+	 * Bring the router's flow table up to date with the current routes. Only the
+	 * entries added, changed or removed since the last version sent go out, as
+	 * one FLOW_MOD batch; nothing is sent if the table is unchanged.
+	 */
+	private void sendTable(int routerNumber) {
+		RouterState state = routerStates.get(routerNumber);
+		synchronized (state) {
+			List<FlowEntry> entries = tableFor(routes, routerNumber);
+			List<FlowMod> operations = FlowMod.diff(state.table, entries);
+			if (!operations.isEmpty()) {
+				sendBatch(routerNumber, state, entries, false, operations);
+			}
 		}
-		flowTable[0] = FLOW_MOD;
-		DatagramPacket packet = new DatagramPacket(flowTable, flowTable.length);
-		InetSocketAddress dstAddress = new InetSocketAddress(LOCALHOST, BASE_PORT_NUMBER + routerNumber);
-		packet.setSocketAddress(dstAddress);
-		try {
-			this.socket.send(packet); // send the flow table to the router
-		} catch (IOException e) {
-			e.printStackTrace();
+	}
+
+	/*
+	 * Add the entries of the flows from each of srcs to dst to the router's
+	 * table, as one batch of just those entries, rather than comparing the whole
+	 * table.
+	 */
+	private void sendFlows(Routes routes, int routerNumber, int dst, Set<Integer> srcs) {
+		RouterState state = routerStates.get(routerNumber);
+		synchronized (state) {
+			List<FlowEntry> entries = new ArrayList<FlowEntry>(state.table);
+			// Only entries of the same flows can match, so only those are searched.
+			List<Integer> installed = new ArrayList<Integer>();
+			for (int i = 0; i < entries.size(); i++) {
+				if (entries.get(i).dst == dst && srcs.contains(entries.get(i).src)) {
+					installed.add(i);
+				}
+			}
+			List<FlowMod> operations = new ArrayList<FlowMod>();
+			for (int src : srcs) {
+				for (FlowEntry entry : routes.entriesFor(routerNumber, src, dst)) {
+					FlowEntry timed = entry.withTimeouts(idleTimeout, hardTimeout);
+					int index = indexOfMatch(entries, installed, timed);
+					if (index < 0) {
+						installed.add(entries.size());
+						entries.add(timed);
+						operations.add(new FlowMod(FlowMod.ADD, timed));
+					} else if (!entries.get(index).equals(timed)) {
+						entries.set(index, timed);
+						operations.add(new FlowMod(FlowMod.MODIFY, timed));
+					}
+				}
+			}
+			if (!operations.isEmpty()) {
+				sendBatch(routerNumber, state, entries, false, operations);
+			}
 		}
 	}
 
+	private static int indexOfMatch(List<FlowEntry> entries, List<Integer> candidates, FlowEntry entry) {
+		for (int i : candidates) {
+			FlowEntry other = entries.get(i);
+			if (other.src == entry.src && other.dst == entry.dst && other.inPort == entry.inPort
+					&& other.priority == entry.priority) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
 	/*
-	 * Send a packet of type OPFT_HELLO when passed the destination address.
+	 * Send the router its whole flow table as a batch that replaces whatever it
+	 * holds, when it starts or when a batch went unacknowledged.
 	 */
-	private synchronized void sendHello(InetSocketAddress dstAddress) {
+	private void sendFullTable(int routerNumber) {
+		RouterState state = routerStates.get(routerNumber);
+		synchronized (state) {
+			Routes current = routes;
+			List<FlowEntry> entries = tableFor(current, routerNumber);
+			if (!reactive && aggregateTables) {
+				terminal.println("Router " + routerNumber + ": " + current.tableFor(routerNumber).size()
+						+ " flow entries aggregated to " + entries.size() + ".");
+			}
+			List<FlowMod> operations = new ArrayList<FlowMod>(entries.size());
+			for (FlowEntry entry : entries) {
+				operations.add(new FlowMod(FlowMod.ADD, entry));
+			}
+			sendBatch(routerNumber, state, entries, true, operations);
+		}
+	}
+
+	/*
+	 * Send one batch as the next table version, split across as many datagrams
+	 * as it needs. Called with the router's state locked, so batches go out in
+	 * version order.
+	 */
+	private void sendBatch(int routerNumber, RouterState state, List<FlowEntry> entries, boolean replace,
+			List<FlowMod> operations) {
+		state.version++;
+		state.table = entries;
+		state.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(routerTimeout);
+		for (byte[] data : FlowMod.encode(state.version, replace, operations)) {
+			send(routerNumber, data); // send the flow table to the router
+		}
+	}
+
+	/*
+	 * Change the cost of a link, or remove it if the cost is not positive. Routes
+	 * are computed again only for destinations the change can affect, and only
+	 * routers whose tables changed are sent new ones.
+	 */
+	public synchronized void linkChanged(int a, int b, int cost) {
+		topology.setLink(a, b, cost);
+		Routes previous = routes;
+		routes = previous.afterLinkChange(topology, a, b);
+		terminal.println("Link " + a + "-" + b + " changed; recomputed routes to "
+				+ routes.changedDestinations(previous).length + " destination(s).");
+		for (int router : topology.nodesOfType(Topology.ROUTER)) {
+			if (!tableFor(routes, router).equals(tableFor(previous, router))) {
+				sendTable(router);
+			}
+		}
+	}
+
+	/*
+	 * Run on the timer once every router is ready. A router that has sent
+	 * nothing, not even a keepalive, within the liveness timeout, and nothing
+	 * since the last few checks, is taken to have failed, and every link to it
+	 * is taken down. Counting checks as well as time means a timer that runs
+	 * late cannot fail routers on its own.
+	 */
+	private void checkLiveness() {
+		long now = System.nanoTime();
+		for (Map.Entry<Integer, RouterState> router : routerStates.entrySet()) {
+			RouterState state = router.getValue();
+			if (!state.alive || !state.ready.isDone()) {
+				continue;
+			}
+			long heard = state.lastHeard;
+			if (heard != state.checkedHeard) {
+				state.checkedHeard = heard;
+				state.missedChecks = 0;
+			} else if (++state.missedChecks >= livenessMisses
+					&& now - heard > TimeUnit.MILLISECONDS.toNanos(livenessTimeout)) {
+				routerFailed(router.getKey());
+			}
+		}
+	}
+
+	private synchronized void routerFailed(int router) {
+		RouterState state = routerStates.get(router);
+		if (!state.alive) {
+			return;
+		}
+		// Cleared before lastHeard is read again, so a packet handled meanwhile
+		// either shows here or sees the router down and brings it back.
+		state.alive = false;
+		if (System.nanoTime() - state.lastHeard <= TimeUnit.MILLISECONDS.toNanos(livenessTimeout)) {
+			state.alive = true;
+			return;
+		}
+		terminal.println("Router " + router + " stopped sending keepalives; routing around it.");
+		for (int neighbour : topology.getNeighbours(router)) {
+			linkDown(router, neighbour);
+		}
+	}
+
+	/*
+	 * Bring back the links of a router heard from again after it was taken to
+	 * have failed, and send it its whole table and neighbours, as it may have
+	 * restarted without them.
+	 */
+	private synchronized void routerRecovered(int router) {
+		RouterState state = routerStates.get(router);
+		if (state.alive) {
+			return;
+		}
+		state.alive = true;
+		terminal.println("Router " + router + " is back.");
+		for (Long link : new ArrayList<Long>(downLinks.keySet())) {
+			int a = (int) (link >>> 32);
+			int b = (int) (long) link;
+			if (a == router || b == router) {
+				linkUp(a, b);
+			}
+		}
+		sendFullTable(router);
+		sendAttach(router);
+	}
+
+	/*
+	 * Take a link down, remembering its cost for when it comes back. Nothing
+	 * happens if it is already down.
+	 */
+	private synchronized void linkDown(int a, int b) {
+		int cost = topology.getCost(a, b);
+		if (cost > 0) {
+			downLinks.put(linkKey(Math.min(a, b), Math.max(a, b)), cost);
+			linkChanged(a, b, 0);
+		}
+	}
+
+	/*
+	 * Bring a link taken down back at its old cost, unless a router at either
+	 * end is still taken to have failed.
+	 */
+	private synchronized void linkUp(int a, int b) {
+		long key = linkKey(Math.min(a, b), Math.max(a, b));
+		if (!downLinks.containsKey(key) || !isAlive(a) || !isAlive(b)) {
+			return;
+		}
+		linkChanged(a, b, downLinks.remove(key));
+	}
+
+	private boolean isAlive(int node) {
+		RouterState state = routerStates.get(node);
+		return state == null || state.alive;
+	}
+
+	/*
+	 * Handle a router's report that a neighbour went down or came back. Layout;
+	 * byte 0 = type, byte 1 = 1 if up or 0 if down, bytes 2-5 = neighbour.
+	 */
+	private void handlePortStatus(byte[] data, int router) {
+		int neighbour = getInt(data, 2);
+		terminal.println("Router " + router + " reports the link to " + neighbour
+				+ (data[1] != 0 ? " up." : " down."));
+		if (data[1] != 0) {
+			linkUp(router, neighbour);
+		} else {
+			linkDown(router, neighbour);
+		}
+	}
+
+	/*
+	 * Return the entries a router should hold: all of its routes, aggregated by
+	 * destination unless that is turned off, or in reactive mode only those of
+	 * flows that have been installed, with the configured timeouts. Reactive
+	 * entries stay one per flow so that each flow expires on its own, and so a
+	 * new flow still misses to the controller rather than matching a wildcard.
+	 */
+	private List<FlowEntry> tableFor(Routes routes, int router) {
+		List<FlowEntry> entries = !reactive && aggregateTables ? routes.minimisedTableFor(router)
+				: routes.tableFor(router);
+		if (!reactive && idleTimeout == 0 && hardTimeout == 0) {
+			return entries;
+		}
+		return entries.stream().filter(entry -> !reactive || activeFlows.contains(flowKey(entry.src, entry.dst)))
+				.map(entry -> entry.withTimeouts(idleTimeout, hardTimeout))
+				.collect(Collectors.toList());
+	}
+
+	/*
+	 * Ask every router for its flow counters.
+	 */
+	private void pollStats() {
+		byte[] data = FlowStats.request(statsRequestId.incrementAndGet());
+		for (int i : routerStates.keySet()) {
+			send(i, data);
+		}
+	}
+
+	/*
+	 * Collect one part of a router's counters. Once the last part of a reply
+	 * has arrived, the bytes of every entry are summed per outgoing link, and
+	 * the growth since the previous reply gives the link's rate. A reply with a
+	 * missing part is dropped. Counters of entries that expired in between are
+	 * lost, so a rate is never taken below zero.
+	 */
+	private void handleStatsReply(byte[] data, int router) {
+		RouterState state = routerStates.get(router);
+		if (state == null) {
+			return;
+		}
+		Map<Integer, Double> rates;
+		synchronized (state) {
+			int id = FlowStats.getId(data);
+			if (id != state.statsId || FlowStats.getPart(data) == 0) {
+				state.statsId = id;
+				state.statsParts = new ArrayList<FlowStats>();
+				state.statsNextPart = 0;
+			}
+			if (state.statsNextPart != FlowStats.getPart(data)) {
+				state.statsNextPart = -1;
+				return;
+			}
+			state.statsNextPart++;
+			state.statsParts.addAll(FlowStats.decode(data));
+			if (!FlowStats.isFinal(data)) {
+				return;
+			}
+			Map<Integer, Long> linkBytes = new HashMap<Integer, Long>();
+			for (FlowStats stats : state.statsParts) {
+				linkBytes.merge(stats.outPort, stats.bytes, Long::sum);
+			}
+			long now = System.nanoTime();
+			double seconds = (now - state.statsTime) / 1e9;
+			rates = new HashMap<Integer, Double>();
+			for (Map.Entry<Integer, Long> link : linkBytes.entrySet()) {
+				long previous = state.linkBytes.getOrDefault(link.getKey(), 0L);
+				rates.put(link.getKey(), state.statsTime == 0 ? 0 : Math.max(0, link.getValue() - previous) / seconds);
+			}
+			state.linkBytes = linkBytes;
+			state.statsTime = now;
+		}
+		StringBuilder line = new StringBuilder();
+		for (int neighbour : topology.getNeighbours(router)) {
+			double rate = rates.getOrDefault(neighbour, 0.0);
+			linkRates.put(linkKey(router, neighbour), rate);
+			if (rate > 0) {
+				line.append(String.format(" ->%d %.1f B/s", neighbour, rate));
+			}
+		}
+		if (line.length() > 0) {
+			terminal.println("Router " + router + " links:" + line);
+		}
+	}
+
+	/*
+	 * Add an end user's telemetry report to the latency of its path. Layout as
+	 * in Telemetry.
+	 */
+	private void handleTelemetry(byte[] data, int length) {
+		Telemetry report = Telemetry.decode(data, length);
+		if (report != null) {
+			pathLatencies.computeIfAbsent(flowKey(report.src, report.dst), key -> new PathLatency()).add(report);
+		}
+	}
+
+	/*
+	 * Log what admission control has done with the PACKET_INs if it has turned
+	 * any away since the last log.
+	 */
+	private void logTurnedAway() {
+		long turnedAway = packetIns.turnedAway();
+		if (turnedAway != loggedTurnedAway) {
+			loggedTurnedAway = turnedAway;
+			terminal.println("PACKET_INs: " + packetIns.describe() + ".");
+		}
+	}
+
+	/*
+	 * Log the mean latency of each hop of every path reported since the last
+	 * log.
+	 */
+	private void logLatencies() {
+		for (Map.Entry<Long, PathLatency> path : pathLatencies.entrySet()) {
+			String line = path.getValue().takeUpdate();
+			if (line != null) {
+				terminal.println("Path " + (path.getKey() >>> 32) + " to " + path.getKey().intValue() + ": " + line);
+			}
+		}
+	}
+
+	/*
+	 * Return the mean nanoseconds a message takes from src to dst, from the
+	 * telemetry reported so far, or 0 if none has been.
+	 */
+	double pathLatency(int src, int dst) {
+		PathLatency path = pathLatencies.get(flowKey(src, dst));
+		return path != null ? path.meanNanos() : 0;
+	}
+
+	/*
+	 * Return the bytes per second sent from one node to another at the last
+	 * poll, or 0 if the link has not been polled.
+	 */
+	double linkRate(int from, int to) {
+		return linkRates.getOrDefault(linkKey(from, to), 0.0);
+	}
+
+	private static long linkKey(int from, int to) {
+		return ((long) from << 32) | (to & 0xFFFFFFFFL);
+	}
+
+	/*
+	 * Handle a router's report that an entry expired. The entry leaves the
+	 * controller's copy of that router's table, and the flow is no longer counted
+	 * as installed, so its next packet that misses installs it again. Layout;
+	 * byte 0 = type, byte 1 = reason (0 idle, 1 hard), bytes 2-17 = source,
+	 * destination, input node and output node, bytes 18-25 = packet count, bytes
+	 * 26-33 = byte count.
+	 */
+	private void handleFlowRemoved(byte[] data, int router) {
+		ByteBuffer report = ByteBuffer.wrap(data);
+		byte reason = report.get(1);
+		int src = report.getInt(2);
+		int dst = report.getInt(6);
+		int inPort = report.getInt(10);
+		long packets = report.getLong(18);
+		long bytes = report.getLong(26);
+		terminal.println("Flow from " + src + " to " + dst + " expired at router " + router
+				+ (reason == 0 ? " (idle)" : " (hard timeout)") + " after " + packets + " packet(s), " + bytes
+				+ " byte(s).");
+		RouterState state = routerStates.get(router);
+		if (state != null) {
+			synchronized (state) {
+				state.table = state.table.stream()
+						.filter(entry -> !(entry.src == src && entry.dst == dst && entry.inPort == inPort))
+						.collect(Collectors.toList());
+			}
+		}
+		activeFlows.remove(flowKey(src, dst));
+	}
+
+	private static long flowKey(int src, int dst) {
+		return ((long) src << 32) | (dst & 0xFFFFFFFFL);
+	}
+
+	/*
+	 * Handle a packet a router had no entry for by queueing it for the PACKET_IN
+	 * worker. If admission control turns it away no flow is set up, but the
+	 * packet is still sent on, or dropped if it has no path, at once, so the
+	 * router's buffer is freed rather than held until it times out. Layout;
+	 * byte 0 = type, bytes 1-4 = buffer id, bytes 5-8 = node the router received
+	 * the packet from, remaining bytes = the message header, or the whole packet
+	 * if the router did not buffer it.
+	 */
+	private void handlePacketIn(byte[] data, int length, int router) {
+		if (length < PACKET_IO_HEADER_LENGTH + MESSAGE_HEADER_LENGTH) {
+			return;
+		}
+		byte[] message = Arrays.copyOfRange(data, PACKET_IO_HEADER_LENGTH, length);
+		PacketInQueue.Miss miss = new PacketInQueue.Miss(router, getInt(data, 1), getMessageSource(message),
+				getMessageDest(message), message);
+		if (packetIns.offer(miss) != PacketInQueue.ADMITTED) {
+			sendPacketOut(routes, router, miss.dst, miss.bufferId, message);
+		}
+	}
+
+	/*
+	 * Run on the PACKET_IN worker with every queued miss for one destination.
+	 * In reactive mode, the flows they need that are not installed yet are added
+	 * to the set, and sent to the routers along their paths as one batch per
+	 * router. Then each router is told to send its packets on, or to drop those
+	 * with no path. The whole group is handled with one snapshot of the routes,
+	 * so a link change meanwhile cannot mix the old paths with the new.
+	 */
+	private void handleMisses(int dst, List<PacketInQueue.Miss> misses) {
+		Routes routes = this.routes;
+		Map<Integer, Boolean> reachable = new HashMap<Integer, Boolean>();
+		Map<Integer, Set<Integer>> newFlows = new HashMap<Integer, Set<Integer>>();
+		for (PacketInQueue.Miss miss : misses) {
+			if (reachable.containsKey(miss.src)) {
+				continue;
+			}
+			int[] routers = routes.routersOn(miss.src, dst);
+			reachable.put(miss.src, routers.length > 0);
+			if (reactive && routers.length > 0 && activeFlows.add(flowKey(miss.src, dst))) {
+				for (int router : routers) {
+					newFlows.computeIfAbsent(router, key -> new HashSet<Integer>()).add(miss.src);
+				}
+			}
+		}
+		for (Map.Entry<Integer, Set<Integer>> router : newFlows.entrySet()) {
+			sendFlows(routes, router.getKey(), dst, router.getValue());
+		}
+		if (!newFlows.isEmpty()) {
+			terminal.println("Installed flows to end user " + dst + " on " + newFlows.size() + " router(s).");
+		}
+		int released = 0;
+		for (PacketInQueue.Miss miss : misses) {
+			if (!reachable.get(miss.src)) {
+				sendDrop(miss.router, miss.bufferId);
+			} else if (sendPacketOut(routes, miss.router, dst, miss.bufferId, miss.message)) {
+				released++;
+			}
+		}
+		terminal.println("Handled " + misses.size() + " missed packet(s) for end user " + dst + "; " + released
+				+ " sent on, " + (misses.size() - released) + " dropped.");
+	}
+
+
+	/*
+	 * Tell a router to send a packet it missed on towards its destination. A
+	 * buffered packet is named by its buffer id; otherwise the packet goes back
+	 * to the router whole. Layout; byte 0 = type, bytes 1-4 = buffer id, bytes
+	 * 5-8 = next node, remaining bytes = the packet if it was not buffered.
+	 * Returns false if the packet was dropped instead.
+	 */
+	private boolean sendPacketOut(Routes routes, int router, int dst, int bufferId, byte[] message) {
+		int next = routes.nextHop(router, dst);
+		if (next == 0) {
+			sendDrop(router, bufferId);
+			return false;
+		}
+		return send(router, packetOut(bufferId, next, message));
+	}
+
+	/*
+	 * Tell a router to drop a packet it missed, as a PACKET_OUT to the
+	 * controller port that releases its buffer. A packet the router did not
+	 * buffer needs nothing.
+	 */
+	private void sendDrop(int router, int bufferId) {
+		if (bufferId != PacketBuffers.NO_BUFFER) {
+			send(router, packetOut(bufferId, CONTROLLER_PORT, new byte[0]));
+		}
+	}
+
+	private static byte[] packetOut(int bufferId, int next, byte[] message) {
+		boolean whole = bufferId == PacketBuffers.NO_BUFFER;
+		byte[] data = new byte[PACKET_IO_HEADER_LENGTH + (whole ? message.length : 0)];
+		data[0] = PACKET_OUT;
+		setInt(data, 1, bufferId);
+		setInt(data, 1 + ID_LENGTH, next);
+		if (whole) {
+			System.arraycopy(message, 0, data, PACKET_IO_HEADER_LENGTH, message.length);
+		}
+		return data;
+	}
+
+	/*
+	 * Tell a router the id and type of each of its neighbours, and the MTU of
+	 * the link to it, so it can introduce itself to the end users among them.
+	 * Layout; byte 0 = type, byte 1 = number of neighbours, then per neighbour
+	 * its id (four bytes), type and MTU (two bytes). A long list is split across
+	 * datagrams.
+	 */
+	private void sendAttach(int router) {
+		int[] neighbours = topology.getNeighbours(router);
+		int perPacket = (PACKETSIZE - 2) / (ID_LENGTH + 3);
+		int start = 0;
+		do {
+			int count = Math.min(perPacket, neighbours.length - start);
+			byte[] data = new byte[2 + count * (ID_LENGTH + 3)];
+			data[0] = ATTACH;
+			data[1] = (byte) count;
+			for (int i = 0; i < count; i++) {
+				int offset = 2 + i * (ID_LENGTH + 3);
+				int mtu = topology.getMtu(router, neighbours[start + i]);
+				setInt(data, offset, neighbours[start + i]);
+				data[offset + ID_LENGTH] = topology.getType(neighbours[start + i]);
+				data[offset + ID_LENGTH + 1] = (byte) (mtu >>> 8);
+				data[offset + ID_LENGTH + 2] = (byte) mtu;
+			}
+			send(router, data);
+			start += count;
+		} while (start < neighbours.length);
+	}
+
+	/*
+	 * Send a packet of type OPFT_HELLO when passed the destination router.
+	 */
+	private void sendHello(int router) {
 		byte[] data = { HELLO };
-		DatagramPacket hello = new DatagramPacket(data, data.length);
-		hello.setSocketAddress(dstAddress);
-		try {
-			socket.send(hello);
-			int port = dstAddress.getPort() - BASE_PORT_NUMBER;
-			terminal.println("Sent a Hello packet to router " + port + ".");
-		} catch (IOException e) {
-			e.printStackTrace();
+		if (send(router, data)) {
+			terminal.println("Sent a Hello packet to router " + router + ".");
 		}
 	}
 
+	private boolean send(int node, byte[] data) {
+		return transport.send(node, ByteBuffer.wrap(data));
+	}
+
 	/*
-	 * Implementation of the abstract class in Node.java which handles received
-	 * Datagram Packets.
+	 * Handle a packet from the transport. The packet is copied out of the
+	 * transport's buffer; with a dispatcher it is then handled on its own
+	 * (virtual) thread, ordered per router so that a router's HELLO is always
+	 * answered before its FLOW_MOD acknowledgement is processed.
 	 */
-	@Override
-	public synchronized void onReceipt(DatagramPacket packet) {
-		byte[] data = packet.getData();
-		int port = packet.getPort() - BASE_PORT_NUMBER;
+	private void receive(int from, ByteBuffer buffer) {
+		int length = buffer.limit();
+		byte[] data = Arrays.copyOf(buffer.array(), Math.max(PACKETSIZE, length));
+		if (dispatcher == null) {
+			handlePacket(from, data, length);
+		} else {
+			dispatcher.execute(from, () -> handlePacket(from, data, length));
+		}
+	}
+
+	/*
+	 * Handle one received packet. Packets from one router are handled in order,
+	 * but with a dispatcher those from different routers overlap, so this is not
+	 * synchronized and follows the controller's rules instead: the topology and
+	 * routes change only under the controller's lock, and a handler reads the
+	 * routes once and uses that snapshot throughout; a router's table and
+	 * statistics change only under its RouterState's lock; everything else is
+	 * in concurrent collections or volatile fields.
+	 */
+	private void handlePacket(int port, byte[] data, int length) {
 		byte type = getType(data);
+		RouterState state = routerStates.get(port);
+		if (state != null) {
+			state.lastHeard = System.nanoTime();
+			if (!state.alive) {
+				routerRecovered(port);
+			}
+		}
 		switch (type) {
 		// Handle a Hello packet by replying with a Hello.
 		case HELLO:
 			terminal.println("Got a Hello packet from router " + port + ".");
-			sendHello((InetSocketAddress) packet.getSocketAddress());
-			sendTable((byte) port);
+			sendHello(port);
+			sendFullTable(port);
+			sendAttach(port);
 			break;
-		// Handle a confirmation of completion of flow mod as the end of the setup
-		// sequence for that router. Start the next swtich.
+		// Handle a confirmation of a table version. The first one ends the setup
+		// sequence for that router.
 		case FLOW_MOD:
-			terminal.println("Flow mod acknowledged by router " + port + ".");
-			if (port < NUM_ROUTERS) {
-				startRouter(port + 1); // flow mod is complete, start the next router
+			if (state != null) {
+				int version = FlowMod.getVersion(data);
+				terminal.println("Flow mod version " + version + " acknowledged by router " + port + ".");
+				synchronized (state) {
+					if (version - state.ackedVersion > 0) {
+						state.ackedVersion = version;
+					}
+				}
+				state.ready.complete(null);
 			}
 			break;
-		// Handle an unrecognised packet forwarded by a router by telling that router to
-		// drop the packet.
+		// Handle an unrecognised packet forwarded by a router by installing its flow,
+		// or telling that router to drop the packet if it cannot be delivered.
 		case PACKET_IN:
-			setType(data, FLOW_REMOVED);
-			packet.setData(data);
-			packet.setSocketAddress(packet.getSocketAddress());
-			try {
-				socket.send(packet);
-				terminal.println("Told router " + port + " to drop packet.");
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
+			handlePacketIn(data, length, port);
+			break;
+		// Handle a report of an expired flow entry.
+		case FLOW_REMOVED:
+			handleFlowRemoved(data, port);
+			break;
+		// Handle a router's report that a link went down or came back.
+		case PORT_STATUS:
+			handlePortStatus(data, port);
+			break;
+		// Handle part of a router's flow counters.
+		case STATS_REPLY:
+			handleStatsReply(Arrays.copyOf(data, length), port);
+			break;
+		// Handle an end user's report of the path a message took.
+		case TELEMETRY:
+			handleTelemetry(data, length);
 			break;
 		}
 	}
 
+	/*
+	 * Start-up, table and statistics state of one router. The table and
+	 * statistics fields are guarded by the object's lock.
+	 */
+	private static class RouterState {
+		final CompletableFuture<Void> ready = new CompletableFuture<Void>();
+		volatile int attempts;
+		volatile long deadline;
+		/** The table as of the last version sent, and that version. */
+		List<FlowEntry> table = new ArrayList<FlowEntry>();
+		int version;
+		volatile int ackedVersion;
+		/** Parts of the stats reply being received, and the request they answer. */
+		List<FlowStats> statsParts = new ArrayList<FlowStats>();
+		int statsId;
+		int statsNextPart;
+		/** Bytes sent per neighbour at the last complete stats reply, and when. */
+		Map<Integer, Long> linkBytes = new HashMap<Integer, Long>();
+		long statsTime;
+		/** When the router was last heard from, in nanoseconds, and whether it is taken to be up. */
+		volatile long lastHeard;
+		volatile boolean alive = true;
+		/** lastHeard at the last liveness check, and the checks in a row since that it has not changed. */
+		long checkedHeard;
+		int missedChecks;
+	}
+
+	/*
+	 * The latency of one path, as the sums of the telemetry reported for it: a
+	 * row per router on the path, with the nanoseconds from the previous node
+	 * and the queue depth, and a last column for the hop to the end user. A
+	 * report of a different path, after routes change, starts the sums again.
+	 */
+	private static class PathLatency {
+		private int[] routers = new int[0];
+		private long[] hopNanos = new long[0];
+		private long[] hopDepths = new long[0];
+		private long lastNanos;
+		private long totalNanos;
+		private long count;
+		private boolean updated;
+
+		synchronized void add(Telemetry report) {
+			int[] path = report.hops.stream().mapToInt(hop -> hop.router).toArray();
+			if (!Arrays.equals(path, routers)) {
+				routers = path;
+				hopNanos = new long[path.length];
+				hopDepths = new long[path.length];
+				lastNanos = 0;
+				totalNanos = 0;
+				count = 0;
+			}
+			for (int i = 0; i < path.length; i++) {
+				hopNanos[i] += report.hops.get(i).nanos;
+				hopDepths[i] += report.hops.get(i).depth;
+			}
+			lastNanos += report.lastNanos;
+			totalNanos += report.totalNanos();
+			count++;
+			updated = true;
+		}
+
+		synchronized double meanNanos() {
+			return count > 0 ? (double) totalNanos / count : 0;
+		}
+
+		/*
+		 * Describe the mean of each hop if there are new reports since the last
+		 * call, or return null.
+		 */
+		synchronized String takeUpdate() {
+			if (!updated) {
+				return null;
+			}
+			updated = false;
+			StringBuilder line = new StringBuilder();
+			for (int i = 0; i < routers.length; i++) {
+				line.append(String.format("router %d %.1f us (%.1f queued), ", routers[i], hopNanos[i] / 1e3 / count,
+						(double) hopDepths[i] / count));
+			}
+			return line.append(String.format("end user %.1f us; total %.1f us over %d message(s).",
+					lastNanos / 1e3 / count, totalNanos / 1e3 / count, count)).toString();
+		}
+	}
 }
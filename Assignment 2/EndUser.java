@@ -3,149 +3,358 @@ import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
 import java.net.SocketException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
-public class EndUser extends Node {
+public class EndUser extends SocketNode {
 
 	private Terminal terminal;
-	private InetSocketAddress dstAddress;
-	private final byte socketNumber;
+	private volatile InetSocketAddress dstAddress;
+	/** MTU of the link to the router, as the router gives it. */
+	private volatile int mtu = DEFAULT_MTU;
+	/** Smaller MTUs routers have reported on the paths to end users, by id. */
+	private final ConcurrentHashMap<Integer, Integer> pathMtus = new ConcurrentHashMap<Integer, Integer>();
+	private final int socketNumber;
+	/** Ids of every end user in the network, as named by the controller. */
+	private final int[] endUsers;
+	private final AddressBook addresses;
+	/** Traffic class of the messages sent, from the enduser.class property. */
+	private final int trafficClass = Integer.getInteger("enduser.class", 0);
+	/** Messages sent carry telemetry if the enduser.telemetry property is true. */
+	private final boolean telemetry = Boolean.getBoolean("enduser.telemetry");
+	/**
+	 * Traffic to generate as soon as the end user is connected, described as in
+	 * TrafficGenerator, from the enduser.traffic property; null for none.
+	 */
+	private final String trafficOnStart = System.getProperty("enduser.traffic");
+	private boolean trafficStarted;
+	/** Probes received, by source. */
+	private final TrafficStats trafficStats = new TrafficStats();
+	/** A stream with messages missing is reported once it has been idle this long. */
+	private static final long STREAM_IDLE_MILLIS = 2000;
+	/**
+	 * Messages too long for one datagram are split into fragments with ids from
+	 * here, and put back together in a buffer holding up to
+	 * enduser.reassembly.messages partial messages (default 16) and
+	 * enduser.reassembly.bytes bytes (default 1 MiB), each kept for up to
+	 * enduser.reassembly.timeout ms (default 5000).
+	 */
+	private final AtomicInteger nextMessageId = new AtomicInteger();
+	private final Fragments reassembly = new Fragments(Integer.getInteger("enduser.reassembly.messages", 16),
+			Long.getLong("enduser.reassembly.bytes", 1 << 20), Long.getLong("enduser.reassembly.timeout", 5000));
+	/** Whether the prompt loop is running on its own thread. */
+	private boolean consoleRunning;
 	private static final String REC = "REC";
 	private static final String SEND = "SEND";
+	private static final String GEN = "GEN";
+	private static final String STATS = "STATS";
+	/** One thread reports the idle streams of every end user in the JVM. */
+	private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(task -> {
+		Thread thread = new Thread(task, "EndUser timers");
+		thread.setDaemon(true);
+		return thread;
+	});
 
 	/** Initialises the terminal, datagram socket and listener of the end node.
 	*/
-	EndUser(byte socketNumber) throws SocketException {
+	EndUser(int socketNumber, int[] endUsers, AddressBook addresses) throws SocketException {
 		this.socketNumber = socketNumber;
-		this.terminal = new Terminal("EndUser " + (socketNumber-NUM_ROUTERS));
-		this.socket = new DatagramSocket(BASE_PORT_NUMBER + socketNumber);
+		this.endUsers = endUsers.clone();
+		this.addresses = addresses;
+		this.terminal = new Terminal("EndUser " + socketNumber);
+		this.socket = new DatagramSocket(addresses.address(socketNumber).getPort());
 		listener.go();
+		TIMER.scheduleWithFixedDelay(this::reportIdleStreams, 1, 1, TimeUnit.SECONDS);
 	}
 
-	/** Implementation of the abstract onReceipt function in Node.java. If the datagram received is a
-	  * message, it is printed to the terminal. Otherwise if it is an initialisation message from a
-	  * router, that router's address is set as the destination address for all packets sent out.
+	/** Implementation of the abstract onReceipt function in SocketNode.java. If the datagram received is a
+	  * message, it is printed to the terminal, or counted if it is a probe; a fragment is held until
+	  * the rest of its message arrives. Otherwise if it is an initialisation message from a router,
+	  * that router's address is set as the destination address for all packets sent out, and the
+	  * MTU it gives as the longest datagram to send; a router's report that a message was too long
+	  * for a link on its path lowers that for the message's destination. The prompt loop is then
+	  * started on its own thread if it is not running, so the listener never waits for input.
 	  */
 	@Override
 	public synchronized void onReceipt(DatagramPacket packet) {
 		if (getType(packet.getData()) == NODE_INITIALISE_ROUTER) {
+			byte[] data = packet.getData();
+			if (packet.getLength() >= 3) {
+				mtu = ((data[1] & 0xFF) << 8) | (data[2] & 0xFF);
+			}
 			dstAddress = (InetSocketAddress) packet.getSocketAddress();
-			terminal.println("Connected to router " + (packet.getPort() - BASE_PORT_NUMBER) + ".");
+			terminal.println("Connected to router " + addresses.id(dstAddress) + "; MTU " + mtu + ".");
+			if (trafficOnStart != null && !trafficStarted) {
+				trafficStarted = true;
+				generate(trafficOnStart);
+			}
+		} else if (getType(packet.getData()) == PACKET_TOO_BIG && packet.getLength() >= 3 + ID_LENGTH) {
+			byte[] data = packet.getData();
+			int dst = getInt(data, 1);
+			int linkMtu = ((data[1 + ID_LENGTH] & 0xFF) << 8) | (data[2 + ID_LENGTH] & 0xFF);
+			if (linkMtu >= MIN_MTU && linkMtu < mtuTowards(dst)) {
+				pathMtus.put(dst, linkMtu);
+				terminal.println("A message to end user " + dst
+						+ " was too long for its path; messages to it now fit in " + linkMtu + " bytes.");
+			}
 		} else if (getType(packet.getData()) == NODE_MESSAGE) {
 			byte[] data = packet.getData();
-			byte src = getMessageSource(data);
-			String message = getMessageContent(data);
-			terminal.println("New message from end user " + src%NUM_ROUTERS + ": " + message);
+			Telemetry path = Telemetry.read(data, packet.getLength());
+			if (TrafficGenerator.isProbe(data, packet.getLength())) {
+				String report = trafficStats.receive(data);
+				if (report != null) {
+					terminal.println(report);
+				}
+			} else if (Fragments.isFragment(data)) {
+				byte[] content = reassembly.add(data);
+				if (content != null) {
+					terminal.println("New message from end user " + getMessageSource(data) + " (" + content.length
+							+ " bytes): " + new String(content).trim());
+				}
+			} else {
+				int src = getMessageSource(data);
+				String message = getMessageContent(data);
+				terminal.println("New message from end user " + src + ": " + message);
+				if (path != null) {
+					terminal.println("Path: " + path + ".");
+				}
+			}
+			if (path != null) {
+				sendReport(path);
+			}
+		}
+		startConsole();
+	}
+
+	private synchronized void startConsole() {
+		if (consoleRunning) {
+			return;
 		}
-		this.start();
+		consoleRunning = true;
+		Thread console = new Thread(() -> {
+			try {
+				start();
+			} finally {
+				synchronized (this) {
+					consoleRunning = false;
+				}
+			}
+		}, "EndUser " + socketNumber + " console");
+		console.setDaemon(true);
+		console.start();
 	}
 
-	/* Start method of the end node which lets the user choose whether they would like to send a message
-	 * or REC for a message.
+	/* Start method of the end node which lets the user choose whether they would like to send a message,
+	 * generate traffic, see the statistics of the traffic received, or REC for a message. Runs on the
+	 * console thread, without the end user's lock, so messages keep arriving while it waits for input.
 	 */
-	public synchronized void start() {
+	public void start() {
+		String prompt = "Enter SEND to send a message, GEN to generate traffic, STATS for the traffic received "
+				+ "or REC to receive messages: ";
 		while (true) {
-			String chosenState = terminal.read("Enter SEND to send a message or enter REC to receive a message: ").toUpperCase();
-			terminal.println("Enter SEND to send a message or enter REC to receive a message: " + chosenState);
+			String chosenState = terminal.read(prompt).toUpperCase();
+			terminal.println(prompt + chosenState);
 			if (chosenState.contains(REC)) {
 				terminal.println("Wating for messages.");
 				return;
 			} else if (chosenState.contains(SEND)) {
 				sendMessage();
+			} else if (chosenState.contains(GEN)) {
+				String line = terminal.read("Enter the traffic as: constant, poisson or burst[:size], "
+						+ "messages per second, number of messages, end users: ");
+				terminal.println("Enter the traffic: " + line);
+				generate(line);
+			} else if (chosenState.contains(STATS)) {
+				for (String report : trafficStats.reports()) {
+					terminal.println(report);
+				}
+				terminal.println("Partial messages dropped before reassembly: " + reassembly.dropped());
 			} else {
 				terminal.println("Invalid input.");
 			}
 		}
 	}
 
-	/* Function to send a message to another end node. Asks the user which end node to send the
-	 * message to as well as the content of the message. Sends the message into the network.
+	/* Start sending the traffic a line describes, on its own thread.
+	 */
+	private void generate(String line) {
+		TrafficGenerator generator;
+		try {
+			generator = TrafficGenerator.parse(line);
+		} catch (IllegalArgumentException e) {
+			terminal.println("Invalid traffic: " + e.getMessage());
+			return;
+		}
+		for (int dst : generator.destinations) {
+			if (!isEndUser(Integer.toString(dst))) {
+				terminal.println("Invalid traffic: " + dst + " is not an end user.");
+				return;
+			}
+		}
+		Thread thread = new Thread(() -> {
+			terminal.println("Generating " + generator + ".");
+			long start = System.nanoTime();
+			try {
+				generator.run(socketNumber, trafficClass, telemetry, this::send);
+				terminal.println(String.format("Sent %d message(s) in %.1f s.", generator.count,
+						(System.nanoTime() - start) / 1e9));
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}, "EndUser " + socketNumber + " traffic");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/* Print the reports of streams that stopped with messages missing.
+	 */
+	private void reportIdleStreams() {
+		for (String report : trafficStats.idleReports(TimeUnit.MILLISECONDS.toNanos(STREAM_IDLE_MILLIS))) {
+			terminal.println(report);
+		}
+	}
+
+	/* Function to send a message to another end node. Asks the user which end nodes to send the
+	 * message to, by id, as well as the content of the message. Sends the message into the network
+	 * once for each end node named, in fragments if it does not fit in one datagram on the way there.
 	 */
-	private synchronized void sendMessage() {
+	private void sendMessage() {
 		String dest;
 		boolean validInput = false;
-		byte[] data = new byte[PACKETSIZE];
-		setType(data, NODE_MESSAGE);
-		setSrc(data, this.socketNumber);
 
 		String stringMessage = terminal.read("Please enter a message to send: ");
 		terminal.println("Please enter a message to send: " + stringMessage);
-		setMessage(data, stringMessage);
-		setLen(data, (byte) stringMessage.length());
+		byte[] content = stringMessage.getBytes();
 
+		String choices = Arrays.stream(endUsers).mapToObj(Integer::toString).collect(Collectors.joining(" or "));
 		do {
-			dest = terminal.read("Send this message to end user 1 or 2 or 3 or 4? ");
-			terminal.println("Send this message to end user 1 or 2 or 3 or 4? " + dest);
-			if (dest.contains("1")) {
-				validInput = true;
-				byte finalDst = (byte) (1 + NUM_ROUTERS);
-				setDst(data, finalDst);
-				DatagramPacket message = new DatagramPacket(data, data.length);
-				message.setSocketAddress(dstAddress);
-				try {
-					socket.send(message);
-					terminal.println("Message sent.");
-				} catch (IOException e) {
-					e.printStackTrace();
+			dest = terminal.read("Send this message to end user " + choices + "? ");
+			terminal.println("Send this message to end user " + choices + "? " + dest);
+			for (String field : dest.split("[^0-9]+")) {
+				if (field.isEmpty() || !isEndUser(field)) {
+					continue;
 				}
-			}
-			if (dest.contains("2")) {
 				validInput = true;
-				byte finalDst = (byte) (2 + NUM_ROUTERS);
-				setDst(data, finalDst);
-				DatagramPacket message = new DatagramPacket(data, data.length);
-				message.setSocketAddress(dstAddress);
-				try {
-					socket.send(message);
-					terminal.println("Message sent.");
-				} catch (IOException e) {
-					e.printStackTrace();
+				int dst = Integer.parseInt(field);
+				int mtu = mtuTowards(dst);
+				if (content.length > Math.min(mtu - MESSAGE_HEADER_LENGTH, MAX_CONTENT_LENGTH)) {
+					sendFragments(dst, content, mtu);
+					continue;
 				}
-			}
-			if (dest.contains("3")) {
-				validInput = true;
-				byte finalDst = (byte) (3 + NUM_ROUTERS);
-				setDst(data, finalDst);
-				DatagramPacket message = new DatagramPacket(data, data.length);
-				message.setSocketAddress(dstAddress);
-				try {
-					socket.send(message);
-					terminal.println("Message sent.");
-				} catch (IOException e) {
-					e.printStackTrace();
+				byte[] data = new byte[mtu];
+				setType(data, NODE_MESSAGE);
+				setSrc(data, this.socketNumber);
+				setDst(data, dst);
+				data[TRAFFIC_CLASS_OFFSET] = (byte) trafficClass;
+				setMessage(data, content);
+				setLen(data, content.length);
+				if (telemetry) {
+					Telemetry.start(data);
 				}
-			}
-			if (dest.contains("4")) {
-				validInput = true;
-				byte finalDst = (byte) (4 + NUM_ROUTERS);
-				setDst(data, finalDst);
-				DatagramPacket message = new DatagramPacket(data, data.length);
-				message.setSocketAddress(dstAddress);
-				try {
-					socket.send(message);
+				if (send(data)) {
 					terminal.println("Message sent.");
-				} catch (IOException e) {
-					e.printStackTrace();
 				}
 			}
 		} while (!validInput);
 	}
 
-	private synchronized void setLen(byte[] data, byte len) {
-		data[1] = len;
+	/* Send content too long for one datagram as fragments, each carrying
+	 * telemetry if there is room for it.
+	 */
+	private void sendFragments(int dst, byte[] content, int mtu) {
+		List<byte[]> fragments;
+		try {
+			fragments = Fragments.split(socketNumber, dst, trafficClass, nextMessageId.getAndIncrement(), content, mtu);
+		} catch (IllegalArgumentException e) {
+			terminal.println("Message not sent: " + e.getMessage() + ".");
+			return;
+		}
+		for (byte[] fragment : fragments) {
+			if (telemetry) {
+				Telemetry.start(fragment);
+			}
+			if (!send(fragment)) {
+				return;
+			}
+		}
+		terminal.println("Message sent in " + fragments.size() + " fragments.");
+	}
+
+	/*
+	 * Return the longest datagram to send to an end user: the MTU of the link to
+	 * the router, or less if a router has reported a smaller one on the path.
+	 */
+	private int mtuTowards(int dst) {
+		Integer pathMtu = pathMtus.get(dst);
+		return pathMtu != null ? Math.min(pathMtu, mtu) : mtu;
+	}
+
+	/* Send a message to the router the end user is connected to, cut to the
+	 * MTU towards its destination; only room for telemetry is lost. Returns
+	 * false if it is not connected yet.
+	 */
+	private boolean send(byte[] data) {
+		InetSocketAddress router = dstAddress;
+		if (router == null) {
+			terminal.println("Not connected to a router yet.");
+			return false;
+		}
+		int length = Math.min(data.length, Math.max(mtuTowards(getMessageDest(data)),
+				MESSAGE_HEADER_LENGTH + getMessageLength(data)));
+		DatagramPacket message = new DatagramPacket(data, length);
+		message.setSocketAddress(router);
+		try {
+			socket.send(message);
+			return true;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	/* Send the controller the path a message took, for its latency matrix.
+	 */
+	private void sendReport(Telemetry path) {
+		byte[] report = path.report();
+		DatagramPacket packet = new DatagramPacket(report, report.length);
+		packet.setSocketAddress(addresses.address(CONTROLLER_PORT));
+		try {
+			socket.send(packet);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private boolean isEndUser(String field) {
+		try {
+			int id = Integer.parseInt(field);
+			return Arrays.stream(endUsers).anyMatch(endUser -> endUser == id);
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	private synchronized void setLen(byte[] data, int len) {
+		data[1] = (byte) len;
 	}
 
-	private synchronized void setSrc(byte[] data, byte src) {
-		data[2] = src;
+	private synchronized void setSrc(byte[] data, int src) {
+		setInt(data, 2, src);
 	}
 
-	private synchronized void setDst(byte[] data, byte dst) {
-		data[3] = dst;
+	private synchronized void setDst(byte[] data, int dst) {
+		setInt(data, 2 + ID_LENGTH, dst);
 	}
 
-	private synchronized void setMessage(byte[] data, String message) {
-		byte[] content = (byte[]) message.getBytes();
+	private synchronized void setMessage(byte[] data, byte[] content) {
 		for (int i = 0; i < content.length; i++) {
-			data[i + 4] = content[i];
+			data[i + MESSAGE_HEADER_LENGTH] = content[i];
 		}
 	}
 
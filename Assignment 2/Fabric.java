@@ -0,0 +1,178 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs a whole network in one process, with no windows and no sockets: the
+ * controller, a router for every router in the topology and a simple end user
+ * for every end user, all attached to one MemoryTransport. Once the fabric is
+ * bootstrapped, the end users send messages between random pairs and the
+ * runner reports how many arrived and how fast.
+ *
+ * Usage: java Fabric [topology file], with the system properties
+ * fabric.packets (messages to send, default 10000), fabric.seed,
+ * fabric.timeout (milliseconds to wait for the messages to arrive),
+ * fabric.fail (a router to stop halfway through the messages), fabric.class
+ * (traffic class of the messages), fabric.telemetry (carry telemetry and
+ * report each path to the controller),
+ * fabric.verbose (print every terminal to standard output) and
+ * controller.reactive.
+ */
+public class Fabric {
+	private final MemoryTransport transport = new MemoryTransport();
+	private final boolean verbose = Boolean.getBoolean("fabric.verbose");
+	private final Controller controller;
+	private final int[] endUsers;
+	/** Router each end user is attached to, by end user index, 0 until known. */
+	private final AtomicIntegerArray attachedTo;
+	private final Map<Integer, Router> routers = new LinkedHashMap<Integer, Router>();
+	private final Transport[] endUserTransports;
+	private final LongAdder delivered = new LongAdder();
+	private final int trafficClass = Integer.getInteger("fabric.class", 0);
+	private final boolean telemetry = Boolean.getBoolean("fabric.telemetry");
+
+	Fabric(Topology topology, boolean reactive) throws IOException {
+		for (int i : topology.nodesOfType(Topology.ROUTER)) {
+			routers.put(i, new Router(i, terminal("Router " + i), transport::endpoint));
+		}
+		endUsers = topology.nodesOfType(Topology.END_USER);
+		attachedTo = new AtomicIntegerArray(endUsers.length);
+		endUserTransports = new Transport[endUsers.length];
+		for (int j = 0; j < endUsers.length; j++) {
+			int index = j;
+			endUserTransports[j] = transport.endpoint(endUsers[j], (from, data) -> receive(index, from, data));
+		}
+		controller = new Controller(terminal("Controller"), topology, true, reactive, transport::endpoint, routers);
+	}
+
+	private Terminal terminal(String name) {
+		return Terminal.headless(name, verbose ? System.out : null);
+	}
+
+	/*
+	 * Handle a packet for an end user: remember the router that introduces itself,
+	 * and count messages, reporting the path of any that carry telemetry.
+	 */
+	private void receive(int endUser, int from, ByteBuffer data) {
+		switch (data.get(0)) {
+		case Node.NODE_INITIALISE_ROUTER:
+			attachedTo.set(endUser, from);
+			break;
+		case Node.NODE_MESSAGE:
+			delivered.increment();
+			Telemetry path = Telemetry.read(data.array(), data.limit());
+			if (path != null) {
+				endUserTransports[endUser].send(Node.CONTROLLER_PORT, ByteBuffer.wrap(path.report()));
+			}
+		}
+	}
+
+	/*
+	 * Start the controller and wait until every router holds its table. Returns
+	 * the time taken in milliseconds.
+	 */
+	long bootstrap() throws Exception {
+		long start = System.nanoTime();
+		controller.start();
+		controller.fabricReady().join();
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+	}
+
+	/*
+	 * Send messages between random pairs of attached end users, then wait up to
+	 * the timeout for them to arrive. If failRouter is a router, it is stopped
+	 * once half the messages are sent. Returns the number sent.
+	 */
+	int run(int packets, long seed, long timeoutMillis, int failRouter) throws InterruptedException {
+		Random random = new Random(seed);
+		int sent = 0;
+		for (int i = 0; i < packets && endUsers.length > 1; i++) {
+			if (i == packets / 2 && routers.containsKey(failRouter)) {
+				routers.get(failRouter).shutdown();
+			}
+			int src = random.nextInt(endUsers.length);
+			int dst = random.nextInt(endUsers.length - 1);
+			if (dst >= src) {
+				dst++;
+			}
+			int router = attachedTo.get(src);
+			if (router == 0) {
+				continue;
+			}
+			byte[] data = new byte[Node.PACKETSIZE];
+			byte[] content = ("message " + i).getBytes();
+			data[0] = Node.NODE_MESSAGE;
+			data[1] = (byte) content.length;
+			Node.setInt(data, 2, endUsers[src]);
+			Node.setInt(data, 2 + Node.ID_LENGTH, endUsers[dst]);
+			data[Node.TRAFFIC_CLASS_OFFSET] = (byte) trafficClass;
+			System.arraycopy(content, 0, data, Node.MESSAGE_HEADER_LENGTH, content.length);
+			if (telemetry) {
+				Telemetry.start(data);
+			}
+			endUserTransports[src].send(router, ByteBuffer.wrap(data));
+			sent++;
+		}
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (delivered.sum() < sent && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		return sent;
+	}
+
+	/*
+	 * Return the mean of the latencies the controller holds for every pair of
+	 * end users that reported one, in nanoseconds.
+	 */
+	double meanPathLatency() {
+		double sum = 0;
+		int paths = 0;
+		for (int src : endUsers) {
+			for (int dst : endUsers) {
+				double latency = controller.pathLatency(src, dst);
+				if (latency > 0) {
+					sum += latency;
+					paths++;
+				}
+			}
+		}
+		return paths > 0 ? sum / paths : 0;
+	}
+
+	long delivered() {
+		return delivered.sum();
+	}
+
+	void shutdown() {
+		transport.shutdown();
+	}
+
+	public static void main(String[] args) {
+		try {
+			Topology topology = Topology.load(args.length > 0 ? args[0] : "topology.txt");
+			Fabric fabric = new Fabric(topology, Boolean.getBoolean("controller.reactive"));
+			int routers = topology.nodesOfType(Topology.ROUTER).length;
+			System.out.println("Bootstrapped " + routers + " routers in " + fabric.bootstrap() + " ms.");
+			int packets = Integer.getInteger("fabric.packets", 10000);
+			long start = System.nanoTime();
+			int sent = fabric.run(packets, Long.getLong("fabric.seed", 1), Long.getLong("fabric.timeout", 10000),
+					Integer.getInteger("fabric.fail", 0));
+			long elapsed = Math.max(1, System.nanoTime() - start);
+			System.out.println("Delivered " + fabric.delivered() + " of " + sent + " messages in "
+					+ TimeUnit.NANOSECONDS.toMillis(elapsed) + " ms, "
+					+ fabric.delivered() * TimeUnit.SECONDS.toNanos(1) / elapsed + " messages/s.");
+			if (fabric.telemetry) {
+				System.out.println(String.format("Mean path latency %.1f us.", fabric.meanPathLatency() / 1e3));
+			}
+			fabric.shutdown();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		System.exit(0);
+	}
+}
@@ -0,0 +1,226 @@
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * One row of a router's flow table. Packets from the source end user to the
+ * destination end user that arrive from the input node leave towards the
+ * output node. A row may instead name a group of output nodes with weights,
+ * when there is more than one shortest path; each flow then takes one member,
+ * picked by a hash of the flow, so its packets stay in order.
+ *
+ * The source, destination and input node may each be ANY, so that one entry
+ * stands for many flows, for example every source to one destination. When
+ * more than one entry matches a packet, the one with the highest priority
+ * wins.
+ *
+ * An entry may also name a backup node, a neighbour off the shortest paths
+ * whose own path to the destination does not lead back through this router,
+ * for the router to use at once if every output node is down.
+ *
+ * An entry may carry an idle timeout, after which it expires if no packet has
+ * matched it, and a hard timeout, after which it expires regardless; both are
+ * in seconds, 0 meaning none. On a router the entry also counts the packets
+ * and bytes it has sent to each output node.
+ */
+public class FlowEntry {
+	/** Matches any source, destination or input node. */
+	static final int ANY = 0;
+	static final int DEFAULT_PRIORITY = 0x8000;
+	static final int MAX_PRIORITY = 0xFFFF;
+
+	final int src;
+	final int dst;
+	final int inPort;
+	/** The first output node; the only one unless the entry is a group. */
+	final int outPort;
+	final int[] outPorts;
+	final int[] weights;
+	/** Neighbour to send to when every output node is down, 0 for none. */
+	final int backupPort;
+	final int priority;
+	final int idleTimeout;
+	final int hardTimeout;
+
+	/** Counters per output node and times kept by the router holding the entry. */
+	final LongAdder[] packetCounts;
+	final LongAdder[] byteCounts;
+	volatile long installed;
+	volatile long lastUsed;
+	private final int totalWeight;
+
+	FlowEntry(int src, int dst, int inPort, int outPort) {
+		this(src, dst, inPort, outPort, 0, 0);
+	}
+
+	FlowEntry(int src, int dst, int inPort, int outPort, int idleTimeout, int hardTimeout) {
+		this(src, dst, inPort, new int[] { outPort }, new int[] { 1 }, idleTimeout, hardTimeout);
+	}
+
+	FlowEntry(int src, int dst, int inPort, int[] outPorts, int[] weights, int idleTimeout, int hardTimeout) {
+		this(src, dst, inPort, outPorts, weights, 0, idleTimeout, hardTimeout);
+	}
+
+	FlowEntry(int src, int dst, int inPort, int[] outPorts, int[] weights, int backupPort, int idleTimeout,
+			int hardTimeout) {
+		this(src, dst, inPort, outPorts, weights, backupPort, DEFAULT_PRIORITY, idleTimeout, hardTimeout);
+	}
+
+	FlowEntry(int src, int dst, int inPort, int[] outPorts, int[] weights, int backupPort, int priority,
+			int idleTimeout, int hardTimeout) {
+		if (outPorts.length == 0 || outPorts.length != weights.length) {
+			throw new IllegalArgumentException("A group needs one weight per output node");
+		}
+		this.src = src;
+		this.dst = dst;
+		this.inPort = inPort;
+		this.outPort = outPorts[0];
+		this.outPorts = outPorts;
+		this.weights = weights;
+		this.backupPort = backupPort;
+		this.priority = priority;
+		this.idleTimeout = idleTimeout;
+		this.hardTimeout = hardTimeout;
+		int total = 0;
+		packetCounts = new LongAdder[outPorts.length];
+		byteCounts = new LongAdder[outPorts.length];
+		for (int i = 0; i < outPorts.length; i++) {
+			total += Math.max(weights[i], 1);
+			packetCounts[i] = new LongAdder();
+			byteCounts[i] = new LongAdder();
+		}
+		totalWeight = total;
+	}
+
+	/*
+	 * Return a copy of the entry with different timeouts.
+	 */
+	FlowEntry withTimeouts(int idleTimeout, int hardTimeout) {
+		return new FlowEntry(src, dst, inPort, outPorts, weights, backupPort, priority, idleTimeout, hardTimeout);
+	}
+
+	/*
+	 * Return a copy of the entry with a different priority.
+	 */
+	FlowEntry withPriority(int priority) {
+		return new FlowEntry(src, dst, inPort, outPorts, weights, backupPort, priority, idleTimeout, hardTimeout);
+	}
+
+	boolean isWildcard() {
+		return src == ANY || dst == ANY || inPort == ANY;
+	}
+
+	/*
+	 * True if the entry applies to a packet; ANY fields match anything.
+	 */
+	boolean matches(int src, int dst, int inPort) {
+		return (this.src == ANY || this.src == src) && (this.dst == ANY || this.dst == dst)
+				&& (this.inPort == ANY || this.inPort == inPort);
+	}
+
+	boolean isGroup() {
+		return outPorts.length > 1;
+	}
+
+	boolean hasTimeout() {
+		return idleTimeout > 0 || hardTimeout > 0;
+	}
+
+	/*
+	 * Return the index of the output node a packet from src to dst takes. The
+	 * flow, not the entry, is hashed, so one wildcard entry still spreads its
+	 * flows; the same flow always gets the same member, and flows spread across
+	 * the members in proportion to their weights.
+	 */
+	int select(int src, int dst) {
+		if (outPorts.length == 1) {
+			return 0;
+		}
+		int h = (src * 0x9E3779B9) ^ dst;
+		h *= 0x85EBCA6B;
+		h ^= h >>> 16;
+		int point = (h & 0x7FFFFFFF) % totalWeight;
+		for (int i = 0; i < weights.length; i++) {
+			point -= Math.max(weights[i], 1);
+			if (point < 0) {
+				return i;
+			}
+		}
+		return 0;
+	}
+
+	/*
+	 * Record a packet sent to one output node of the entry, or to the backup
+	 * node when member is -1; packets to the backup node only keep the entry
+	 * from going idle.
+	 */
+	void count(int member, int length, long now) {
+		if (member >= 0) {
+			packetCounts[member].increment();
+			byteCounts[member].add(length);
+		}
+		if (idleTimeout > 0) {
+			lastUsed = now;
+		}
+	}
+
+	long packetCount() {
+		long sum = 0;
+		for (LongAdder count : packetCounts) {
+			sum += count.sum();
+		}
+		return sum;
+	}
+
+	long byteCount() {
+		long sum = 0;
+		for (LongAdder count : byteCounts) {
+			sum += count.sum();
+		}
+		return sum;
+	}
+
+	/*
+	 * Return the time in milliseconds at which the entry expires if no more
+	 * packets match it, or Long.MAX_VALUE if it never does.
+	 */
+	long expiry() {
+		long idleExpiry = idleTimeout > 0 ? lastUsed + idleTimeout * 1000L : Long.MAX_VALUE;
+		long hardExpiry = hardTimeout > 0 ? installed + hardTimeout * 1000L : Long.MAX_VALUE;
+		return Math.min(idleExpiry, hardExpiry);
+	}
+
+	boolean hardExpired(long now) {
+		return hardTimeout > 0 && installed + hardTimeout * 1000L <= now;
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		if (!(other instanceof FlowEntry)) {
+			return false;
+		}
+		FlowEntry entry = (FlowEntry) other;
+		return src == entry.src && dst == entry.dst && inPort == entry.inPort
+				&& Arrays.equals(outPorts, entry.outPorts) && Arrays.equals(weights, entry.weights)
+				&& backupPort == entry.backupPort && priority == entry.priority && idleTimeout == entry.idleTimeout
+				&& hardTimeout == entry.hardTimeout;
+	}
+
+	@Override
+	public int hashCode() {
+		return ((src * 31 + dst) * 31 + inPort) * 31 + Arrays.hashCode(outPorts);
+	}
+
+	@Override
+	public String toString() {
+		String out = isGroup() ? Arrays.toString(outPorts) + " weights=" + Arrays.toString(weights)
+				: String.valueOf(outPort);
+		return "{src=" + field(src) + ", dst=" + field(dst) + ", in=" + field(inPort) + ", out=" + out
+				+ (priority != DEFAULT_PRIORITY ? ", priority=" + priority : "")
+				+ (backupPort != 0 ? ", backup=" + backupPort : "")
+				+ (hasTimeout() ? ", idle=" + idleTimeout + ", hard=" + hardTimeout : "") + "}";
+	}
+
+	private static String field(int id) {
+		return id == ANY ? "*" : String.valueOf(id);
+	}
+}
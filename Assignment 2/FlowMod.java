@@ -0,0 +1,322 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One add, modify or delete operation on a router's flow table, and the
+ * FLOW_MOD datagrams that carry batches of them. A batch takes the table from
+ * one version to the next and may span several datagrams; the last one carries
+ * the barrier flag, and the router applies the batch and acknowledges the
+ * version only once every part has arrived.
+ *
+ * Layout; byte 0 = type, byte 1 = flags, bytes 2-3 = part number within the
+ * batch, bytes 4-7 = table version, byte 8 = number of operations, then per
+ * operation:
+ * command, source, destination, input node and backup node (four bytes each,
+ * 0 for any), priority (two bytes), idle timeout (two bytes), hard timeout
+ * (two bytes), number of output nodes,
+ * and five bytes per output node: node (four bytes) and weight.
+ *
+ * The high bits of the command byte mark fields left out of the operation:
+ * a source or input node of ANY, no backup node, or no timeouts. A wildcard
+ * entry for one destination with one output node and no backup then takes 13
+ * bytes rather than 29.
+ */
+public class FlowMod {
+	static final byte ADD = 1;
+	static final byte MODIFY = 2;
+	static final byte DELETE = 3;
+	private static final int COMMAND_MASK = 0x0F;
+
+	/** Set in the command byte when the field is left out of the operation. */
+	private static final int NO_SRC = 0x10;
+	private static final int NO_IN_PORT = 0x20;
+	private static final int NO_BACKUP = 0x40;
+	private static final int NO_TIMEOUTS = 0x80;
+
+	/** The batch replaces the whole table rather than changing it. */
+	static final byte FLAG_REPLACE = 1;
+	/** The last datagram of a batch. */
+	static final byte FLAG_BARRIER = 2;
+
+	static final int HEADER_LENGTH = 9;
+	/** Length of an operation before its output nodes, with every field present. */
+	static final int OPERATION_LENGTH = 2 + 4 * Node.ID_LENGTH + 6;
+	static final int MEMBER_LENGTH = Node.ID_LENGTH + 1;
+
+	final byte command;
+	final FlowEntry entry;
+
+	FlowMod(byte command, FlowEntry entry) {
+		this.command = command;
+		this.entry = entry;
+	}
+
+	/*
+	 * Return the operations that turn one table into another. Entries are matched
+	 * on source, destination, input node and priority.
+	 */
+	static List<FlowMod> diff(List<FlowEntry> from, List<FlowEntry> to) {
+		Map<Match, FlowEntry> old = index(from);
+		List<FlowMod> operations = new ArrayList<FlowMod>();
+		for (FlowEntry entry : to) {
+			FlowEntry previous = old.remove(matchKey(entry));
+			if (previous == null) {
+				operations.add(new FlowMod(ADD, entry));
+			} else if (!previous.equals(entry)) {
+				operations.add(new FlowMod(MODIFY, entry));
+			}
+		}
+		for (FlowEntry entry : old.values()) {
+			operations.add(new FlowMod(DELETE, entry));
+		}
+		return operations;
+	}
+
+	/*
+	 * Split a batch into FLOW_MOD datagrams, packing as many operations into each
+	 * as fit. A batch with no operations is still sent, as one datagram, so that
+	 * the router acknowledges the version. Priorities and timeouts must fit in
+	 * two bytes, and a group in one datagram.
+	 */
+	static List<byte[]> encode(int version, boolean replace, List<FlowMod> operations) {
+		List<byte[]> packets = new ArrayList<byte[]>();
+		int part = 0;
+		int start = 0;
+		do {
+			int length = HEADER_LENGTH;
+			int end = start;
+			while (end < operations.size() && length + operations.get(end).length() <= Node.PACKETSIZE) {
+				length += operations.get(end++).length();
+			}
+			if (end == start && end < operations.size()) {
+				throw new IllegalArgumentException("Group too large for one datagram: " + operations.get(end).entry);
+			}
+			byte[] data = new byte[length];
+			data[0] = Node.FLOW_MOD;
+			data[1] = (byte) ((replace ? FLAG_REPLACE : 0) | (end == operations.size() ? FLAG_BARRIER : 0));
+			data[2] = (byte) (part >>> 8);
+			data[3] = (byte) part++;
+			setVersion(data, version);
+			data[8] = (byte) (end - start);
+			int offset = HEADER_LENGTH;
+			for (int i = start; i < end; i++) {
+				FlowEntry entry = operations.get(i).entry;
+				int omitted = operations.get(i).omitted();
+				data[offset++] = (byte) (operations.get(i).command | omitted);
+				if ((omitted & NO_SRC) == 0) {
+					Node.setInt(data, offset, entry.src);
+					offset += Node.ID_LENGTH;
+				}
+				Node.setInt(data, offset, entry.dst);
+				offset += Node.ID_LENGTH;
+				if ((omitted & NO_IN_PORT) == 0) {
+					Node.setInt(data, offset, entry.inPort);
+					offset += Node.ID_LENGTH;
+				}
+				if ((omitted & NO_BACKUP) == 0) {
+					Node.setInt(data, offset, entry.backupPort);
+					offset += Node.ID_LENGTH;
+				}
+				data[offset++] = (byte) (entry.priority >>> 8);
+				data[offset++] = (byte) entry.priority;
+				if ((omitted & NO_TIMEOUTS) == 0) {
+					data[offset++] = (byte) (entry.idleTimeout >>> 8);
+					data[offset++] = (byte) entry.idleTimeout;
+					data[offset++] = (byte) (entry.hardTimeout >>> 8);
+					data[offset++] = (byte) entry.hardTimeout;
+				}
+				data[offset++] = (byte) entry.outPorts.length;
+				for (int j = 0; j < entry.outPorts.length; j++) {
+					Node.setInt(data, offset, entry.outPorts[j]);
+					offset += Node.ID_LENGTH;
+					data[offset++] = (byte) entry.weights[j];
+				}
+			}
+			packets.add(data);
+			start = end;
+		} while (start < operations.size());
+		return packets;
+	}
+
+	/*
+	 * Return the operations carried by one FLOW_MOD datagram, up to the first
+	 * one cut short.
+	 */
+	static List<FlowMod> decode(byte[] data) {
+		int count = data[8] & 0xFF;
+		List<FlowMod> operations = new ArrayList<FlowMod>(count);
+		int offset = HEADER_LENGTH;
+		for (int i = 0; i < count && offset < data.length; i++) {
+			int omitted = data[offset] & ~COMMAND_MASK;
+			int length = length(omitted, 0);
+			if (offset + length > data.length) {
+				break;
+			}
+			int members = data[offset + length - 1] & 0xFF;
+			if (members == 0 || offset + length(omitted, members) > data.length) {
+				break;
+			}
+			byte command = (byte) (data[offset++] & COMMAND_MASK);
+			int src = FlowEntry.ANY;
+			if ((omitted & NO_SRC) == 0) {
+				src = Node.getInt(data, offset);
+				offset += Node.ID_LENGTH;
+			}
+			int dst = Node.getInt(data, offset);
+			offset += Node.ID_LENGTH;
+			int inPort = FlowEntry.ANY;
+			if ((omitted & NO_IN_PORT) == 0) {
+				inPort = Node.getInt(data, offset);
+				offset += Node.ID_LENGTH;
+			}
+			int backupPort = 0;
+			if ((omitted & NO_BACKUP) == 0) {
+				backupPort = Node.getInt(data, offset);
+				offset += Node.ID_LENGTH;
+			}
+			int priority = getShort(data, offset);
+			offset += 2;
+			int idleTimeout = 0;
+			int hardTimeout = 0;
+			if ((omitted & NO_TIMEOUTS) == 0) {
+				idleTimeout = getShort(data, offset);
+				hardTimeout = getShort(data, offset + 2);
+				offset += 4;
+			}
+			offset++;
+			int[] outPorts = new int[members];
+			int[] weights = new int[members];
+			for (int j = 0; j < members; j++) {
+				outPorts[j] = Node.getInt(data, offset);
+				weights[j] = data[offset + Node.ID_LENGTH] & 0xFF;
+				offset += MEMBER_LENGTH;
+			}
+			operations.add(new FlowMod(command, new FlowEntry(src, dst, inPort, outPorts, weights, backupPort,
+					priority, idleTimeout, hardTimeout)));
+		}
+		return operations;
+	}
+
+	/*
+	 * Return the acknowledgement a router sends once it has applied a version.
+	 */
+	static byte[] ack(int version) {
+		byte[] data = new byte[HEADER_LENGTH];
+		data[0] = Node.FLOW_MOD;
+		data[1] = FLAG_BARRIER;
+		setVersion(data, version);
+		return data;
+	}
+
+	private int length() {
+		return length(omitted(), entry.outPorts.length);
+	}
+
+	/*
+	 * Return the flags of the fields this operation can leave out.
+	 */
+	private int omitted() {
+		return (entry.src == FlowEntry.ANY ? NO_SRC : 0) | (entry.inPort == FlowEntry.ANY ? NO_IN_PORT : 0)
+				| (entry.backupPort == 0 ? NO_BACKUP : 0) | (entry.hasTimeout() ? 0 : NO_TIMEOUTS);
+	}
+
+	/*
+	 * Return the length of an operation with the given fields left out and
+	 * number of output nodes.
+	 */
+	private static int length(int omitted, int members) {
+		int length = OPERATION_LENGTH + members * MEMBER_LENGTH
+				- Integer.bitCount(omitted & (NO_SRC | NO_IN_PORT | NO_BACKUP)) * Node.ID_LENGTH;
+		return (omitted & NO_TIMEOUTS) != 0 ? length - 4 : length;
+	}
+
+	/*
+	 * Apply a batch to a set of entries and return the entries of the new set.
+	 */
+	static FlowEntry[] apply(FlowEntry[] entries, boolean replace, List<FlowMod> operations) {
+		Map<Match, FlowEntry> table = new LinkedHashMap<Match, FlowEntry>(
+				(replace ? operations.size() : entries.length + operations.size()) * 4 / 3 + 1);
+		if (!replace) {
+			for (FlowEntry entry : entries) {
+				table.putIfAbsent(matchKey(entry), entry);
+			}
+		}
+		for (FlowMod operation : operations) {
+			if (operation.command == DELETE) {
+				table.remove(matchKey(operation.entry));
+			} else {
+				table.put(matchKey(operation.entry), operation.entry);
+			}
+		}
+		return table.values().toArray(new FlowEntry[0]);
+	}
+
+	private static int getShort(byte[] data, int offset) {
+		return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+	}
+
+	static byte getFlags(byte[] data) {
+		return data[1];
+	}
+
+	static int getPart(byte[] data) {
+		return getShort(data, 2);
+	}
+
+	static int getVersion(byte[] data) {
+		return Node.getInt(data, 4);
+	}
+
+	private static void setVersion(byte[] data, int version) {
+		Node.setInt(data, 4, version);
+	}
+
+	private static Map<Match, FlowEntry> index(List<FlowEntry> entries) {
+		Map<Match, FlowEntry> result = new LinkedHashMap<Match, FlowEntry>();
+		for (FlowEntry entry : entries) {
+			result.putIfAbsent(matchKey(entry), entry);
+		}
+		return result;
+	}
+
+	private static Match matchKey(FlowEntry entry) {
+		return new Match(entry.src, entry.dst, entry.inPort, entry.priority);
+	}
+
+	/**
+	 * The fields an entry is matched on; three ids do not fit in one long.
+	 */
+	private static class Match {
+		final int src;
+		final int dst;
+		final int inPort;
+		final int priority;
+
+		Match(int src, int dst, int inPort, int priority) {
+			this.src = src;
+			this.dst = dst;
+			this.inPort = inPort;
+			this.priority = priority;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof Match)) {
+				return false;
+			}
+			Match match = (Match) other;
+			return src == match.src && dst == match.dst && inPort == match.inPort && priority == match.priority;
+		}
+
+		@Override
+		public int hashCode() {
+			// Ids are small and close together, so mix them rather than sum them.
+			int h = ((src * 0x9E3779B9 + dst) * 0x9E3779B9 + inPort) * 0x9E3779B9 + priority;
+			h = (h ^ (h >>> 16)) * 0x85EBCA6B;
+			h = (h ^ (h >>> 13)) * 0xC2B2AE35;
+			return h ^ (h >>> 16);
+		}
+	}
+}
@@ -0,0 +1,107 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The counters of one flow entry as reported in a STATS_REPLY, and the
+ * STATS_REQUEST and STATS_REPLY datagrams that carry them. A router answers a
+ * request with every entry of its table, split across as many replies as it
+ * needs; the last one carries the final flag. A group entry is reported once
+ * per output node, with that node's share of the counts.
+ *
+ * Layout; byte 0 = type, byte 1 = flags, bytes 2-3 = part number, bytes 4-7 =
+ * request id, byte 8 = number of entries, then 32 bytes per entry: source,
+ * destination, input node and output node (four bytes each), packet count
+ * (eight bytes) and byte count (eight bytes). A request is the header alone.
+ */
+public class FlowStats {
+	/** The last reply to a request. */
+	static final byte FLAG_FINAL = 1;
+
+	static final int HEADER_LENGTH = 9;
+	static final int ENTRY_LENGTH = 4 * Node.ID_LENGTH + 16;
+	static final int ENTRIES_PER_PACKET = (Node.PACKETSIZE - HEADER_LENGTH) / ENTRY_LENGTH;
+
+	final int src;
+	final int dst;
+	final int inPort;
+	final int outPort;
+	final long packets;
+	final long bytes;
+
+	FlowStats(int src, int dst, int inPort, int outPort, long packets, long bytes) {
+		this.src = src;
+		this.dst = dst;
+		this.inPort = inPort;
+		this.outPort = outPort;
+		this.packets = packets;
+		this.bytes = bytes;
+	}
+
+	static byte[] request(int id) {
+		return header(Node.STATS_REQUEST, FLAG_FINAL, 0, id, 0).array();
+	}
+
+	/*
+	 * Read the counters of every entry and split them into replies. The
+	 * counters are read without stopping the forwarding path, so each is exact
+	 * but they are not all from the same instant.
+	 */
+	static List<byte[]> reply(int id, FlowEntry[] entries) {
+		List<FlowStats> stats = new ArrayList<FlowStats>(entries.length);
+		for (FlowEntry entry : entries) {
+			for (int i = 0; i < entry.outPorts.length; i++) {
+				stats.add(new FlowStats(entry.src, entry.dst, entry.inPort, entry.outPorts[i],
+						entry.packetCounts[i].sum(), entry.byteCounts[i].sum()));
+			}
+		}
+		List<byte[]> packets = new ArrayList<byte[]>();
+		int part = 0;
+		int start = 0;
+		do {
+			int count = Math.min(ENTRIES_PER_PACKET, stats.size() - start);
+			ByteBuffer data = header(Node.STATS_REPLY, start + count == stats.size() ? FLAG_FINAL : 0, part++, id,
+					count);
+			for (FlowStats entry : stats.subList(start, start + count)) {
+				data.putInt(entry.src).putInt(entry.dst).putInt(entry.inPort).putInt(entry.outPort);
+				data.putLong(entry.packets).putLong(entry.bytes);
+			}
+			packets.add(data.array());
+			start += count;
+		} while (start < stats.size());
+		return packets;
+	}
+
+	/*
+	 * Return the counters carried by one STATS_REPLY datagram.
+	 */
+	static List<FlowStats> decode(byte[] data) {
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		int count = Math.min(data[8] & 0xFF, (data.length - HEADER_LENGTH) / ENTRY_LENGTH);
+		List<FlowStats> stats = new ArrayList<FlowStats>(count);
+		buffer.position(HEADER_LENGTH);
+		for (int i = 0; i < count; i++) {
+			stats.add(new FlowStats(buffer.getInt(), buffer.getInt(), buffer.getInt(), buffer.getInt(),
+					buffer.getLong(), buffer.getLong()));
+		}
+		return stats;
+	}
+
+	static boolean isFinal(byte[] data) {
+		return (data[1] & FLAG_FINAL) != 0;
+	}
+
+	static int getPart(byte[] data) {
+		return ByteBuffer.wrap(data).getShort(2) & 0xFFFF;
+	}
+
+	static int getId(byte[] data) {
+		return ByteBuffer.wrap(data).getInt(4);
+	}
+
+	private static ByteBuffer header(byte type, int flags, int part, int id, int count) {
+		ByteBuffer data = ByteBuffer.allocate(HEADER_LENGTH + count * ENTRY_LENGTH);
+		data.put(type).put((byte) flags).putShort((short) part).putInt(id).put((byte) count);
+		return data;
+	}
+}
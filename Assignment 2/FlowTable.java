@@ -0,0 +1,238 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Read-only flow table searched as a tuple space. Entries are grouped by which
+ * of source, destination and input node they match on rather than leave as
+ * ANY, and each group is indexed by an open-addressing hash table on those
+ * fields. A lookup probes the groups from the highest priority they hold down
+ * and stops once no group left can beat the best entry found, so it takes at
+ * most eight probes however many entries there are. A table of exact entries
+ * is one group, and a lookup is a few array reads that never allocate.
+ *
+ * A batch of changes gives a new table that shares every group the batch does
+ * not touch, so a router replaces its table as a whole and readers need no
+ * lock.
+ */
+public class FlowTable {
+	static final FlowTable EMPTY = new FlowTable(new FlowEntry[0]);
+
+	/** Bits of a group's fields: the ones it matches on. */
+	private static final int SRC = 1;
+	private static final int DST = 2;
+	private static final int IN = 4;
+	private static final int GROUPS = 8;
+
+	/** Groups by their fields, null where there are no entries. */
+	private final Group[] byFields;
+	/** The same groups in the order a lookup searches them. */
+	private final Group[] searchOrder;
+
+	/*
+	 * Build the index for a set of entries. If two entries have the same match
+	 * and priority the first one wins.
+	 */
+	FlowTable(FlowEntry[] entries) {
+		this(index(entries));
+	}
+
+	private FlowTable(Group[] byFields) {
+		this.byFields = byFields;
+		searchOrder = Arrays.stream(byFields).filter(group -> group != null)
+				.sorted(Comparator.comparingInt((Group group) -> -group.maxPriority)
+						.thenComparing(FlowTable::precedence))
+				.toArray(Group[]::new);
+	}
+
+	private static Group[] index(FlowEntry[] entries) {
+		List<List<FlowEntry>> split = new ArrayList<List<FlowEntry>>();
+		for (int fields = 0; fields < GROUPS; fields++) {
+			split.add(new ArrayList<FlowEntry>());
+		}
+		for (FlowEntry entry : entries) {
+			split.get(fields(entry)).add(entry);
+		}
+		Group[] groups = new Group[GROUPS];
+		for (int fields = 0; fields < GROUPS; fields++) {
+			if (!split.get(fields).isEmpty()) {
+				groups[fields] = new Group(fields, split.get(fields).toArray(new FlowEntry[0]));
+			}
+		}
+		return groups;
+	}
+
+	/*
+	 * Return the table a batch of FLOW_MOD operations turns this one into. Only
+	 * the groups the batch changes are built again; the others are shared.
+	 */
+	FlowTable apply(boolean replace, List<FlowMod> operations) {
+		List<List<FlowMod>> split = new ArrayList<List<FlowMod>>();
+		for (int fields = 0; fields < GROUPS; fields++) {
+			split.add(new ArrayList<FlowMod>());
+		}
+		for (FlowMod operation : operations) {
+			split.get(fields(operation.entry)).add(operation);
+		}
+		Group[] groups = new Group[GROUPS];
+		for (int fields = 0; fields < GROUPS; fields++) {
+			Group old = replace ? null : byFields[fields];
+			if (split.get(fields).isEmpty()) {
+				groups[fields] = old;
+				continue;
+			}
+			FlowEntry[] entries = FlowMod.apply(old == null ? new FlowEntry[0] : old.entries, false,
+					split.get(fields));
+			groups[fields] = entries.length == 0 ? null : new Group(fields, entries);
+		}
+		return new FlowTable(groups);
+	}
+
+	/*
+	 * Return the entry for a packet, or null if there is none. Of the entries
+	 * that match, the one with the highest priority wins; on equal priorities,
+	 * the one that matches on more fields.
+	 */
+	FlowEntry lookup(int src, int dst, int inPort) {
+		FlowEntry best = null;
+		Group bestGroup = null;
+		for (Group group : searchOrder) {
+			if (best != null && group.maxPriority < best.priority) {
+				break;
+			}
+			FlowEntry entry = group.lookup(src, dst, inPort);
+			if (entry != null && (best == null || entry.priority > best.priority
+					|| entry.priority == best.priority && precedence(group) < precedence(bestGroup))) {
+				best = entry;
+				bestGroup = group;
+			}
+		}
+		return best;
+	}
+
+	/*
+	 * True if this very entry is in the table, not just one with the same match.
+	 */
+	boolean contains(FlowEntry entry) {
+		Group group = byFields[fields(entry)];
+		return group != null && group.contains(entry);
+	}
+
+	/*
+	 * Return every entry, grouped by the fields they match on.
+	 */
+	FlowEntry[] entries() {
+		List<FlowEntry> entries = new ArrayList<FlowEntry>(size());
+		for (Group group : searchOrder) {
+			entries.addAll(Arrays.asList(group.entries));
+		}
+		return entries.toArray(new FlowEntry[0]);
+	}
+
+	int size() {
+		int size = 0;
+		for (Group group : searchOrder) {
+			size += group.entries.length;
+		}
+		return size;
+	}
+
+	private static int fields(FlowEntry entry) {
+		return (entry.src != FlowEntry.ANY ? SRC : 0) | (entry.dst != FlowEntry.ANY ? DST : 0)
+				| (entry.inPort != FlowEntry.ANY ? IN : 0);
+	}
+
+	/*
+	 * Rank of a group among groups of equal priority, lowest first: more fields
+	 * matched comes first, then a fixed order.
+	 */
+	private static int precedence(Group group) {
+		return (3 - Integer.bitCount(group.fields)) * GROUPS + (GROUPS - 1 - group.fields);
+	}
+
+	private static long key(int src, int dst) {
+		return ((long) src << 32) | (dst & 0xFFFFFFFFL);
+	}
+
+	private static int hash(long key, int inPort) {
+		long h = (key ^ inPort * 0x9E3779B9L) * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	/**
+	 * The entries that match on the same fields, indexed on those fields with
+	 * the others taken as ANY. Where entries share a match, the slot holds the
+	 * one with the highest priority and the rest are shadowed: no packet can
+	 * reach them, but they stay in the table until removed.
+	 */
+	private static class Group {
+		final int fields;
+		final FlowEntry[] entries;
+		final int maxPriority;
+		private final long[] keys;
+		private final int[] inPorts;
+		private final FlowEntry[] slots;
+		private final int mask;
+		private final List<FlowEntry> shadowed = new ArrayList<FlowEntry>();
+
+		Group(int fields, FlowEntry[] entries) {
+			this.fields = fields;
+			this.entries = entries;
+			int capacity = Integer.highestOneBit(Math.max(8, entries.length * 2) - 1) << 1;
+			keys = new long[capacity];
+			inPorts = new int[capacity];
+			slots = new FlowEntry[capacity];
+			mask = capacity - 1;
+			int max = 0;
+			for (FlowEntry entry : entries) {
+				max = Math.max(max, entry.priority);
+				long key = key(entry.src, entry.dst);
+				int slot = hash(key, entry.inPort) & mask;
+				while (slots[slot] != null && !(keys[slot] == key && inPorts[slot] == entry.inPort)) {
+					slot = (slot + 1) & mask;
+				}
+				if (slots[slot] == null) {
+					keys[slot] = key;
+					inPorts[slot] = entry.inPort;
+					slots[slot] = entry;
+				} else if (entry.priority > slots[slot].priority) {
+					shadowed.add(slots[slot]);
+					slots[slot] = entry;
+				} else {
+					shadowed.add(entry);
+				}
+			}
+			maxPriority = max;
+		}
+
+		FlowEntry lookup(int src, int dst, int inPort) {
+			return find(key((fields & SRC) != 0 ? src : FlowEntry.ANY, (fields & DST) != 0 ? dst : FlowEntry.ANY),
+					(fields & IN) != 0 ? inPort : FlowEntry.ANY);
+		}
+
+		boolean contains(FlowEntry entry) {
+			if (find(key(entry.src, entry.dst), entry.inPort) == entry) {
+				return true;
+			}
+			for (FlowEntry other : shadowed) {
+				if (other == entry) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private FlowEntry find(long key, int inPort) {
+			int slot = hash(key, inPort) & mask;
+			FlowEntry entry;
+			while ((entry = slots[slot]) != null) {
+				if (keys[slot] == key && inPorts[slot] == inPort) {
+					return entry;
+				}
+				slot = (slot + 1) & mask;
+			}
+			return null;
+		}
+	}
+}
@@ -0,0 +1,200 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Splits a message too long for one datagram into fragments, and puts them
+ * back together at the destination end user. A fragment is a NODE_MESSAGE
+ * with the fragment flag set in its traffic class byte; routers match and
+ * forward it on its source and destination like any other message and never
+ * look inside. Every fragment of a message is no longer than the MTU it was
+ * split for.
+ *
+ * Fragment content layout; bytes 0-3 = message id, unique per source, bytes
+ * 4-5 = index of the fragment, bytes 6-7 = number of fragments, remaining
+ * bytes = the fragment's share of the message.
+ *
+ * Reassembly holds at most a set number of partial messages and bytes. When
+ * a new message would go over either bound, the oldest partial message is
+ * dropped, as is any that has waited longer than the timeout for its missing
+ * fragments.
+ */
+public class Fragments {
+	/** Set in the traffic class byte of a fragment. */
+	static final int FLAG = 0x20;
+	static final int HEADER_LENGTH = 8;
+	/** Fragment count is two bytes on the wire. */
+	static final int MAX_FRAGMENTS = 0xFFFF;
+
+	private final int maxMessages;
+	private final long maxBytes;
+	private final long timeoutNanos;
+	/** Partial messages, oldest first, by source and message id. */
+	private final LinkedHashMap<Long, Partial> partials = new LinkedHashMap<Long, Partial>();
+	private long heldBytes;
+	private long dropped;
+
+	/*
+	 * Create a reassembly buffer for up to maxMessages partial messages holding
+	 * maxBytes between them, each given up on after timeoutMillis.
+	 */
+	Fragments(int maxMessages, long maxBytes, long timeoutMillis) {
+		this.maxMessages = Math.max(maxMessages, 1);
+		this.maxBytes = maxBytes;
+		this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+	}
+
+	static boolean isFragment(byte[] message) {
+		return (message[Node.TRAFFIC_CLASS_OFFSET] & FLAG) != 0;
+	}
+
+	/*
+	 * Return the largest part of a message one fragment of a datagram mtu bytes
+	 * long can carry.
+	 */
+	static int payloadLength(int mtu) {
+		return Math.min(mtu - Node.MESSAGE_HEADER_LENGTH, Node.MAX_CONTENT_LENGTH) - HEADER_LENGTH;
+	}
+
+	/*
+	 * Split content into fragments of a message from src to dst, each a
+	 * datagram mtu bytes long so any room after the content is left for
+	 * telemetry.
+	 */
+	static List<byte[]> split(int src, int dst, int trafficClass, int messageId, byte[] content, int mtu) {
+		int payload = payloadLength(mtu);
+		int count = Math.max(1, (content.length + payload - 1) / payload);
+		if (payload <= 0 || count > MAX_FRAGMENTS) {
+			throw new IllegalArgumentException(
+					"A message of " + content.length + " bytes cannot be split for an MTU of " + mtu);
+		}
+		List<byte[]> fragments = new ArrayList<byte[]>(count);
+		for (int i = 0; i < count; i++) {
+			int start = i * payload;
+			int length = Math.min(payload, content.length - start);
+			byte[] data = new byte[mtu];
+			data[0] = Node.NODE_MESSAGE;
+			data[1] = (byte) (HEADER_LENGTH + length);
+			Node.setInt(data, 2, src);
+			Node.setInt(data, 2 + Node.ID_LENGTH, dst);
+			data[Node.TRAFFIC_CLASS_OFFSET] = (byte) (trafficClass | FLAG);
+			int offset = Node.MESSAGE_HEADER_LENGTH;
+			Node.setInt(data, offset, messageId);
+			setShort(data, offset + 4, i);
+			setShort(data, offset + 6, count);
+			System.arraycopy(content, start, data, offset + HEADER_LENGTH, length);
+			fragments.add(data);
+		}
+		return fragments;
+	}
+
+	/*
+	 * Add a fragment. Returns the whole content of its message if this was the
+	 * last fragment missing, or null.
+	 */
+	synchronized byte[] add(byte[] message) {
+		long now = System.nanoTime();
+		expire(now);
+		int offset = Node.MESSAGE_HEADER_LENGTH;
+		int length = (message[1] & 0xFF) - HEADER_LENGTH;
+		int index = getShort(message, offset + 4);
+		int count = getShort(message, offset + 6);
+		if (length < 0 || count == 0 || index >= count) {
+			return null;
+		}
+		long key = ((long) Node.getInt(message, 2) << 32) | (Node.getInt(message, offset) & 0xFFFFFFFFL);
+		Partial partial = partials.get(key);
+		if (partial == null) {
+			if (count == 1) {
+				return copy(message, offset + HEADER_LENGTH, length);
+			}
+			partial = new Partial(count, now);
+			partials.put(key, partial);
+		}
+		if (partial.fragments.length != count || partial.fragments[index] != null) {
+			return null;
+		}
+		partial.fragments[index] = copy(message, offset + HEADER_LENGTH, length);
+		partial.received++;
+		partial.bytes += length;
+		heldBytes += length;
+		if (partial.received == count) {
+			partials.remove(key);
+			heldBytes -= partial.bytes;
+			return partial.join();
+		}
+		while (partials.size() > maxMessages || heldBytes > maxBytes && partials.size() > 1) {
+			dropOldest();
+		}
+		return null;
+	}
+
+	/*
+	 * Return the number of partial messages dropped so far.
+	 */
+	synchronized long dropped() {
+		return dropped;
+	}
+
+	private void expire(long now) {
+		Iterator<Partial> oldest = partials.values().iterator();
+		while (oldest.hasNext()) {
+			Partial partial = oldest.next();
+			if (now - partial.started < timeoutNanos) {
+				return;
+			}
+			oldest.remove();
+			heldBytes -= partial.bytes;
+			dropped++;
+		}
+	}
+
+	private void dropOldest() {
+		Iterator<Partial> oldest = partials.values().iterator();
+		Partial partial = oldest.next();
+		oldest.remove();
+		heldBytes -= partial.bytes;
+		dropped++;
+	}
+
+	private static byte[] copy(byte[] data, int offset, int length) {
+		byte[] copy = new byte[Math.max(0, Math.min(length, data.length - offset))];
+		System.arraycopy(data, offset, copy, 0, copy.length);
+		return copy;
+	}
+
+	private static int getShort(byte[] data, int offset) {
+		return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+	}
+
+	private static void setShort(byte[] data, int offset, int value) {
+		data[offset] = (byte) (value >>> 8);
+		data[offset + 1] = (byte) value;
+	}
+
+	/** The fragments of one message received so far. */
+	private static class Partial {
+		final byte[][] fragments;
+		final long started;
+		int received;
+		long bytes;
+
+		Partial(int count, long started) {
+			fragments = new byte[count][];
+			this.started = started;
+		}
+
+		byte[] join() {
+			byte[] content = new byte[(int) bytes];
+			int offset = 0;
+			for (byte[] fragment : fragments) {
+				System.arraycopy(fragment, 0, content, offset, fragment.length);
+				offset += fragment.length;
+			}
+			return content;
+		}
+	}
+}
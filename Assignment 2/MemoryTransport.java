@@ -0,0 +1,84 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Connects nodes in the same JVM without sockets. Each node attaches an
+ * endpoint; a datagram sent to a node is copied and handed to its receiver on
+ * a virtual thread, or a pool thread sized to the processors where there are
+ * no virtual threads, one datagram per node at a time in the order they were
+ * sent. Thousands of nodes share a small number of threads.
+ * Datagrams to nodes that are not attached are dropped and the send returns
+ * false, as UdpTransport does for a node with no address. Once a node closes
+ * its endpoint it can no longer send, and datagrams still queued for it are
+ * dropped rather than handed to its receiver.
+ */
+public class MemoryTransport {
+	private final ConcurrentHashMap<Integer, Transport.Receiver> receivers =
+			new ConcurrentHashMap<Integer, Transport.Receiver>();
+	private final OrderedDispatcher dispatcher = new OrderedDispatcher(
+			OrderedDispatcher.newPerTaskExecutor(Runtime.getRuntime().availableProcessors()));
+	private final LongAdder sent = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+
+	/*
+	 * Attach a node. Usable as a Transport.Factory.
+	 */
+	Transport endpoint(int id, Transport.Receiver receiver) {
+		if (receivers.putIfAbsent(id, receiver) != null) {
+			throw new IllegalStateException("Node " + id + " is already attached");
+		}
+		return new Transport() {
+			private volatile boolean closed;
+
+			@Override
+			public boolean send(int to, ByteBuffer data) {
+				return !closed && deliver(id, to, data);
+			}
+
+			@Override
+			public void close() {
+				closed = true;
+				receivers.remove(id, receiver);
+			}
+		};
+	}
+
+	private boolean deliver(int from, int to, ByteBuffer data) {
+		sent.increment();
+		Transport.Receiver receiver = receivers.get(to);
+		if (receiver == null) {
+			dropped.increment();
+			return false;
+		}
+		byte[] copy = new byte[data.remaining()];
+		data.get(copy);
+		try {
+			dispatcher.execute(to, () -> {
+				if (receivers.get(to) == receiver) {
+					receiver.receive(from, ByteBuffer.wrap(copy));
+				} else {
+					dropped.increment();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// Shut down; keepalives may still be sent.
+			dropped.increment();
+			return false;
+		}
+		return true;
+	}
+
+	long sent() {
+		return sent.sum();
+	}
+
+	long dropped() {
+		return dropped.sum();
+	}
+
+	void shutdown() {
+		dispatcher.shutdown();
+	}
+}
@@ -1,9 +1,10 @@
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.SocketException;
 import java.util.Arrays;
-import java.util.concurrent.CountDownLatch;
 
+/**
+ * The message types, layouts and limits every node shares, and the helpers
+ * that read and write them. Nodes on a socket of their own extend SocketNode;
+ * routers and the controller receive through a Transport instead.
+ */
 public abstract class Node {
 
 	/** Constants for messages and nodes. */
@@ -13,35 +14,55 @@ public abstract class Node {
 	protected static final byte FLOW_MOD = 3;
 	protected static final byte NODE_INITIALISE_ROUTER = 4;
 	protected static final byte NODE_MESSAGE = 5;
+	protected static final byte PACKET_OUT = 6;
+	protected static final byte ATTACH = 7;
+	protected static final byte STATS_REQUEST = 8;
+	protected static final byte STATS_REPLY = 9;
+	protected static final byte KEEPALIVE = 10;
+	protected static final byte PORT_STATUS = 11;
+	protected static final byte TELEMETRY = 12;
+	protected static final byte PACKET_TOO_BIG = 13;
 
 	/** Other constants. */
 	protected static final int PACKETSIZE = 100;
+	/** The MTU of a link the topology does not give one for. */
+	protected static final int DEFAULT_MTU = PACKETSIZE;
+	/** Length of a node id on the wire. */
+	protected static final int ID_LENGTH = 4;
+	/**
+	 * Layout of a NODE_MESSAGE; byte 0 = type, byte 1 = content length, bytes
+	 * 2-5 = source, bytes 6-9 = destination, byte 10 = traffic class and the
+	 * telemetry flag, remaining bytes = content, and then any telemetry.
+	 * Longer content is split into fragments.
+	 */
+	protected static final int MESSAGE_HEADER_LENGTH = 3 + 2 * ID_LENGTH;
+	protected static final int TRAFFIC_CLASS_OFFSET = 2 + 2 * ID_LENGTH;
+	protected static final int MAX_CONTENT_LENGTH = 0xFF;
+	/** The largest MTU a link may have; a NODE_MESSAGE is never longer. */
+	protected static final int MAX_MTU = MESSAGE_HEADER_LENGTH + MAX_CONTENT_LENGTH;
+	/** The smallest, which still carries a probe or a fragment. */
+	protected static final int MIN_MTU = MESSAGE_HEADER_LENGTH + TrafficGenerator.PAYLOAD_LENGTH;
+	/**
+	 * Traffic classes, from 0 for bulk transfers up to the most latency-sensitive
+	 * class; routers queue each class separately.
+	 */
+	protected static final int TRAFFIC_CLASSES = 4;
+	/** The bits of the traffic class byte that are flags rather than the class. */
+	protected static final int TRAFFIC_CLASS_FLAGS = Telemetry.FLAG | TrafficGenerator.PROBE_FLAG | Fragments.FLAG;
+	/**
+	 * Layout of the start of a PACKET_IN or PACKET_OUT; byte 0 = type, bytes 1-4
+	 * = buffer id, bytes 5-8 = node id.
+	 */
+	protected static final int PACKET_IO_HEADER_LENGTH = 1 + 2 * ID_LENGTH;
+	/**
+	 * A PACKET_IN or PACKET_OUT for a packet the router did not buffer carries
+	 * the whole message after its header, so the largest datagram is this long.
+	 */
+	protected static final int MAX_PACKETSIZE = MAX_MTU + PACKET_IO_HEADER_LENGTH;
 	protected static final int BASE_PORT_NUMBER = 51510;
 	protected static final String LOCALHOST = "localhost";
 	protected static final int CONTROLLER_PORT = 0;
 
-	/** The index for the terms in preconfInfo */
-	protected static final int SRC_INDEX = 0;
-	protected static final int DST_INDEX = 1;
-	protected static final int ROUTER_INDEX = 2;
-	protected static final int INPUT_INDEX = 3;
-	protected static final int OUTPUT_INDEX = 4;
-
-	public static final byte NUM_ROUTERS = 8;
-	public static final byte NUM_END_NODES = 4;
-	DatagramSocket socket;
-	Listener listener;
-	CountDownLatch latch;
-
-	Node() {
-		latch = new CountDownLatch(1);
-		listener = new Listener();
-		listener.setDaemon(true);
-		listener.start();
-	}
-
-	public abstract void onReceipt(DatagramPacket packet);
-
 	protected byte getType(byte data[]) {
 		return data[0];
 	}
@@ -50,61 +71,47 @@ public abstract class Node {
 		data[0] = type;
 	}
 	
-	protected byte getMessageLength(byte data[]){
+	protected int getMessageLength(byte data[]){
 		assert(getType(data)==NODE_MESSAGE);
-		return data[1];
+		return data[1] & 0xFF;
 	}
 
-	protected byte getMessageSource(byte data[]){
+	protected int getMessageSource(byte data[]){
 		assert(getType(data)==NODE_MESSAGE);
-		return data[2];
+		return getInt(data, 2);
 	}
 	
-	protected byte getMessageDest(byte data[]){
+	protected int getMessageDest(byte data[]){
 		assert(getType(data)==NODE_MESSAGE);
-		return data[3];
+		return getInt(data, 2 + ID_LENGTH);
 	}
 	
+	protected int getTrafficClass(byte data[]){
+		assert(getType(data)==NODE_MESSAGE);
+		return Math.min(data[TRAFFIC_CLASS_OFFSET] & ~TRAFFIC_CLASS_FLAGS & 0xFF, TRAFFIC_CLASSES - 1);
+	}
+
 	protected String getMessageContent(byte data[]){
 		assert(getType(data)==NODE_MESSAGE);
-		byte[] content = Arrays.copyOfRange(data, 3, data.length);
+		// Telemetry may follow the content, so stop at its length.
+		int end = Math.min(data.length, MESSAGE_HEADER_LENGTH + getMessageLength(data));
+		byte[] content = Arrays.copyOfRange(data, MESSAGE_HEADER_LENGTH, end);
 		String messageContent = new String(content).trim();
 		return messageContent;
 	}
 
 	/**
-	 *
-	 * Listener thread
-	 * 
-	 * Listens for incoming packets on a datagram socket and informs registered
-	 * receivers about incoming packets.
+	 * Read a four-byte value, such as a node id, most significant byte first.
 	 */
-	class Listener extends Thread {
-
-		/*
-		 * Telling the listener that the socket has been initialized
-		 */
-		public void go() {
-			latch.countDown();
-		}
+	static int getInt(byte[] data, int offset) {
+		return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16) | ((data[offset + 2] & 0xFF) << 8)
+				| (data[offset + 3] & 0xFF);
+	}
 
-		/*
-		 * Listen for incoming packets and inform receivers
-		 */
-		public synchronized void run() {
-			try {
-				latch.await();
-				// Endless loop: attempt to receive packet, notify receivers,
-				// etc
-				while (true) {
-					DatagramPacket packet = new DatagramPacket(new byte[PACKETSIZE], PACKETSIZE);
-					socket.receive(packet);
-					onReceipt(packet);
-				}
-			} catch (Exception e) {
-				if (!(e instanceof SocketException))
-					e.printStackTrace();
-			}
-		}
+	static void setInt(byte[] data, int offset, int value) {
+		data[offset] = (byte) (value >>> 24);
+		data[offset + 1] = (byte) (value >>> 16);
+		data[offset + 2] = (byte) (value >>> 8);
+		data[offset + 3] = (byte) value;
 	}
 }
@@ -0,0 +1,88 @@
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Hands received packets to a thread-per-task executor. Tasks that share a key
+ * (for example the router that sent them) run one after another in the order they were
+ * submitted, tasks with different keys run at the same time.
+ */
+public class OrderedDispatcher {
+	private final ExecutorService executor;
+	/** The last task submitted for each key that has work in flight. */
+	private final ConcurrentHashMap<Object, CompletableFuture<Void>> tails =
+			new ConcurrentHashMap<Object, CompletableFuture<Void>>();
+
+	OrderedDispatcher() {
+		this(newPerTaskExecutor());
+	}
+
+	OrderedDispatcher(ExecutorService executor) {
+		this.executor = executor;
+	}
+
+	/*
+	 * Run a task after every earlier task with the same key has finished. A null
+	 * key means the task has no ordering constraint.
+	 */
+	public void execute(Object key, Runnable task) {
+		Runnable guarded = () -> {
+			try {
+				task.run();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		};
+		if (key == null) {
+			executor.execute(guarded);
+			return;
+		}
+		CompletableFuture<Void> tail = tails.compute(key, (k, previous) -> previous == null
+				? CompletableFuture.runAsync(guarded, executor)
+				: previous.thenRunAsync(guarded, executor));
+		// Forget the key once its queue drains so idle channels cost nothing.
+		tail.whenComplete((result, error) -> tails.remove(key, tail));
+	}
+
+	/*
+	 * Stop accepting tasks. Tasks already submitted still run.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	/*
+	 * Use a virtual thread per task when the runtime has them (Java 21 and later),
+	 * otherwise fall back to a cached pool of daemon threads.
+	 */
+	static ExecutorService newPerTaskExecutor() {
+		ExecutorService executor = newVirtualThreadExecutor();
+		return executor != null ? executor : Executors.newCachedThreadPool(OrderedDispatcher::newDaemonThread);
+	}
+
+	/*
+	 * Like newPerTaskExecutor, but without virtual threads fall back to a fixed
+	 * pool of daemon threads, for when there may be thousands of keys busy at
+	 * once.
+	 */
+	static ExecutorService newPerTaskExecutor(int fallbackThreads) {
+		ExecutorService executor = newVirtualThreadExecutor();
+		return executor != null ? executor
+				: Executors.newFixedThreadPool(fallbackThreads, OrderedDispatcher::newDaemonThread);
+	}
+
+	private static ExecutorService newVirtualThreadExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+	private static Thread newDaemonThread(Runnable task) {
+		Thread thread = new Thread(task);
+		thread.setDaemon(true);
+		return thread;
+	}
+}
@@ -0,0 +1,231 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The queues in front of one of a router's output ports, one per traffic
+ * class. A packet goes straight out when nothing is queued and the port's
+ * token bucket allows it; otherwise it is copied into its class's queue, and
+ * the queues are drained by deficit round robin, each class getting a quantum
+ * in proportion to its weight per round, for as long as the bucket has tokens
+ * and the transport takes packets. A latency-sensitive class with a higher
+ * weight therefore never waits behind more than one quantum of bulk traffic.
+ *
+ * A packet is dropped when its class's queue is full, or when the transport
+ * has refused it too many times in a row. Each class counts the packets
+ * queued and dropped, and the deepest its queue has been.
+ */
+public class OutputPort {
+	/** Sends a packet out of the port, returning false if it could not. */
+	interface Link {
+		boolean send(ByteBuffer packet);
+	}
+
+	/** What became of a packet offered to the port. */
+	static final int SENT = 0;
+	static final int QUEUED = 1;
+	static final int DROPPED = 2;
+	/** Times in a row the transport may refuse the packet at the head. */
+	private static final int MAX_REFUSALS = 100;
+
+	private final Link link;
+	private final List<ArrayDeque<byte[]>> queues;
+	private final int[] quantum;
+	private final int[] deficit;
+	private final int capacity;
+	/** Token bucket, in bytes; a rate of 0 means the port is not shaped. */
+	private final long rate;
+	private final long burst;
+	private long tokens;
+	private long lastRefill = System.nanoTime();
+	/** Class the scheduler visits next. */
+	private int current;
+	private int backlog;
+	private int refusals;
+
+	/** A drain is scheduled on the router's timer. */
+	private boolean drainScheduled;
+
+	private final long[] queued;
+	private final long[] dropped;
+	private final int[] maxDepth;
+
+	/*
+	 * Create the queues of a port, one per weight, each holding up to capacity
+	 * packets. The port sends at most rate bytes a second with bursts of up to
+	 * burst bytes, or without limit if rate is 0.
+	 */
+	OutputPort(Link link, int[] weights, int capacity, long rate, long burst) {
+		this.link = link;
+		this.capacity = capacity;
+		this.rate = rate;
+		this.burst = Math.max(burst, Node.MAX_MTU);
+		tokens = this.burst;
+		queues = new ArrayList<ArrayDeque<byte[]>>(weights.length);
+		quantum = new int[weights.length];
+		for (int i = 0; i < weights.length; i++) {
+			queues.add(new ArrayDeque<byte[]>());
+			quantum[i] = Math.max(weights[i], 1) * Node.PACKETSIZE;
+		}
+		deficit = new int[weights.length];
+		queued = new long[weights.length];
+		dropped = new long[weights.length];
+		maxDepth = new int[weights.length];
+	}
+
+	/*
+	 * Send a packet of a traffic class, or queue it behind the packets already
+	 * waiting. Returns SENT, QUEUED or DROPPED. The buffer is only read during
+	 * the call, so the caller may reuse it.
+	 */
+	synchronized int offer(ByteBuffer packet, int trafficClass) {
+		int c = Math.min(Math.max(trafficClass, 0), queues.size() - 1);
+		int start = packet.position();
+		int length = packet.remaining();
+		refill();
+		if (backlog == 0 && hasTokens(length)) {
+			if (link.send(packet)) {
+				take(length);
+				return SENT;
+			}
+			packet.position(start);
+		}
+		ArrayDeque<byte[]> queue = queues.get(c);
+		if (queue.size() >= capacity) {
+			dropped[c]++;
+			return DROPPED;
+		}
+		byte[] copy = new byte[length];
+		packet.get(copy);
+		queue.add(copy);
+		backlog++;
+		queued[c]++;
+		maxDepth[c] = Math.max(maxDepth[c], queue.size());
+		return QUEUED;
+	}
+
+	/*
+	 * Send queued packets in deficit round robin order until the queues are
+	 * empty, the bucket runs out or the transport refuses one. Returns the
+	 * nanoseconds to wait before draining again, or 0 if nothing is left.
+	 */
+	synchronized long drain() {
+		refill();
+		int classes = queues.size();
+		int idle = 0;
+		while (backlog > 0 && idle < classes) {
+			ArrayDeque<byte[]> queue = queues.get(current);
+			if (queue.isEmpty()) {
+				deficit[current] = 0;
+				current = (current + 1) % classes;
+				idle++;
+				continue;
+			}
+			idle = 0;
+			if (deficit[current] < queue.peek().length) {
+				deficit[current] += quantum[current];
+				if (deficit[current] < queue.peek().length) {
+					current = (current + 1) % classes;
+					continue;
+				}
+			}
+			byte[] packet = queue.peek();
+			if (!hasTokens(packet.length)) {
+				return TimeUnit.SECONDS.toNanos(1) * (packet.length - tokens) / rate + 1;
+			}
+			if (!link.send(ByteBuffer.wrap(packet))) {
+				if (++refusals < MAX_REFUSALS) {
+					return TimeUnit.MILLISECONDS.toNanos(1);
+				}
+				dropped[current]++;
+			} else {
+				take(packet.length);
+			}
+			refusals = 0;
+			queue.poll();
+			backlog--;
+			deficit[current] -= packet.length;
+			if (queue.isEmpty()) {
+				deficit[current] = 0;
+				current = (current + 1) % classes;
+			} else if (deficit[current] < queue.peek().length) {
+				current = (current + 1) % classes;
+			}
+		}
+		return 0;
+	}
+
+	/*
+	 * Claim the right to schedule the next drain; false if one is scheduled
+	 * already.
+	 */
+	synchronized boolean claimDrain() {
+		if (drainScheduled) {
+			return false;
+		}
+		drainScheduled = true;
+		return true;
+	}
+
+	synchronized void releaseDrain() {
+		drainScheduled = false;
+	}
+
+	/*
+	 * Return the number of packets waiting, in every class.
+	 */
+	synchronized int depth() {
+		return backlog;
+	}
+
+	synchronized long dropped() {
+		long sum = 0;
+		for (long count : dropped) {
+			sum += count;
+		}
+		return sum;
+	}
+
+	/*
+	 * Return the counters of each class: packets queued, packets dropped and
+	 * the deepest the queue has been.
+	 */
+	synchronized String describe() {
+		StringBuilder text = new StringBuilder();
+		for (int c = 0; c < queues.size(); c++) {
+			text.append(c == 0 ? "" : ", ").append("class ").append(c).append(": ").append(queues.get(c).size())
+					.append(" waiting, ").append(queued[c]).append(" queued, ").append(dropped[c])
+					.append(" dropped, max ").append(maxDepth[c]);
+		}
+		return text.toString();
+	}
+
+	private boolean hasTokens(int length) {
+		return rate == 0 || tokens >= length;
+	}
+
+	private void take(int length) {
+		if (rate > 0) {
+			tokens -= length;
+		}
+	}
+
+	private void refill() {
+		if (rate == 0) {
+			return;
+		}
+		long now = System.nanoTime();
+		// An idle minute refills any bucket; a longer gap would overflow.
+		long elapsed = Math.min(now - lastRefill, TimeUnit.MINUTES.toNanos(1));
+		long earned = elapsed * rate / TimeUnit.SECONDS.toNanos(1);
+		if (earned > 0) {
+			tokens = Math.min(burst, tokens + earned);
+			lastRefill += earned * TimeUnit.SECONDS.toNanos(1) / rate;
+		}
+		if (tokens == burst) {
+			lastRefill = now;
+		}
+	}
+}
@@ -0,0 +1,88 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded pool of packets a router holds while the controller decides what to
+ * do with them. Each stored packet gets a buffer id that the controller hands
+ * back in its PACKET_OUT. Slots are used in turn. If the next one still holds
+ * a packet, the pool counts as full and the new packet is not stored, so it
+ * goes to the controller whole, unless that packet has been held longer than
+ * the timeout, in which case its reply is taken to be lost and the packet is
+ * evicted. The id carries the number of times its slot has been used, so a
+ * late PACKET_OUT for an evicted packet finds nothing rather than the wrong
+ * packet.
+ */
+public class PacketBuffers {
+	/** Buffer id of a packet that was not stored and travels whole instead. */
+	static final int NO_BUFFER = -1;
+
+	private final int mask;
+	private final byte[][] slots;
+	private final int[] lengths;
+	/** Id of the packet in each slot, NO_BUFFER once released. */
+	private final int[] ids;
+	/** When each slot was filled, in nanoseconds. */
+	private final long[] stored;
+	private final long timeoutNanos;
+	private int next;
+
+	/*
+	 * Create a pool of a power-of-two number of slots, each holding one packet
+	 * of up to Node.MAX_MTU bytes, evicted once held for timeoutMillis. Slot
+	 * memory is allocated on first use.
+	 */
+	PacketBuffers(int size, long timeoutMillis) {
+		if (Integer.bitCount(size) != 1) {
+			throw new IllegalArgumentException("Pool size must be a power of two: " + size);
+		}
+		mask = size - 1;
+		slots = new byte[size][];
+		lengths = new int[size];
+		ids = new int[size];
+		Arrays.fill(ids, NO_BUFFER);
+		stored = new long[size];
+		timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+	}
+
+	/*
+	 * Copy a packet into the next slot and return its buffer id, or NO_BUFFER
+	 * if the pool is full.
+	 */
+	synchronized int store(byte[] data, int length) {
+		int index = next & mask;
+		long now = System.nanoTime();
+		if (ids[index] != NO_BUFFER && now - stored[index] < timeoutNanos) {
+			return NO_BUFFER;
+		}
+		// Keep ids non-negative so none of them is NO_BUFFER.
+		int id = next & 0x7FFFFFFF;
+		next++;
+		if (slots[index] == null) {
+			slots[index] = new byte[Node.MAX_MTU];
+		}
+		int copied = Math.min(length, slots[index].length);
+		System.arraycopy(data, 0, slots[index], 0, copied);
+		lengths[index] = copied;
+		ids[index] = id;
+		stored[index] = now;
+		return id;
+	}
+
+	/*
+	 * Release a packet from the pool and return a copy of it, since its slot may
+	 * be reused at once, or null if it has been released already or evicted.
+	 */
+	synchronized ByteBuffer take(int id) {
+		int index = id & mask;
+		if (id == NO_BUFFER || ids[index] != id) {
+			return null;
+		}
+		ids[index] = NO_BUFFER;
+		return ByteBuffer.wrap(Arrays.copyOf(slots[index], lengths[index]));
+	}
+
+	int size() {
+		return mask + 1;
+	}
+}
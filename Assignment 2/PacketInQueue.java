@@ -0,0 +1,178 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Admission control for the PACKET_INs the controller receives. Each router
+ * has a meter, a token bucket of PACKET_INs a second, and a PACKET_IN over its
+ * router's meter, or one that finds the queue full, is turned away; the caller
+ * then sends its packet on or drops it without setting up a flow, so the
+ * router's pool is freed at once. The PACKET_INs admitted wait in one bounded
+ * queue for a single worker thread, so a miss storm only ever occupies that
+ * thread and the receive path stays free for HELLOs, acknowledgements,
+ * keepalives and the rest of the housekeeping.
+ *
+ * The worker takes every PACKET_IN waiting at once and hands them over grouped
+ * by destination, in the order they arrived, so each flow they need is set up
+ * once for the whole group.
+ */
+public class PacketInQueue {
+	/** What became of a PACKET_IN offered to the queue. */
+	static final int ADMITTED = 0;
+	static final int METERED = 1;
+	static final int FULL = 2;
+
+	/** Handles the PACKET_INs for one destination taken from the queue together. */
+	interface Handler {
+		void handle(int dst, List<Miss> misses);
+	}
+
+	/** A packet a router had no entry for. */
+	static class Miss {
+		final int router;
+		final int bufferId;
+		final int src;
+		final int dst;
+		/** The message header, or the whole message if the router did not buffer it. */
+		final byte[] message;
+
+		Miss(int router, int bufferId, int src, int dst, byte[] message) {
+			this.router = router;
+			this.bufferId = bufferId;
+			this.src = src;
+			this.dst = dst;
+			this.message = message;
+		}
+	}
+
+	private final Handler handler;
+	private final ArrayDeque<Miss> queue = new ArrayDeque<Miss>();
+	private final int capacity;
+	/** Meters by router id; a rate of 0 means PACKET_INs are not metered. */
+	private final long rate;
+	private final long burst;
+	private final Map<Integer, Meter> meters = new HashMap<Integer, Meter>();
+	private long metered;
+	private long overflowed;
+	private long batches;
+	private long handled;
+
+	/*
+	 * Create the queue for the routers with the given ids, metering each to rate
+	 * PACKET_INs a second with bursts of up to burst, and holding up to capacity
+	 * of them, and start its worker.
+	 */
+	PacketInQueue(Collection<Integer> routers, long rate, long burst, int capacity, Handler handler) {
+		this.handler = handler;
+		this.capacity = capacity;
+		this.rate = rate;
+		this.burst = Math.max(burst, 1);
+		for (int router : routers) {
+			meters.put(router, new Meter(this.burst, System.nanoTime()));
+		}
+		Thread worker = new Thread(this::work, "packet-in worker");
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	/*
+	 * Queue a PACKET_IN from a router unless its meter or the queue turns it
+	 * away. Returns ADMITTED, METERED or FULL.
+	 */
+	synchronized int offer(Miss miss) {
+		if (!admit(miss.router)) {
+			metered++;
+			return METERED;
+		}
+		if (queue.size() >= capacity) {
+			overflowed++;
+			return FULL;
+		}
+		queue.add(miss);
+		if (queue.size() == 1) {
+			notify();
+		}
+		return ADMITTED;
+	}
+
+	/*
+	 * Describe what the queue has done with the PACKET_INs offered so far.
+	 */
+	synchronized String describe() {
+		return handled + " handled in " + batches + " batch(es), " + queue.size() + " waiting, " + metered
+				+ " over their router's meter, " + overflowed + " turned away by the full queue";
+	}
+
+	synchronized long turnedAway() {
+		return metered + overflowed;
+	}
+
+	private boolean admit(int router) {
+		Meter meter = meters.get(router);
+		if (rate == 0 || meter == null) {
+			return true;
+		}
+		long now = System.nanoTime();
+		long earned = (now - meter.lastRefill) * rate / TimeUnit.SECONDS.toNanos(1);
+		if (earned > 0) {
+			meter.tokens = Math.min(burst, meter.tokens + earned);
+			meter.lastRefill = meter.tokens == burst ? now
+					: meter.lastRefill + earned * TimeUnit.SECONDS.toNanos(1) / rate;
+		}
+		if (meter.tokens == 0) {
+			return false;
+		}
+		meter.tokens--;
+		return true;
+	}
+
+	/** One router's token bucket, guarded by the queue's lock. */
+	private static class Meter {
+		long tokens;
+		long lastRefill;
+
+		Meter(long tokens, long lastRefill) {
+			this.tokens = tokens;
+			this.lastRefill = lastRefill;
+		}
+	}
+
+	/*
+	 * Run on the worker thread: wait for PACKET_INs, take all of them and hand
+	 * them to the handler by destination.
+	 */
+	private void work() {
+		while (true) {
+			List<Miss> taken;
+			synchronized (this) {
+				while (queue.isEmpty()) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				taken = new ArrayList<Miss>(queue);
+				queue.clear();
+				batches++;
+				handled += taken.size();
+			}
+			Map<Integer, List<Miss>> byDestination = new LinkedHashMap<Integer, List<Miss>>();
+			for (Miss miss : taken) {
+				byDestination.computeIfAbsent(miss.dst, dst -> new ArrayList<Miss>()).add(miss);
+			}
+			for (Map.Entry<Integer, List<Miss>> group : byDestination.entrySet()) {
+				try {
+					handler.handle(group.getKey(), group.getValue());
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+}
@@ -1,26 +1,149 @@
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetSocketAddress;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 public class Router extends Node {
 	private Terminal terminal;
 	private int routerNumber;
-	private byte[][] flowTable;
-	private InetSocketAddress controllerAddress;
-	private InetSocketAddress endNodeAddress;
+	/** Replaced as a whole when a FLOW_MOD arrives, so lookups need no lock. */
+	private volatile FlowTable flowTable = FlowTable.EMPTY;
+	/** Version of the table last applied, 0 before the first FLOW_MOD. */
+	private int tableVersion;
+	/** Operations of the FLOW_MOD batch being received, and its version. */
+	private List<FlowMod> pendingOperations = new ArrayList<FlowMod>();
+	private int pendingVersion;
+	private boolean pendingReplace;
+	/** Part number expected next in the pending batch, -1 once a part is missed. */
+	private int pendingPart;
+	/** Entries with timeouts, filed under the time they may next expire. */
+	private final TimerWheel<FlowEntry> expiries = new TimerWheel<FlowEntry>(100, 512, System.currentTimeMillis());
+	/** Type of each neighbour, by id, as named by the controller. */
+	private volatile Map<Integer, Byte> neighbourTypes = new HashMap<Integer, Byte>();
+	/** MTU of the link to each neighbour, by id; DEFAULT_MTU for any not named. */
+	private volatile Map<Integer, Integer> neighbourMtus = new HashMap<Integer, Integer>();
+	/** Carries every packet the router receives and sends. */
+	private final Transport transport;
+	/** Forwarding log lines are printed at most this often; the rest are counted. */
+	private final long logInterval = TimeUnit.MILLISECONDS.toNanos(Long.getLong("router.log.interval", 100));
+	private long lastLog;
+	private long unlogged;
+	/**
+	 * Missed packets held until the controller releases or drops them, at most
+	 * router.buffers of them (default 256) for up to router.buffer.timeout ms
+	 * (default 5000). Null if router.buffers is 0, and every missed packet goes
+	 * to the controller whole.
+	 */
+	private final PacketBuffers buffers;
+	/** Packets dropped because the transport could not take them. */
+	private final LongAdder sendDrops = new LongAdder();
+	/**
+	 * Queues in front of each neighbour, by id, made on first use. Each port
+	 * has one queue per traffic class, weighted by router.qos.weights (default
+	 * "1,2,4,8", class 0 first) and router.queue.capacity packets long (default
+	 * 64), and is shaped to router.port.rate bytes a second (default 0, no
+	 * limit) with bursts of router.port.burst bytes.
+	 */
+	private final ConcurrentHashMap<Integer, OutputPort> ports = new ConcurrentHashMap<Integer, OutputPort>();
+	private final int[] classWeights = parseWeights(System.getProperty("router.qos.weights", "1,2,4,8"));
+	private final int queueCapacity = Integer.getInteger("router.queue.capacity", 64);
+	private final long portRate = Long.getLong("router.port.rate", 0);
+	private final long portBurst = Long.getLong("router.port.burst", 10 * PACKETSIZE);
+	/** Packets dropped because their queue was full. */
+	private final LongAdder queueDrops = new LongAdder();
+	/** Packets dropped because they were longer than the MTU of their link. */
+	private final LongAdder mtuDrops = new LongAdder();
+	private volatile boolean stopped;
+	/**
+	 * Keepalive rounds run this often, 0 for none. In each round the router
+	 * sends a keepalive to the controller and to every neighbouring router, then
+	 * counts as missed each neighbour it has received nothing at all from since
+	 * the last round; any datagram counts, not only keepalives. A neighbour that
+	 * has missed router.keepalive.misses rounds in a row (default 5) is taken to
+	 * be down. The router also sends itself a keepalive each round, and a round
+	 * only counts while that echo has come back: a router behind on its own
+	 * input cannot tell a silent neighbour from one whose packets are still
+	 * waiting to be read.
+	 */
+	private static final long KEEPALIVE_INTERVAL = Long.getLong("router.keepalive.interval", 100);
+	private static final int KEEPALIVE_MISSES = Math.max(1, Integer.getInteger("router.keepalive.misses", 5));
+	/** Whether each neighbouring router has been heard from, by id; only routers have one. */
+	private volatile Map<Integer, Liveness> liveness = new HashMap<Integer, Liveness>();
+	/** Neighbouring routers taken to be down; empty almost always. */
+	private volatile int[] downNeighbours = new int[0];
+	/** Whether the router's keepalive to itself has been read since the last round. */
+	private volatile boolean echoed;
+	/** The expiry task, cancelled when the router shuts down. */
+	private final List<ScheduledFuture<?>> timers = new ArrayList<ScheduledFuture<?>>();
+	/** One thread ticks the expiry wheels and drains the ports of every router in the JVM. */
+	private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(task -> {
+		Thread thread = new Thread(task, "Router timers");
+		thread.setDaemon(true);
+		return thread;
+	});
+	/**
+	 * Runs the keepalive rounds of every router in the JVM, apart from the timer
+	 * so a busy expiry or drain cannot delay them. Misses are counted in rounds
+	 * rather than time, so a round that runs late delays verdicts rather than
+	 * causing them.
+	 */
+	private static final ScheduledExecutorService KEEPALIVES = Executors.newSingleThreadScheduledExecutor(task -> {
+		Thread thread = new Thread(task, "Router keepalives");
+		thread.setDaemon(true);
+		return thread;
+	});
+	/** Routers whose keepalive rounds KEEPALIVES runs; started with the first. */
+	private static final Set<Router> KEEPALIVE_ROUTERS = ConcurrentHashMap.newKeySet();
+	private static boolean keepalivesStarted;
 
-	/** Initialises the terminal, datagram socket and listener.
-	*/
-	Router(byte routerNumber) throws SocketException {
-		this.routerNumber = BASE_PORT_NUMBER + routerNumber;
-		socket = new DatagramSocket(this.routerNumber);
-		this.terminal = new Terminal("Router " + routerNumber);
-		controllerAddress = new InetSocketAddress(LOCALHOST, BASE_PORT_NUMBER + CONTROLLER_PORT);
-		endNodeAddress = null;
-		listener.go();
+	/** Initialises the terminal, and a UDP transport on the router's own
+	 * address.
+	 */
+	Router(int routerNumber, AddressBook addresses) throws SocketException {
+		this(routerNumber, new Terminal("Router " + routerNumber),
+				(id, receiver) -> new UdpTransport(addresses, id, receiver));
+	}
+
+	/** Initialises the router with a terminal and a transport opened from the
+	 * given factory, so that many routers can share one JVM without sockets.
+	 */
+	Router(int routerNumber, Terminal terminal, Transport.Factory transports) throws SocketException {
+		this.routerNumber = routerNumber;
+		this.terminal = terminal;
+		int bufferCount = Integer.getInteger("router.buffers", 256);
+		buffers = bufferCount > 0 ? new PacketBuffers(bufferCount, Long.getLong("router.buffer.timeout", 5000)) : null;
+		try {
+			transport = transports.open(routerNumber, this::receive);
+		} catch (SocketException e) {
+			throw e;
+		} catch (IOException e) {
+			throw new SocketException(e.getMessage());
+		}
+		timers.add(TIMER.scheduleWithFixedDelay(this::expireTick, expiries.tickMillis(), expiries.tickMillis(),
+				TimeUnit.MILLISECONDS));
+		if (KEEPALIVE_INTERVAL > 0) {
+			synchronized (KEEPALIVE_ROUTERS) {
+				if (!keepalivesStarted) {
+					keepalivesStarted = true;
+					KEEPALIVES.scheduleWithFixedDelay(Router::keepaliveRound, KEEPALIVE_INTERVAL, KEEPALIVE_INTERVAL,
+							TimeUnit.MILLISECONDS);
+				}
+				KEEPALIVE_ROUTERS.add(this);
+			}
+		}
 	}
 
 	/* Start the router by sending a Hello packet to the controller.
@@ -29,189 +152,569 @@ public class Router extends Node {
 		sendHello();
 	}
 
-	/* Implementation of the abstract function in Node.java. Hands over to
-	 * another function based on the source address.
+	/* Stop the router as if its process had died: it sends nothing more and
+	 * drops everything sent to it.
 	 */
-	@Override
-	public synchronized void onReceipt(DatagramPacket packet) {
-		if (packet.getSocketAddress().equals(controllerAddress)) {
-			handleControllerPacket(packet);
+	public synchronized void shutdown() {
+		stopped = true;
+		KEEPALIVE_ROUTERS.remove(this);
+		for (ScheduledFuture<?> timer : timers) {
+			timer.cancel(false);
+		}
+		transport.close();
+		for (Map.Entry<Integer, OutputPort> port : ports.entrySet()) {
+			terminal.println("Queues towards " + describe(port.getKey()) + "; " + port.getValue().describe() + ".");
+		}
+		terminal.println("Router stopped.");
+	}
+
+	/* Handle a packet from the transport. Packets from the controller are
+	 * copied out and take the slow path; everything else is forwarded straight
+	 * from the buffer.
+	 */
+	private void receive(int from, ByteBuffer buffer) {
+		Liveness neighbour = liveness.get(from);
+		if (neighbour != null && !neighbour.heard) {
+			neighbour.heard = true;
+		}
+		if (buffer.limit() > 0 && buffer.get(0) == KEEPALIVE) {
+			if (from == routerNumber) {
+				echoed = true;
+			}
+		} else if (from == CONTROLLER_PORT) {
+			byte[] data = Arrays.copyOf(buffer.array(), Math.max(PACKETSIZE, buffer.limit()));
+			handleControllerPacket(data, buffer.limit());
 		} else {
-			handleEndNodePacket(packet);
+			forward(buffer, from);
 		}
 	}
 
 	/* Handles a packet sent from a controller.
 	*/
-	private synchronized void handleControllerPacket(DatagramPacket packet) {
-		byte[] data = packet.getData();
+	private synchronized void handleControllerPacket(byte[] data, int length) {
 		switch (getType(data)) {
 		// If the packet is a hello, print to the terminal.
 		case HELLO:
 			terminal.println("The Hello packet is received by the controller.");
 			break;
-		// If the packet is a flow mod packet, parse the router's flow table from
-		// the packet into a two-dimensional array.
+		// If the packet is a flow mod packet, collect its operations and apply the
+		// batch once its last part arrives.
 		case FLOW_MOD:
-			terminal.println("The Flow mod packet is received by the controller.");
-			byte[] flatTable = Arrays.copyOfRange(data, 1, data.length);
-			updateFlowtable(flatTable);
-			packet.setSocketAddress(controllerAddress);
+			receiveFlowMod(Arrays.copyOf(data, length));
+			break;
+		// If the packet names the router's neighbours, introduce the router to the
+		// end users among them.
+		case ATTACH:
+			setNeighbours(data, length);
+			break;
+		// If the packet releases a packet the router missed, send it on to the node
+		// the controller chose, or drop it.
+		case PACKET_OUT:
+			sendPacketOut(data, length);
+			break;
+		// If the packet asks for the flow counters, send them back.
+		case STATS_REQUEST:
+			sendStats(FlowStats.getId(data));
+			break;
+		}
+	}
+
+	/* Add one FLOW_MOD datagram to the batch being received. On the barrier, if
+	 * no part was missed, the new table is built aside from the current one,
+	 * published in one write and its version acknowledged. A batch for a version
+	 * already applied is only acknowledged again. A batch with a missed part is
+	 * dropped, and so is a batch of changes that does not follow straight on from
+	 * the version held, since the controller computed it against a table this
+	 * router never got; with no ack the controller sends the whole table again.
+	 */
+	private synchronized void receiveFlowMod(byte[] data) {
+		int version = FlowMod.getVersion(data);
+		byte flags = FlowMod.getFlags(data);
+		if (version - tableVersion <= 0) {
+			if ((flags & FlowMod.FLAG_BARRIER) != 0) {
+				sendFlowModAck(version);
+			}
+			return;
+		}
+		if (version != pendingVersion || FlowMod.getPart(data) == 0) {
+			pendingVersion = version;
+			pendingOperations = new ArrayList<FlowMod>();
+			pendingReplace = (flags & FlowMod.FLAG_REPLACE) != 0;
+			pendingPart = 0;
+		}
+		if (pendingPart != FlowMod.getPart(data)) {
+			pendingPart = -1;
+			return;
+		}
+		pendingPart++;
+		pendingOperations.addAll(FlowMod.decode(data));
+		if ((flags & FlowMod.FLAG_BARRIER) != 0) {
+			if (!pendingReplace && version != tableVersion + 1) {
+				terminal.println("Flow table version " + version + " does not follow version " + tableVersion
+						+ "; dropped.");
+				pendingOperations = new ArrayList<FlowMod>();
+				return;
+			}
+			long now = System.currentTimeMillis();
+			for (FlowMod operation : pendingOperations) {
+				if (operation.command != FlowMod.DELETE && operation.entry.hasTimeout()) {
+					operation.entry.installed = now;
+					operation.entry.lastUsed = now;
+					expiries.schedule(operation.entry, operation.entry.expiry());
+				}
+			}
+			flowTable = flowTable.apply(pendingReplace, pendingOperations);
+			tableVersion = version;
+			terminal.println("Flow table version " + version + " applied; " + pendingOperations.size()
+					+ " change(s), " + flowTable.size() + " entries.");
+			pendingOperations = new ArrayList<FlowMod>();
+			sendFlowModAck(version);
+		}
+	}
+
+	/* Run on the shared expiry timer once per tick. Takes the entries the timer
+	 * wheel says may have expired. An entry that has since been replaced is
+	 * forgotten, one that was used in the meantime is filed again under its new
+	 * expiry, and the rest are removed from the table in one rebuild and reported
+	 * to the controller.
+	 */
+	private void expireTick() {
+		long now = System.currentTimeMillis();
+		List<FlowEntry> due = expiries.advance(now);
+		if (!due.isEmpty()) {
+			expireFlows(due, now);
+		}
+	}
+
+	private synchronized void expireFlows(List<FlowEntry> due, long now) {
+		FlowTable table = flowTable;
+		Set<FlowEntry> expired = Collections.newSetFromMap(new IdentityHashMap<FlowEntry, Boolean>());
+		for (FlowEntry entry : due) {
+			if (!table.contains(entry)) {
+				continue;
+			}
+			long expiry = entry.expiry();
+			if (expiry > now) {
+				expiries.schedule(entry, expiry);
+			} else {
+				expired.add(entry);
+			}
+		}
+		if (expired.isEmpty()) {
+			return;
+		}
+		List<FlowMod> deletes = new ArrayList<FlowMod>(expired.size());
+		for (FlowEntry entry : expired) {
+			deletes.add(new FlowMod(FlowMod.DELETE, entry));
+		}
+		flowTable = table.apply(false, deletes);
+		terminal.println(expired.size() + " flow entr" + (expired.size() == 1 ? "y" : "ies") + " expired.");
+		for (FlowEntry entry : expired) {
+			sendFlowRemoved(entry, entry.hardExpired(now));
+		}
+	}
+
+	/* Run on the keepalive thread once per interval: one round for every
+	 * router in the JVM, each router on its own so that one that fails cannot
+	 * stop the rest.
+	 */
+	private static void keepaliveRound() {
+		for (Router router : KEEPALIVE_ROUTERS) {
 			try {
-				socket.send(packet);
-				terminal.println("Sent acknowledgment to the controller.");
-			} catch (IOException e) {
+				router.keepaliveTick();
+			} catch (RuntimeException e) {
 				e.printStackTrace();
 			}
-			setEndNodeAddress();
-			break;
-		// If the packet tells the router to drop the packet, do nothing.
-		case FLOW_REMOVED:
-			terminal.println("Packet from end node dropped at instruction of controller.");
 		}
 	}
 
-	/* Update the router's flowtable given a one-dimensional array 
-	 * representing it.
+	/* Send a keepalive to the controller, to every neighbouring router and to
+	 * this router, then take any neighbour that has missed too many rounds to be
+	 * down, and any heard from again to be up. A round in which the router's
+	 * last echo has not come back is not held against anyone. A neighbour never
+	 * heard from is not judged, so routers can start in any order. Forwarding switches away from down
+	 * neighbours at once; each change is also reported to the controller, which
+	 * then recomputes the routes.
+	 */
+	private void keepaliveTick() {
+		byte[] keepalive = { KEEPALIVE };
+		send(keepalive, keepalive.length, CONTROLLER_PORT);
+		boolean current = echoed;
+		echoed = false;
+		send(keepalive, keepalive.length, routerNumber);
+		Map<Integer, Liveness> neighbours = liveness;
+		int[] down = new int[0];
+		for (Map.Entry<Integer, Liveness> neighbour : neighbours.entrySet()) {
+			int node = neighbour.getKey();
+			send(keepalive, keepalive.length, node);
+			if (neighbour.getValue().endRound(current) >= KEEPALIVE_MISSES) {
+				down = Arrays.copyOf(down, down.length + 1);
+				down[down.length - 1] = node;
+			}
+		}
+		int[] previous = downNeighbours;
+		downNeighbours = down;
+		for (int node : down) {
+			if (!contains(previous, node)) {
+				terminal.println("Lost contact with " + describe(node) + "; failing over.");
+				sendPortStatus(node, false);
+			}
+		}
+		for (int node : previous) {
+			if (!contains(down, node) && neighbours.containsKey(node)) {
+				terminal.println("Contact with " + describe(node) + " restored.");
+				sendPortStatus(node, true);
+			}
+		}
+	}
+
+	/* Tell the controller that a neighbour went down or came back. Layout; byte
+	 * 0 = type, byte 1 = 1 if up or 0 if down, bytes 2-5 = neighbour.
 	 */
-	private synchronized void updateFlowtable(byte[] flatFlowtable) {
-		int rowCount;
-		for (rowCount = 0; flatFlowtable[rowCount * 5] != 0; rowCount++)
-			;
-		flowTable = new byte[rowCount][OUTPUT_INDEX + 1];
-		int i = 0;
-		for (int j = 0; j < flowTable.length; j++) {
-			for (int k = 0; k < flowTable[0].length; k++) {
-				flowTable[j][k] = flatFlowtable[i];
-				i++;
+	private void sendPortStatus(int node, boolean up) {
+		byte[] data = new byte[2 + ID_LENGTH];
+		data[0] = PORT_STATUS;
+		data[1] = (byte) (up ? 1 : 0);
+		setInt(data, 2, node);
+		send(data, data.length, CONTROLLER_PORT);
+	}
+
+	private static boolean contains(int[] nodes, int node) {
+		for (int element : nodes) {
+			if (element == node) {
+				return true;
 			}
 		}
+		return false;
+	}
+
+	/* Report an expired entry and its final counts to the controller. Layout;
+	 * byte 0 = type, byte 1 = reason (0 idle, 1 hard), bytes 2-17 = source,
+	 * destination, input node and output node, bytes 18-25 = packet count, bytes
+	 * 26-33 = byte count.
+	 */
+	private void sendFlowRemoved(FlowEntry entry, boolean hard) {
+		ByteBuffer report = ByteBuffer.allocate(2 + 4 * ID_LENGTH + 16);
+		report.put(FLOW_REMOVED).put((byte) (hard ? 1 : 0));
+		report.putInt(entry.src).putInt(entry.dst).putInt(entry.inPort).putInt(entry.outPort);
+		report.putLong(entry.packetCount()).putLong(entry.byteCount());
+		send(report.array(), report.capacity(), CONTROLLER_PORT);
+	}
+
+	/* Send the counters of every entry in the current table to the controller.
+	 */
+	private void sendStats(int requestId) {
+		for (byte[] data : FlowStats.reply(requestId, flowTable.entries())) {
+			send(data, data.length, CONTROLLER_PORT);
+		}
+	}
+
+	private void sendFlowModAck(int version) {
+		byte[] data = FlowMod.ack(version);
+		if (send(data, data.length, CONTROLLER_PORT)) {
+			terminal.println("Sent acknowledgment to the controller.");
+		}
 	}
 
 	/* Send a hello packet to the controller.
 	*/
 	private synchronized void sendHello() {
 		byte[] data = { HELLO };
-		DatagramPacket hello = new DatagramPacket(data, data.length);
-		hello.setSocketAddress(controllerAddress);
-		try {
-			socket.send(hello);
+		if (send(data, data.length, CONTROLLER_PORT)) {
 			terminal.println("Sent a Hello packet to the controller.");
-		} catch (IOException e) {
-			e.printStackTrace();
 		}
 	}
 
 	/**
-	 * This method lets the router figure out which end node it is connected to by
-	 * checking its flow table. If at any point in the table its immediate input or
-	 * output is beyond the router index, then it is an end node. Each router is
-	 * connected to a maximum of one node in the system so the check can end once if
-	 * the end node is found.
-	 */
-	private synchronized void setEndNodeAddress() {
-		boolean addressSet = false;
-		int i = 0;
-		while (i < flowTable.length && !addressSet) {
-			if (flowTable[i][INPUT_INDEX] > NUM_ROUTERS) {
-				int portNumber = flowTable[i][INPUT_INDEX] + BASE_PORT_NUMBER;
-				this.endNodeAddress = new InetSocketAddress(LOCALHOST, portNumber);
-				addressSet = true;
-				terminal.println(
-						"This router is connected to end user " + (portNumber - BASE_PORT_NUMBER - NUM_ROUTERS) + ".");
-			} else if (flowTable[i][OUTPUT_INDEX] > NUM_ROUTERS) {
-				int portNumber = flowTable[i][OUTPUT_INDEX] + BASE_PORT_NUMBER;
-				this.endNodeAddress = new InetSocketAddress(LOCALHOST, portNumber);
-				addressSet = true;
-				terminal.println(
-						"This router is connected to end user " + (portNumber - BASE_PORT_NUMBER - NUM_ROUTERS) + ".");
-			}
-			i++;
-		}
-		if (!addressSet) {
+	 * This method records the router's neighbours, their types and the MTUs of
+	 * the links to them, as named by the controller, and introduces the router
+	 * to every end user among them, telling it the MTU of its link; node ids
+	 * alone do not tell routers and end users apart. Layout; byte 0 = type,
+	 * byte 1 = number of neighbours, then seven bytes per neighbour: id (four
+	 * bytes), node type and MTU (two bytes). A list too long for one datagram
+	 * is sent in several, each adding to the last.
+	 */
+	private synchronized void setNeighbours(byte[] data, int length) {
+		Map<Integer, Byte> types = new HashMap<Integer, Byte>(neighbourTypes);
+		Map<Integer, Integer> mtus = new HashMap<Integer, Integer>(neighbourMtus);
+		int count = Math.min(data[1] & 0xFF, (length - 2) / (ID_LENGTH + 3));
+		int endUsers = 0;
+		for (int i = 0; i < count; i++) {
+			int offset = 2 + i * (ID_LENGTH + 3);
+			int node = getInt(data, offset);
+			byte type = data[offset + ID_LENGTH];
+			int mtu = ((data[offset + ID_LENGTH + 1] & 0xFF) << 8) | (data[offset + ID_LENGTH + 2] & 0xFF);
+			types.put(node, type);
+			mtus.put(node, mtu);
+			if (type == Topology.END_USER) {
+				endUsers++;
+				terminal.println("This router is connected to end user " + node + ".");
+				byte[] hello = { NODE_INITIALISE_ROUTER, (byte) (mtu >>> 8), (byte) mtu };
+				send(hello, hello.length, node);
+			}
+		}
+		Map<Integer, Liveness> heard = new HashMap<Integer, Liveness>();
+		for (Map.Entry<Integer, Byte> neighbour : types.entrySet()) {
+			if (neighbour.getValue() == Topology.ROUTER) {
+				Liveness known = liveness.get(neighbour.getKey());
+				heard.put(neighbour.getKey(), known != null ? known : new Liveness());
+			}
+		}
+		neighbourMtus = mtus;
+		neighbourTypes = types;
+		liveness = heard;
+		if (endUsers == 0 && !types.containsValue(Topology.END_USER)) {
 			terminal.println("This router is not connected to an end node in the network.");
+		}
+	}
+
+	/* Send a packet released by the controller to the node named in the
+	 * PACKET_OUT, or drop it if the node is the controller. Layout; byte 0 =
+	 * type, bytes 1-4 = buffer id, bytes 5-8 = next node, remaining bytes = the
+	 * packet if it was not buffered.
+	 */
+	private void sendPacketOut(byte[] data, int length) {
+		int bufferId = getInt(data, 1);
+		int nextHop = getInt(data, 1 + ID_LENGTH);
+		ByteBuffer packet;
+		if (bufferId == PacketBuffers.NO_BUFFER) {
+			packet = ByteBuffer.wrap(data, PACKET_IO_HEADER_LENGTH, length - PACKET_IO_HEADER_LENGTH);
 		} else {
-			byte[] data = { NODE_INITIALISE_ROUTER };
-			DatagramPacket initialisation = new DatagramPacket(data, data.length);
-			initialisation.setSocketAddress(endNodeAddress);
-			try {
-				socket.send(initialisation);
-			} catch (IOException e) {
-				e.printStackTrace();
+			packet = buffers != null ? buffers.take(bufferId) : null;
+			if (packet == null) {
+				terminal.println("Buffer " + bufferId + " is no longer held; the packet was lost.");
+				return;
 			}
 		}
+		if (nextHop == CONTROLLER_PORT) {
+			terminal.println("Packet from end node dropped at instruction of controller.");
+		} else if (packet.remaining() >= MESSAGE_HEADER_LENGTH
+				&& sendQueued(packet, nextHop, getTrafficClass(packet.array()))) {
+			terminal.println("Released packet sent on to " + describe(nextHop) + ".");
+		}
 	}
 
-	/** Handle a packet not sent by the controller. This is a message meant to be forwared
-	  * based on the router's flow table. If the source and destination are not recognised
-	  * together in a row of the flow table, the packet is forwarded to the controller to
-	  * find out what to do with it. Otherwise the packet is forawrded to the next hop on
-	  * the flow table.
-	  */
-	private synchronized void handleEndNodePacket(DatagramPacket packet) {
-		byte[] data = packet.getData();
-		if (getType(data) == NODE_MESSAGE) {
-			byte nextHop = checkFlowtable(data, packet.getPort());
-			if (nextHop == CONTROLLER_PORT) {
-				terminal.println("Next hop not in flow table.");
-				byte[] unrecognised = new byte[data.length];
-				setType(unrecognised, PACKET_IN);
-				for (int i = 1; i < unrecognised.length; i++) {
-					unrecognised[i] = data[i - 1];
-				}
-				DatagramPacket packetIn = new DatagramPacket(unrecognised, unrecognised.length);
-				packetIn.setSocketAddress(controllerAddress);
-				try {
-					socket.send(packetIn);
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-			} else {
-				InetSocketAddress outputAddress = new InetSocketAddress(LOCALHOST, BASE_PORT_NUMBER + nextHop);
-				packet.setSocketAddress(outputAddress);
-				try {
-					socket.send(packet);
-					if (nextHop <= NUM_ROUTERS) {
-						terminal.println(
-								"Packet forwarded to router " + nextHop + ".");
-					} else {
-						while (nextHop > NUM_ROUTERS) {
-							nextHop -= NUM_ROUTERS;
-						}
-						terminal.println("Packet forwarded to end user " + nextHop + ".");
-					}
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
+	/* Forward a packet held in a buffer, received from node prev. If the source
+	 * and destination are not recognised together in a row of the flow table, the
+	 * packet is kept in the router's pool and the controller is asked what to do
+	 * with it, as a PACKET_IN; byte 0 = type, bytes 1-4 = buffer id, bytes 5-8 =
+	 * previous node, remaining bytes = the message header, or the whole packet if
+	 * the router does not buffer.
+	 * Otherwise the buffer is sent as it is to the next hop on the flow table,
+	 * through the queue of its traffic class on that port, after adding this
+	 * router to its telemetry if it carries any. Nothing is allocated on this
+	 * path over UDP unless the packet has to wait, and only sampled lines are
+	 * logged.
+	 */
+	private void forward(ByteBuffer buffer, int prev) {
+		byte[] data = buffer.array();
+		int length = buffer.limit();
+		if (length < MESSAGE_HEADER_LENGTH || getType(data) != NODE_MESSAGE) {
+			return;
+		}
+		int nextHop = checkFlowtable(data, length, prev);
+		if (nextHop == CONTROLLER_PORT) {
+			terminal.println("Received a message from " + describe(prev) + "; next hop not in flow table.");
+			int bufferId = buffers != null ? buffers.store(data, length) : PacketBuffers.NO_BUFFER;
+			int copied = bufferId == PacketBuffers.NO_BUFFER ? length : MESSAGE_HEADER_LENGTH;
+			byte[] unrecognised = new byte[PACKET_IO_HEADER_LENGTH + copied];
+			setType(unrecognised, PACKET_IN);
+			setInt(unrecognised, 1, bufferId);
+			setInt(unrecognised, 1 + ID_LENGTH, prev);
+			System.arraycopy(data, 0, unrecognised, PACKET_IO_HEADER_LENGTH, copied);
+			send(unrecognised, unrecognised.length, CONTROLLER_PORT);
+		} else {
+			buffer.rewind();
+			if (Telemetry.isEnabled(data)) {
+				Telemetry.recordHop(data, length, routerNumber, port(nextHop).depth());
+			}
+			if (sendQueued(buffer, nextHop, getTrafficClass(data))) {
+				logForwarding(prev, nextHop);
 			}
 		}
 	}
 
-	/* Takes the data from a message and the port number of the previous hop of the packet.
-	 * Checks the flowtable for a row with the correct previous hop, source address and 
-	 * destination address to return the next hop in the table. If no next hop is found,
-	 * the next hop is set as the controller port so that the controller can decide what to
-	 * do with the packet.
+	/* Log a forwarded packet unless a line was printed within the log interval,
+	 * in which case it is only counted. Only called on the forwarding thread.
+	 */
+	private void logForwarding(int prev, int nextHop) {
+		long now = System.nanoTime();
+		if (now - lastLog < logInterval) {
+			unlogged++;
+			return;
+		}
+		OutputPort port = ports.get(nextHop);
+		int depth = port != null ? port.depth() : 0;
+		terminal.println("Received a message from " + describe(prev) + "; forwarded to " + describe(nextHop) + "."
+				+ (depth > 0 ? " (" + depth + " waiting in its queues)" : "")
+				+ (unlogged > 0 ? " (" + unlogged + " more forwarded since the last line)" : "")
+				+ (sendDrops.sum() > 0 ? " (" + sendDrops.sum() + " dropped by the transport)" : "")
+				+ (queueDrops.sum() > 0 ? " (" + queueDrops.sum() + " dropped by full queues)" : "")
+				+ (mtuDrops.sum() > 0 ? " (" + mtuDrops.sum() + " too long for their link)" : ""));
+		lastLog = now;
+		unlogged = 0;
+	}
+
+	private String describe(int node) {
+		Byte type = neighbourTypes.get(node);
+		if (type == null) {
+			return "node " + node;
+		}
+		return (type == Topology.END_USER ? "end user " : "router ") + node;
+	}
+
+	private boolean send(byte[] data, int length, int node) {
+		return send(ByteBuffer.wrap(data, 0, length), node);
+	}
+
+	/* Offer a message to the port towards a node. If it has to wait, the port
+	 * is drained at once as far as it can be and again on the shared timer once
+	 * its bucket has refilled or the transport has room. Returns false if the
+	 * message was dropped, as it is if it is longer than the link's MTU; routers
+	 * do not split messages, end users do, and the source is told the MTU so it
+	 * can split its next ones smaller.
+	 */
+	private boolean sendQueued(ByteBuffer buffer, int node, int trafficClass) {
+		Integer mtu = neighbourMtus.get(node);
+		if (buffer.remaining() > (mtu != null ? mtu : DEFAULT_MTU)) {
+			mtuDrops.increment();
+			sendTooBig(buffer.array(), buffer.position(), mtu != null ? mtu : DEFAULT_MTU);
+			return false;
+		}
+		OutputPort port = port(node);
+		switch (port.offer(buffer, trafficClass)) {
+		case OutputPort.DROPPED:
+			queueDrops.increment();
+			return false;
+		case OutputPort.QUEUED:
+			drainPort(port);
+		}
+		return true;
+	}
+
+	/* Tell the source of a message that was too long for a link the MTU of the
+	 * link. Layout; byte 0 = type, bytes 1-4 = the message's destination, bytes
+	 * 5-6 = MTU. The report goes straight to the source, as reports to the
+	 * controller do, rather than back through the fabric: flow tables only hold
+	 * entries between end users, so a packet from a router would miss at every
+	 * hop. A lost report only means the source learns the MTU from a later
+	 * message that is too long.
 	 */
-	private synchronized byte checkFlowtable(byte[] data, int port) {
+	private void sendTooBig(byte[] data, int offset, int mtu) {
+		byte[] report = new byte[3 + ID_LENGTH];
+		report[0] = PACKET_TOO_BIG;
+		setInt(report, 1, getInt(data, offset + 2 + ID_LENGTH));
+		report[1 + ID_LENGTH] = (byte) (mtu >>> 8);
+		report[2 + ID_LENGTH] = (byte) mtu;
+		send(report, report.length, getInt(data, offset + 2));
+	}
+
+	private OutputPort port(int node) {
+		OutputPort port = ports.get(node);
+		if (port == null) {
+			port = ports.computeIfAbsent(node, id -> new OutputPort(packet -> transport.send(id, packet),
+					classWeights, queueCapacity, portRate, portBurst));
+		}
+		return port;
+	}
+
+	/* Send what a port can, and schedule the next drain if packets are left.
+	 */
+	private void drainPort(OutputPort port) {
+		if (stopped) {
+			return;
+		}
+		long wait = port.drain();
+		if (wait > 0 && port.claimDrain()) {
+			TIMER.schedule(() -> {
+				port.releaseDrain();
+				drainPort(port);
+			}, wait, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	/* Send a datagram through the transport, counting it if it was dropped.
+	 */
+	private boolean send(ByteBuffer buffer, int node) {
+		if (transport.send(node, buffer)) {
+			return true;
+		}
+		sendDrops.increment();
+		return false;
+	}
+
+	/* Takes the data from a message and the id of the previous hop of the packet.
+	 * Looks up the row with the correct previous hop, source address and destination
+	 * address to return the next hop in the table; rows may leave any of these as
+	 * a wildcard, and of the rows that match the one with the highest priority
+	 * wins. If no next hop is found, the next hop
+	 * is set as the controller port so that the controller can decide what to do with the
+	 * packet. Lock-free: it reads whichever table was last published. If the
+	 * entry is a group, the flow's hash picks the next hop. If that neighbour is
+	 * down, the packet fails over to the next member of the group that is up, or
+	 * else to the entry's backup. The entry found counts the packet and its
+	 * length.
+	 */
+	private int checkFlowtable(byte[] data, int length, int prev) {
 		assert (getType(data) == NODE_MESSAGE);
-		byte prev = (byte) (port - BASE_PORT_NUMBER);
-		if (prev <= NUM_ROUTERS) {
-			terminal.println("Received a message from router " + prev + ".");
-		} else {
-			terminal.println("Received a message from end user " + (prev - NUM_ROUTERS) + ".");
+		FlowEntry entry = flowTable.lookup(getMessageSource(data), getMessageDest(data), prev);
+		if (entry == null) {
+			return CONTROLLER_PORT;
+		}
+		int member = entry.select(getMessageSource(data), getMessageDest(data));
+		int[] down = downNeighbours;
+		if (down.length > 0 && contains(down, entry.outPorts[member])) {
+			member = failover(entry, member, down);
+		}
+		entry.count(member, length, entry.idleTimeout > 0 ? System.currentTimeMillis() : 0);
+		if (member < 0) {
+			return entry.backupPort != 0 && !contains(down, entry.backupPort) ? entry.backupPort : CONTROLLER_PORT;
+		}
+		return entry.outPorts[member];
+	}
+
+	/* Return the next member of a group after the chosen one whose neighbour is
+	 * up, or -1 if there is none.
+	 */
+	private static int failover(FlowEntry entry, int member, int[] down) {
+		for (int i = 1; i < entry.outPorts.length; i++) {
+			int candidate = (member + i) % entry.outPorts.length;
+			if (!contains(down, entry.outPorts[candidate])) {
+				return candidate;
+			}
 		}
-		byte src = getMessageSource(data);
-		byte dst = getMessageDest(data);
+		return -1;
+	}
+
+	/* Parse a comma-separated list of class weights.
+	 */
+	private static int[] parseWeights(String weights) {
+		int[] parsed = Arrays.stream(weights.split(",")).map(String::trim).filter(weight -> !weight.isEmpty())
+				.mapToInt(Integer::parseInt).toArray();
+		return parsed.length > 0 ? parsed : new int[] { 1 };
+	}
+
+	/**
+	 * Whether a neighbouring router has been heard from. Set by the receive
+	 * path, and read and cleared once a round by the keepalive thread.
+	 */
+	private static class Liveness {
+		volatile boolean heard;
+		/** Rounds in a row nothing was heard in, -1 until anything has been. */
+		private int misses = -1;
 
-		int nextHop = CONTROLLER_PORT;
-		int i = 0;
-		while (i < flowTable.length && nextHop == CONTROLLER_PORT) {
-			if (src == flowTable[i][SRC_INDEX] && dst == flowTable[i][DST_INDEX] && prev == flowTable[i][INPUT_INDEX]) {
-				nextHop = flowTable[i][OUTPUT_INDEX];
+		/*
+		 * End a round, counting it as missed if nothing was heard and it counts:
+		 * return the rounds in a row the neighbour has now been silent for.
+		 */
+		int endRound(boolean counts) {
+			if (heard) {
+				heard = false;
+				misses = 0;
+			} else if (counts && misses >= 0 && misses < Integer.MAX_VALUE) {
+				misses++;
 			}
-			i++;
+			return misses;
 		}
-		return (byte) nextHop;
 	}
 }
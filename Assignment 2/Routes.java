@@ -0,0 +1,502 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Shortest-path routes between every pair of nodes of a topology, and the flow
+ * tables they give each router. Routes are computed with Dijkstra's algorithm
+ * once per destination, with the destinations spread across threads. Only
+ * routers carry traffic through; end users are only ever the ends of a path.
+ * Where a router has more than one next hop on a shortest path, its entry is
+ * a group weighted by the number of shortest paths through each next hop, so
+ * that flows spread evenly over all the paths.
+ *
+ * Each entry of a router on a shortest path also names a backup next hop
+ * where there is one: a neighbouring router off the shortest paths whose own
+ * shortest path does not come back through the router (a loop-free
+ * alternate). The routers on from the backup get entries too, so a router
+ * can switch to it the moment its next hops go down.
+ *
+ * A Routes object never changes. A link change produces a new one that shares
+ * the routes of every destination the change cannot affect. Internally nodes
+ * are numbered by their Topology index, so sparse ids cost nothing; every
+ * method takes and returns ids.
+ */
+public class Routes {
+	static final int UNREACHABLE = Integer.MAX_VALUE;
+
+	/** Node id by index, as in the topology the routes were computed from. */
+	private final int[] ids;
+	/** Type, neighbour indices and link costs by index. */
+	private final byte[] types;
+	private final int[][] neighbours;
+	private final int[][] costs;
+	/** nextHop[d][n] is the index of the next node from n towards d, or 0 if there is none. */
+	private final int[][] nextHop;
+	/** distance[d][n] is the cost from n to d, or UNREACHABLE. */
+	private final int[][] distance;
+	/** pathCount[d][n] is the number of shortest paths from n to d, capped at Integer.MAX_VALUE. */
+	private final int[][] pathCount;
+	/** Flow table entries by router id. */
+	private final Map<Integer, List<FlowEntry>> tables;
+	/** Each router's entries by the flow they belong to, keyed by source and destination, made on first use. */
+	private final ConcurrentHashMap<Integer, Map<Long, List<FlowEntry>>> flowIndex =
+			new ConcurrentHashMap<Integer, Map<Long, List<FlowEntry>>>();
+	/** Each router's table with one wildcard entry per destination, made on first use. */
+	private final ConcurrentHashMap<Integer, List<FlowEntry>> minimisedTables =
+			new ConcurrentHashMap<Integer, List<FlowEntry>>();
+
+	private Routes(Topology topology, int[][] nextHop, int[][] distance, int[][] pathCount) {
+		int size = topology.size();
+		ids = new int[size];
+		types = new byte[size];
+		neighbours = new int[size][];
+		costs = new int[size][];
+		for (int i = 0; i < size; i++) {
+			ids[i] = topology.id(i);
+		}
+		neighbours[0] = new int[0];
+		costs[0] = new int[0];
+		for (int i = 1; i < size; i++) {
+			types[i] = topology.getType(ids[i]);
+			neighbours[i] = topology.getNeighbours(ids[i]);
+			for (int j = 0; j < neighbours[i].length; j++) {
+				neighbours[i][j] = topology.index(neighbours[i][j]);
+			}
+			costs[i] = topology.getCosts(ids[i]);
+		}
+		this.nextHop = nextHop;
+		this.distance = distance;
+		this.pathCount = pathCount;
+		IntStream.range(1, size).parallel().filter(d -> types[d] != Topology.NONE && nextHop[d] == null)
+				.forEach(this::computeDestination);
+		tables = buildTables();
+	}
+
+	/*
+	 * Compute the routes of every destination in a topology.
+	 */
+	static Routes compute(Topology topology) {
+		Topology snapshot = topology.snapshot();
+		int size = snapshot.size();
+		return new Routes(snapshot, new int[size][], new int[size][], new int[size][]);
+	}
+
+	/*
+	 * Compute the routes after the cost of the link between a and b changed in
+	 * the topology. Only destinations with a shortest path over the link, or that
+	 * the link could now shorten or give another equal path, are computed again.
+	 */
+	Routes afterLinkChange(Topology topology, int a, int b) {
+		Topology snapshot = topology.snapshot();
+		int size = snapshot.size();
+		// Routes can only be shared while every node keeps its index.
+		boolean sameNodes = size == ids.length;
+		for (int i = 1; sameNodes && i < size; i++) {
+			sameNodes = snapshot.id(i) == ids[i];
+		}
+		int indexA = index(a);
+		int indexB = index(b);
+		int oldCost = indexA > 0 && indexB > 0 ? linkCost(neighbours[indexA], costs[indexA], indexB) : 0;
+		int cost = linkCost(snapshot.getNeighbours(a), snapshot.getCosts(a), b);
+		int[][] newNextHop = new int[size][];
+		int[][] newDistance = new int[size][];
+		int[][] newPathCount = new int[size][];
+		for (int d = 1; sameNodes && d < size; d++) {
+			if (nextHop[d] != null && !affects(d, indexA, indexB, oldCost, cost)) {
+				newNextHop[d] = nextHop[d];
+				newDistance[d] = distance[d];
+				newPathCount[d] = pathCount[d];
+			}
+		}
+		return new Routes(snapshot, newNextHop, newDistance, newPathCount);
+	}
+
+	/*
+	 * Return the destinations whose routes differ from an earlier Routes object.
+	 */
+	int[] changedDestinations(Routes previous) {
+		return IntStream.range(1, nextHop.length)
+				.filter(d -> nextHop[d] != null
+						&& (d >= previous.nextHop.length || previous.nextHop[d] != nextHop[d]))
+				.map(d -> ids[d]).toArray();
+	}
+
+	/*
+	 * Return the flow table entries of a router; empty if it carries no traffic.
+	 */
+	List<FlowEntry> tableFor(int router) {
+		List<FlowEntry> table = tables.get(router);
+		return table == null ? Collections.<FlowEntry>emptyList() : table;
+	}
+
+	/*
+	 * Return a router's table with the entries to each destination aggregated,
+	 * as TableMinimiser does.
+	 */
+	List<FlowEntry> minimisedTableFor(int router) {
+		return minimisedTables.computeIfAbsent(router, id -> TableMinimiser.minimise(tableFor(id)));
+	}
+
+	/*
+	 * Return the entries of a router's table for the flow from src to dst.
+	 */
+	List<FlowEntry> entriesFor(int router, int src, int dst) {
+		Map<Long, List<FlowEntry>> index = flowIndex.computeIfAbsent(router, id -> tableFor(id).stream()
+				.collect(Collectors.groupingBy(entry -> ((long) entry.src << 32) | (entry.dst & 0xFFFFFFFFL))));
+		return index.getOrDefault(((long) src << 32) | (dst & 0xFFFFFFFFL), Collections.<FlowEntry>emptyList());
+	}
+
+	/*
+	 * Return the path from src to dst including both ends, or an empty array if
+	 * dst cannot be reached.
+	 */
+	int[] path(int src, int dst) {
+		int[] path = indexPath(index(src), index(dst));
+		for (int i = 0; i < path.length; i++) {
+			path[i] = ids[path[i]];
+		}
+		return path;
+	}
+
+	private int[] indexPath(int src, int dst) {
+		if (src < 0 || dst < 0 || nextHop[dst] == null || distance[dst][src] == UNREACHABLE) {
+			return new int[0];
+		}
+		int[] path = new int[types.length];
+		int length = 0;
+		for (int node = src; node != dst; node = nextHop[dst][node]) {
+			path[length++] = node;
+		}
+		path[length++] = dst;
+		return Arrays.copyOf(path, length);
+	}
+
+	/*
+	 * Return the routers that hold an entry for the flow from src to dst: those
+	 * on any shortest path, and those on from their backup next hops.
+	 */
+	int[] routersOn(int src, int dst) {
+		Set<Integer> routers = new LinkedHashSet<Integer>();
+		walk(index(src), index(dst), (router, previous, next, backup) -> routers.add(ids[router]));
+		return routers.stream().mapToInt(Integer::intValue).toArray();
+	}
+
+	/*
+	 * Return the next node from a node towards dst, or 0 if there is none.
+	 */
+	int nextHop(int node, int dst) {
+		int from = index(node);
+		int to = index(dst);
+		return from >= 0 && to >= 0 && nextHop[to] != null ? ids[nextHop[to][from]] : 0;
+	}
+
+	int distance(int src, int dst) {
+		int from = index(src);
+		int to = index(dst);
+		return from >= 0 && to >= 0 && distance[to] != null ? distance[to][from] : UNREACHABLE;
+	}
+
+	/*
+	 * Return the index of a node, or -1 if it is not in the topology.
+	 */
+	private int index(int id) {
+		int index = Arrays.binarySearch(ids, id);
+		return index > 0 ? index : -1;
+	}
+
+	/*
+	 * True if a change to the link between a and b from its old cost to its new
+	 * cost (0 if absent) can change the routes towards d.
+	 */
+	private boolean affects(int d, int a, int b, int oldCost, int cost) {
+		if (oldCost > 0 && (onShortestPath(d, a, b, oldCost) || onShortestPath(d, b, a, oldCost))) {
+			return true;
+		}
+		if (cost == 0) {
+			return false;
+		}
+		return notLonger(distance[d][b], cost, distance[d][a]) || notLonger(distance[d][a], cost, distance[d][b]);
+	}
+
+	/*
+	 * True if the hop from one node to another is on a shortest path to d.
+	 */
+	private boolean onShortestPath(int d, int from, int to, int cost) {
+		return distance[d][to] != UNREACHABLE && (long) distance[d][to] + cost == distance[d][from]
+				&& (to == d || types[to] == Topology.ROUTER);
+	}
+
+	private static boolean notLonger(int from, int cost, int current) {
+		return from != UNREACHABLE && (long) from + cost <= current;
+	}
+
+	/*
+	 * Return the neighbours of a node that are on a shortest path from it to d,
+	 * in neighbour order.
+	 */
+	private int[] equalCostHops(int node, int d) {
+		int[] ids = neighbours[node];
+		int[] hops = new int[ids.length];
+		int count = 0;
+		for (int i = 0; i < ids.length; i++) {
+			if (distance[d][node] != UNREACHABLE && onShortestPath(d, node, ids[i], costs[node][i])) {
+				hops[count++] = ids[i];
+			}
+		}
+		return Arrays.copyOf(hops, count);
+	}
+
+	private static int linkCost(int[] ids, int[] linkCosts, int b) {
+		for (int i = 0; i < ids.length; i++) {
+			if (ids[i] == b) {
+				return linkCosts[i];
+			}
+		}
+		return 0;
+	}
+
+	/*
+	 * Run Dijkstra's algorithm outwards from destination d, giving every node its
+	 * cost to d and its next hop towards d. Ties go to the neighbour reached
+	 * first, which keeps the result the same from run to run.
+	 */
+	private void computeDestination(int d) {
+		int size = types.length;
+		int[] dist = new int[size];
+		int[] next = new int[size];
+		Arrays.fill(dist, UNREACHABLE);
+		dist[d] = 0;
+		// Nodes in the order they are settled, nearest first.
+		int[] settled = new int[size];
+		int settledCount = 0;
+		// Binary heap of (distance << 32 | node), stale entries skipped when popped.
+		long[] heap = new long[16];
+		int heapSize = 0;
+		heap[heapSize++] = d;
+		while (heapSize > 0) {
+			long top = heap[0];
+			heap[0] = heap[--heapSize];
+			siftDown(heap, heapSize);
+			int node = (int) top;
+			int nodeDistance = (int) (top >>> 32);
+			if (nodeDistance > dist[node]) {
+				continue;
+			}
+			settled[settledCount++] = node;
+			if (node != d && types[node] != Topology.ROUTER) {
+				continue;
+			}
+			for (int i = 0; i < neighbours[node].length; i++) {
+				int neighbour = neighbours[node][i];
+				long candidate = (long) nodeDistance + costs[node][i];
+				if (candidate < dist[neighbour]) {
+					dist[neighbour] = (int) candidate;
+					next[neighbour] = node;
+					if (heapSize == heap.length) {
+						heap = Arrays.copyOf(heap, heapSize * 2);
+					}
+					heap[heapSize] = (candidate << 32) | neighbour;
+					siftUp(heap, heapSize++);
+				}
+			}
+		}
+		nextHop[d] = next;
+		distance[d] = dist;
+		// Count the shortest paths, each node from the counts of its next hops,
+		// which are all settled before it.
+		int[] count = new int[size];
+		count[d] = 1;
+		for (int i = 1; i < settledCount; i++) {
+			int node = settled[i];
+			long paths = 0;
+			for (int hop : equalCostHops(node, d)) {
+				paths += count[hop];
+			}
+			count[node] = (int) Math.min(paths, Integer.MAX_VALUE);
+		}
+		pathCount[d] = count;
+	}
+
+	/*
+	 * Walk the shortest paths between every pair of end users, computed in
+	 * parallel, and give each router on them an entry from each previous node to
+	 * its next hop or hops.
+	 */
+	private Map<Integer, List<FlowEntry>> buildTables() {
+		int[] endUsers = IntStream.range(1, types.length).filter(index -> types[index] == Topology.END_USER).toArray();
+		List<Map<Integer, List<FlowEntry>>> rowsBySource = IntStream.range(0, endUsers.length).parallel()
+				.mapToObj(i -> rowsFrom(endUsers[i], endUsers)).collect(Collectors.toList());
+		Map<Integer, List<FlowEntry>> result = new HashMap<Integer, List<FlowEntry>>();
+		for (Map<Integer, List<FlowEntry>> rows : rowsBySource) {
+			for (Map.Entry<Integer, List<FlowEntry>> router : rows.entrySet()) {
+				result.computeIfAbsent(router.getKey(), k -> new ArrayList<FlowEntry>()).addAll(router.getValue());
+			}
+		}
+		return result;
+	}
+
+	/*
+	 * Return the entries, by router id, for every flow starting at one end user.
+	 */
+	private Map<Integer, List<FlowEntry>> rowsFrom(int src, int[] endUsers) {
+		Map<Integer, List<FlowEntry>> rows = new HashMap<Integer, List<FlowEntry>>();
+		for (int dst : endUsers) {
+			if (dst != src) {
+				walk(src, dst, (router, previous, next, backup) -> rows
+						.computeIfAbsent(ids[router], k -> new ArrayList<FlowEntry>())
+						.add(new FlowEntry(ids[src], ids[dst], ids[previous], idsOf(next), weights(next, dst),
+								ids[backup], 0, 0)));
+			}
+		}
+		return rows;
+	}
+
+	/*
+	 * Visit every entry the flow from src to dst needs. The end user's own
+	 * router is reached first; from there every router on a shortest path gets
+	 * an entry for each node it can be reached from, naming its next hops and
+	 * backup. The backup of a router on a shortest path is followed too, along
+	 * its own shortest paths, but backups off the shortest paths are not.
+	 */
+	private void walk(int src, int dst, HopVisitor visitor) {
+		if (indexPath(src, dst).length < 3) {
+			return;
+		}
+		Set<Long> seen = new HashSet<Long>();
+		ArrayDeque<int[]> queue = new ArrayDeque<int[]>();
+		// Hops from backups are taken once every shortest path has been walked.
+		ArrayDeque<int[]> detours = new ArrayDeque<int[]>();
+		// Router, node it is reached from, and 1 if it is on a shortest path.
+		queue.add(new int[] { nextHop[dst][src], src, 1 });
+		while (!queue.isEmpty() || !detours.isEmpty()) {
+			int[] hop = queue.isEmpty() ? detours.poll() : queue.poll();
+			int router = hop[0];
+			if (!seen.add(((long) router << 32) | (hop[1] & 0xFFFFFFFFL))) {
+				continue;
+			}
+			int[] next = equalCostHops(router, dst);
+			int backup = backupHop(router, dst, next);
+			visitor.visit(router, hop[1], next, backup);
+			for (int node : next) {
+				if (node != dst) {
+					(hop[2] == 1 ? queue : detours).add(new int[] { node, router, hop[2] });
+				}
+			}
+			if (backup != 0 && hop[2] == 1) {
+				detours.add(new int[] { backup, router, 0 });
+			}
+		}
+	}
+
+	private interface HopVisitor {
+		void visit(int router, int previous, int[] next, int backup);
+	}
+
+	/*
+	 * Return the cheapest neighbouring router of a router, other than its next
+	 * hops, whose shortest path to dst is shorter than going back through the
+	 * router, so a packet sent there never returns. 0 if there is none.
+	 */
+	private int backupHop(int router, int dst, int[] next) {
+		int[] toRouter = router < distance.length ? distance[router] : null;
+		if (toRouter == null || distance[dst][router] == UNREACHABLE) {
+			return 0;
+		}
+		int best = 0;
+		long bestCost = Long.MAX_VALUE;
+		for (int i = 0; i < neighbours[router].length; i++) {
+			int node = neighbours[router][i];
+			if (types[node] != Topology.ROUTER || contains(next, node) || distance[dst][node] == UNREACHABLE
+					|| toRouter[node] == UNREACHABLE) {
+				continue;
+			}
+			if ((long) distance[dst][node] < (long) toRouter[node] + distance[dst][router]
+					&& (long) costs[router][i] + distance[dst][node] < bestCost) {
+				best = node;
+				bestCost = (long) costs[router][i] + distance[dst][node];
+			}
+		}
+		return best;
+	}
+
+	private int[] idsOf(int[] indices) {
+		int[] result = new int[indices.length];
+		for (int i = 0; i < indices.length; i++) {
+			result[i] = ids[indices[i]];
+		}
+		return result;
+	}
+
+	private static boolean contains(int[] array, int value) {
+		for (int element : array) {
+			if (element == value) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/*
+	 * Weigh each next hop by the number of shortest paths through it, scaled to
+	 * fit in a byte.
+	 */
+	private int[] weights(int[] next, int dst) {
+		int[] weights = new int[next.length];
+		long max = 1;
+		for (int node : next) {
+			max = Math.max(max, pathCount[dst][node]);
+		}
+		for (int i = 0; i < next.length; i++) {
+			long count = pathCount[dst][next[i]];
+			weights[i] = (int) Math.max(1, max <= 255 ? count : count * 255 / max);
+		}
+		return weights;
+	}
+
+	private static void siftUp(long[] heap, int index) {
+		long value = heap[index];
+		while (index > 0) {
+			int parent = (index - 1) >>> 1;
+			if (heap[parent] <= value) {
+				break;
+			}
+			heap[index] = heap[parent];
+			index = parent;
+		}
+		heap[index] = value;
+	}
+
+	private static void siftDown(long[] heap, int size) {
+		if (size == 0) {
+			return;
+		}
+		long value = heap[0];
+		int index = 0;
+		while (true) {
+			int child = 2 * index + 1;
+			if (child >= size) {
+				break;
+			}
+			if (child + 1 < size && heap[child + 1] < heap[child]) {
+				child++;
+			}
+			if (heap[child] >= value) {
+				break;
+			}
+			heap[index] = heap[child];
+			index = child;
+		}
+		heap[index] = value;
+	}
+}
@@ -0,0 +1,56 @@
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketException;
+
+/**
+ * A node with a datagram socket of its own, whose listener thread hands each
+ * packet it receives to onReceipt.
+ */
+public abstract class SocketNode extends Node {
+
+	DatagramSocket socket;
+	/** Started by go() once the socket is open. */
+	Listener listener;
+
+	SocketNode() {
+		listener = new Listener();
+		listener.setDaemon(true);
+	}
+
+	public abstract void onReceipt(DatagramPacket packet);
+
+	/**
+	 *
+	 * Listener thread
+	 *
+	 * Listens for incoming packets on a datagram socket and informs registered
+	 * receivers about incoming packets.
+	 */
+	class Listener extends Thread {
+
+		/*
+		 * Start listening, once the socket has been initialized
+		 */
+		public void go() {
+			start();
+		}
+
+		/*
+		 * Listen for incoming packets and inform receivers
+		 */
+		public synchronized void run() {
+			try {
+				// Endless loop: attempt to receive packet, notify receivers,
+				// etc
+				while (true) {
+					DatagramPacket packet = new DatagramPacket(new byte[MAX_MTU], MAX_MTU);
+					socket.receive(packet);
+					onReceipt(packet);
+				}
+			} catch (Exception e) {
+				if (!(e instanceof SocketException))
+					e.printStackTrace();
+			}
+		}
+	}
+}
@@ -0,0 +1,82 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shrinks a router's flow table before the controller sends it. Shortest-path
+ * routing gives a router an entry for every flow it carries, one per source
+ * and input node, though the action mostly depends on the destination alone.
+ * The entries to each destination are replaced by one entry matching any
+ * source and input node, with the action most of them share, and only the
+ * entries whose action differs are kept, as exceptions at a higher priority.
+ * The entries the wildcard shadows are dropped.
+ *
+ * The wildcard also forwards sources and input nodes that had no entry, which
+ * used to miss to the controller. That is safe for the tables Routes gives: a
+ * router's action for a destination is its next hops on the shortest paths,
+ * their weights and its loop-free backup, none of which depend on the source
+ * or the input node. Such a packet gets the action its own entry would have
+ * had, so it moves strictly closer to the destination and cannot loop; a
+ * router further on with no entry for it still sends it to the controller.
+ * Reactive tables, where a miss is what installs a flow, are not minimised.
+ *
+ * Entries are never merged across destinations, so a packet for an end user
+ * with no route still misses and goes to the controller rather than following
+ * a default route that could loop.
+ */
+public class TableMinimiser {
+	/** Priority of a wildcard entry, below the exact entries that override it. */
+	static final int AGGREGATE_PRIORITY = FlowEntry.DEFAULT_PRIORITY - 1;
+
+	/*
+	 * Return a table that forwards every flow the entries match as they do,
+	 * with as few entries as one wildcard per destination allows. Destinations
+	 * that already have wildcard entries or entries at other priorities are left
+	 * as they are.
+	 */
+	static List<FlowEntry> minimise(List<FlowEntry> entries) {
+		Map<Integer, List<FlowEntry>> byDestination = new LinkedHashMap<Integer, List<FlowEntry>>();
+		for (FlowEntry entry : entries) {
+			byDestination.computeIfAbsent(entry.dst, dst -> new ArrayList<FlowEntry>()).add(entry);
+		}
+		List<FlowEntry> result = new ArrayList<FlowEntry>();
+		for (List<FlowEntry> group : byDestination.values()) {
+			if (!canAggregate(group)) {
+				result.addAll(group);
+				continue;
+			}
+			// Each entry's action as a wildcard for its destination; equal actions give equal entries.
+			Map<FlowEntry, Integer> counts = new LinkedHashMap<FlowEntry, Integer>();
+			FlowEntry common = null;
+			for (FlowEntry entry : group) {
+				FlowEntry aggregate = aggregate(entry);
+				int count = counts.merge(aggregate, 1, Integer::sum);
+				if (common == null || count > counts.get(common)) {
+					common = aggregate;
+				}
+			}
+			result.add(common);
+			for (FlowEntry entry : group) {
+				if (!aggregate(entry).equals(common)) {
+					result.add(entry);
+				}
+			}
+		}
+		return result;
+	}
+
+	private static boolean canAggregate(List<FlowEntry> group) {
+		for (FlowEntry entry : group) {
+			if (entry.isWildcard() || entry.priority != FlowEntry.DEFAULT_PRIORITY) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static FlowEntry aggregate(FlowEntry entry) {
+		return new FlowEntry(FlowEntry.ANY, entry.dst, FlowEntry.ANY, entry.outPorts, entry.weights, entry.backupPort,
+				AGGREGATE_PRIORITY, entry.idleTimeout, entry.hardTimeout);
+	}
+}
@@ -0,0 +1,199 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * In-band telemetry carried by a NODE_MESSAGE whose traffic class byte has the
+ * telemetry flag set. The sender leaves a block after the content; every
+ * router on the path appends a record of itself to it, and the end user that
+ * receives the message reads the path back and reports it to the controller
+ * in a TELEMETRY message.
+ *
+ * Block layout, after the content; byte 0 = number of hops recorded, bytes
+ * 1-8 = System.nanoTime at which the last node sent the message, then ten
+ * bytes per hop: router id (four bytes), nanoseconds since the previous node
+ * sent the message (four bytes, unsigned) and depth of the output queue the
+ * router put it in (two bytes). A hop that does not fit in the datagram is
+ * not recorded.
+ *
+ * The nanosecond deltas span the link from the previous node as well as the
+ * time in the router, so they only mean something between nodes that share a
+ * clock, as every node does when they all run on one host.
+ *
+ * TELEMETRY layout; byte 0 = type, bytes 1-4 = source, bytes 5-8 =
+ * destination, byte 9 = number of hops, ten bytes per hop as above, then the
+ * nanoseconds from the last router to the end user (four bytes).
+ */
+public class Telemetry {
+	/** Set in the traffic class byte of a message that carries telemetry. */
+	static final int FLAG = 0x80;
+	static final int BLOCK_HEADER_LENGTH = 9;
+	static final int HOP_LENGTH = Node.ID_LENGTH + 6;
+	static final int REPORT_HEADER_LENGTH = 2 + 2 * Node.ID_LENGTH;
+
+	/** One router on a message's path. */
+	static class Hop {
+		final int router;
+		final long nanos;
+		final int depth;
+
+		Hop(int router, long nanos, int depth) {
+			this.router = router;
+			this.nanos = nanos;
+			this.depth = depth;
+		}
+	}
+
+	final int src;
+	final int dst;
+	final List<Hop> hops;
+	/** Nanoseconds from the last router to the end user. */
+	final long lastNanos;
+
+	Telemetry(int src, int dst, List<Hop> hops, long lastNanos) {
+		this.src = src;
+		this.dst = dst;
+		this.hops = hops;
+		this.lastNanos = lastNanos;
+	}
+
+	static boolean isEnabled(byte[] message) {
+		return (message[Node.TRAFFIC_CLASS_OFFSET] & FLAG) != 0;
+	}
+
+	/*
+	 * Set the telemetry flag of a message and start its block, empty, with the
+	 * time it is sent. Does nothing if the block does not fit.
+	 */
+	static void start(byte[] message) {
+		int offset = blockOffset(message);
+		if (offset + BLOCK_HEADER_LENGTH > message.length) {
+			return;
+		}
+		message[Node.TRAFFIC_CLASS_OFFSET] |= FLAG;
+		message[offset] = 0;
+		setLong(message, offset + 1, System.nanoTime());
+	}
+
+	/*
+	 * Append a router's record to the block of a message of the given length,
+	 * and stamp the message with the time it leaves the router.
+	 */
+	static void recordHop(byte[] message, int length, int router, int depth) {
+		int offset = blockOffset(message);
+		if (offset + BLOCK_HEADER_LENGTH > length) {
+			return;
+		}
+		long now = System.nanoTime();
+		int hops = message[offset] & 0xFF;
+		int record = offset + BLOCK_HEADER_LENGTH + hops * HOP_LENGTH;
+		if (record + HOP_LENGTH <= length && hops < 0xFF) {
+			Node.setInt(message, record, router);
+			Node.setInt(message, record + Node.ID_LENGTH,
+					(int) Math.min(now - getLong(message, offset + 1), 0xFFFFFFFFL));
+			int queued = Math.min(depth, 0xFFFF);
+			message[record + Node.ID_LENGTH + 4] = (byte) (queued >>> 8);
+			message[record + Node.ID_LENGTH + 5] = (byte) queued;
+			message[offset] = (byte) (hops + 1);
+		}
+		setLong(message, offset + 1, System.nanoTime());
+	}
+
+	/*
+	 * Read the path of a message as it arrives at its end user, or return null
+	 * if it carries no telemetry.
+	 */
+	static Telemetry read(byte[] message, int length) {
+		int offset = blockOffset(message);
+		if (!isEnabled(message) || offset + BLOCK_HEADER_LENGTH > length) {
+			return null;
+		}
+		long lastNanos = System.nanoTime() - getLong(message, offset + 1);
+		int count = message[offset] & 0xFF;
+		List<Hop> hops = new ArrayList<Hop>(count);
+		for (int i = 0; i < count; i++) {
+			int record = offset + BLOCK_HEADER_LENGTH + i * HOP_LENGTH;
+			if (record + HOP_LENGTH > length) {
+				break;
+			}
+			hops.add(readHop(message, record));
+		}
+		return new Telemetry(Node.getInt(message, 2), Node.getInt(message, 2 + Node.ID_LENGTH), hops, lastNanos);
+	}
+
+	/*
+	 * Return the TELEMETRY message an end user sends the controller.
+	 */
+	byte[] report() {
+		byte[] data = new byte[REPORT_HEADER_LENGTH + hops.size() * HOP_LENGTH + 4];
+		data[0] = Node.TELEMETRY;
+		Node.setInt(data, 1, src);
+		Node.setInt(data, 1 + Node.ID_LENGTH, dst);
+		data[1 + 2 * Node.ID_LENGTH] = (byte) hops.size();
+		int offset = REPORT_HEADER_LENGTH;
+		for (Hop hop : hops) {
+			Node.setInt(data, offset, hop.router);
+			Node.setInt(data, offset + Node.ID_LENGTH, (int) hop.nanos);
+			data[offset + Node.ID_LENGTH + 4] = (byte) (hop.depth >>> 8);
+			data[offset + Node.ID_LENGTH + 5] = (byte) hop.depth;
+			offset += HOP_LENGTH;
+		}
+		Node.setInt(data, offset, (int) Math.min(lastNanos, 0xFFFFFFFFL));
+		return data;
+	}
+
+	/*
+	 * Read a TELEMETRY message, or return null if it is cut short.
+	 */
+	static Telemetry decode(byte[] data, int length) {
+		if (length < REPORT_HEADER_LENGTH + 4) {
+			return null;
+		}
+		int count = data[1 + 2 * Node.ID_LENGTH] & 0xFF;
+		if (length < REPORT_HEADER_LENGTH + count * HOP_LENGTH + 4) {
+			return null;
+		}
+		List<Hop> hops = new ArrayList<Hop>(count);
+		for (int i = 0; i < count; i++) {
+			hops.add(readHop(data, REPORT_HEADER_LENGTH + i * HOP_LENGTH));
+		}
+		return new Telemetry(Node.getInt(data, 1), Node.getInt(data, 1 + Node.ID_LENGTH), hops,
+				Node.getInt(data, REPORT_HEADER_LENGTH + count * HOP_LENGTH) & 0xFFFFFFFFL);
+	}
+
+	long totalNanos() {
+		long total = lastNanos;
+		for (Hop hop : hops) {
+			total += hop.nanos;
+		}
+		return total;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder text = new StringBuilder();
+		for (Hop hop : hops) {
+			text.append("router ").append(hop.router).append(String.format(" %.1f us", hop.nanos / 1e3))
+					.append(hop.depth > 0 ? " (" + hop.depth + " queued)" : "").append(", ");
+		}
+		return text.append(String.format("end user %d %.1f us; total %.1f us", dst, lastNanos / 1e3,
+				totalNanos() / 1e3)).toString();
+	}
+
+	private static Hop readHop(byte[] data, int offset) {
+		return new Hop(Node.getInt(data, offset), Node.getInt(data, offset + Node.ID_LENGTH) & 0xFFFFFFFFL,
+				((data[offset + Node.ID_LENGTH + 4] & 0xFF) << 8) | (data[offset + Node.ID_LENGTH + 5] & 0xFF));
+	}
+
+	private static int blockOffset(byte[] message) {
+		return Node.MESSAGE_HEADER_LENGTH + (message[1] & 0xFF);
+	}
+
+	private static long getLong(byte[] data, int offset) {
+		return ((long) Node.getInt(data, offset) << 32) | (Node.getInt(data, offset + 4) & 0xFFFFFFFFL);
+	}
+
+	private static void setLong(byte[] data, int offset, long value) {
+		Node.setInt(data, offset, (int) (value >>> 32));
+		Node.setInt(data, offset + 4, (int) value);
+	}
+}
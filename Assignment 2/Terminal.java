@@ -2,6 +2,7 @@ import java.awt.GridBagConstraints;
 import java.awt.GridBagLayout;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.io.PrintStream;
 
 import javax.swing.JFrame;
 import javax.swing.JLabel;
@@ -18,6 +19,9 @@ import javax.swing.JTextField;
 public class Terminal {
 
 	TerminalPanel panel;
+	/** Name and output stream of a terminal without a window. */
+	private String name;
+	private PrintStream out;
 
 	/**
 	 * This class provides the internal fields of the Terminal window, an output
@@ -116,6 +120,26 @@ public class Terminal {
 		frame.pack();
 	}
 
+	private Terminal(String name, PrintStream out) {
+		this.name = name;
+		this.out = out;
+	}
+
+	/**
+	 * This method creates a terminal without a window, for running many nodes in
+	 * one process. Output is written to a stream, prefixed with the terminal's
+	 * name, and input is always empty.
+	 * 
+	 * @param name
+	 *            Name of the terminal.
+	 * @param out
+	 *            Stream to print to, or null to discard the output.
+	 * @return The terminal.
+	 */
+	public static Terminal headless(String name, PrintStream out) {
+		return new Terminal(name, out);
+	}
+
 	/**
 	 * This method prints a string to the output field.
 	 * 
@@ -123,6 +147,12 @@ public class Terminal {
 	 *            String to print in the output field.
 	 */
 	public void print(String output) {
+		if (panel == null) {
+			if (out != null) {
+				out.print("[" + name + "] " + output);
+			}
+			return;
+		}
 		panel.print(output);
 	}
 
@@ -133,6 +163,12 @@ public class Terminal {
 	 *            String to print in the output field.
 	 */
 	public void println(String output) {
+		if (panel == null) {
+			if (out != null) {
+				out.println("[" + name + "] " + output);
+			}
+			return;
+		}
 		panel.println(output);
 	}
 
@@ -145,6 +181,9 @@ public class Terminal {
 	 */
 	public synchronized String read(String prompt) {
 		String input;
+		if (panel == null) {
+			return "";
+		}
 		panel.setPrompt(prompt);
 		input = panel.read();
 		panel.setPrompt("");
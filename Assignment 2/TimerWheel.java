@@ -0,0 +1,83 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hashed timer wheel. Items are dropped into the bucket of the tick their
+ * deadline falls in, modulo the wheel size, and each advance only visits the
+ * buckets of the ticks that have passed. Scheduling and expiring an item cost
+ * a few array operations, with no thread or scheduled task per item. Items
+ * more than one turn of the wheel away stay in their bucket until their turn
+ * comes round.
+ */
+public class TimerWheel<T> {
+	private final long tickMillis;
+	private final int mask;
+	private final List<List<Timeout<T>>> buckets;
+	/** The last tick advanced past. */
+	private long currentTick;
+
+	/*
+	 * Create a wheel of a power-of-two number of buckets, each tickMillis wide,
+	 * starting at the given time.
+	 */
+	TimerWheel(long tickMillis, int size, long now) {
+		if (Integer.bitCount(size) != 1) {
+			throw new IllegalArgumentException("Wheel size must be a power of two: " + size);
+		}
+		this.tickMillis = tickMillis;
+		this.mask = size - 1;
+		this.buckets = new ArrayList<List<Timeout<T>>>(size);
+		for (int i = 0; i < size; i++) {
+			buckets.add(new ArrayList<Timeout<T>>());
+		}
+		this.currentTick = now / tickMillis;
+	}
+
+	/*
+	 * Schedule an item to come out of advance() once the deadline, in
+	 * milliseconds, has passed. A deadline in the past fires on the next tick.
+	 */
+	synchronized void schedule(T item, long deadline) {
+		long tick = Math.max(deadline / tickMillis, currentTick + 1);
+		buckets.get((int) (tick & mask)).add(new Timeout<T>(item, tick));
+	}
+
+	/*
+	 * Move the wheel on to the given time and return the items whose deadlines
+	 * have passed.
+	 */
+	synchronized List<T> advance(long now) {
+		long targetTick = now / tickMillis;
+		List<T> expired = new ArrayList<T>();
+		long ticks = Math.min(targetTick - currentTick, mask + 1);
+		for (long i = 1; i <= ticks; i++) {
+			List<Timeout<T>> bucket = buckets.get((int) ((currentTick + i) & mask));
+			int kept = 0;
+			for (int j = 0; j < bucket.size(); j++) {
+				Timeout<T> timeout = bucket.get(j);
+				if (timeout.tick <= targetTick) {
+					expired.add(timeout.item);
+				} else {
+					bucket.set(kept++, timeout);
+				}
+			}
+			bucket.subList(kept, bucket.size()).clear();
+		}
+		currentTick = Math.max(currentTick, targetTick);
+		return expired;
+	}
+
+	long tickMillis() {
+		return tickMillis;
+	}
+
+	private static class Timeout<T> {
+		final T item;
+		final long tick;
+
+		Timeout(T item, long tick) {
+			this.item = item;
+			this.tick = tick;
+		}
+	}
+}
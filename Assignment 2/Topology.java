@@ -0,0 +1,313 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The nodes and links of the network as the controller sees them. Node ids
+ * can be any positive int, so the arrays are indexed by each node's position
+ * among the ids in increasing order instead, index 0 being the controller's;
+ * links are two-way and carry a positive cost, and an MTU, the longest
+ * datagram they carry.
+ */
+public class Topology {
+	static final byte NONE = 0;
+	static final byte ROUTER = 1;
+	static final byte END_USER = 2;
+
+	/** Node id by index, in increasing order; index 0 is the controller. */
+	private int[] ids = { Node.CONTROLLER_PORT };
+	/** Node type by index, NONE for the controller. */
+	private byte[] types = { NONE };
+	/** Neighbour ids and link costs by index. */
+	private int[][] neighbours = { new int[0] };
+	private int[][] costs = { new int[0] };
+	/** Addresses given in the file, by node id; 0 is the controller. */
+	private Map<Integer, InetSocketAddress> addresses = new HashMap<Integer, InetSocketAddress>();
+	/** MTUs given in the file, by linkKey; other links have Node.DEFAULT_MTU. */
+	private Map<Long, Integer> mtus = new HashMap<Long, Integer>();
+
+	/*
+	 * Read a topology file. Each non-empty line that is not a comment is
+	 * "router <id> [<host>:<port>]", "enduser <id> [<host>:<port>]",
+	 * "controller <host>:<port>" or "link <id> <id> <cost> [<mtu>]". Ids are
+	 * positive ints; nodes without an address get one from AddressBook.
+	 */
+	static Topology load(Path file) throws IOException {
+		Topology topology = new Topology();
+		int lineNumber = 0;
+		for (String line : Files.readAllLines(file)) {
+			lineNumber++;
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith("#")) {
+				continue;
+			}
+			String[] fields = line.split("\\s+");
+			try {
+				switch (fields[0]) {
+				case "router":
+					topology.addNode(Integer.parseInt(fields[1]), ROUTER);
+					if (fields.length > 2) {
+						topology.setAddress(Integer.parseInt(fields[1]), parseAddress(fields[2]));
+					}
+					break;
+				case "enduser":
+					topology.addNode(Integer.parseInt(fields[1]), END_USER);
+					if (fields.length > 2) {
+						topology.setAddress(Integer.parseInt(fields[1]), parseAddress(fields[2]));
+					}
+					break;
+				case "controller":
+					topology.setAddress(Node.CONTROLLER_PORT, parseAddress(fields[1]));
+					break;
+				case "link":
+					topology.setLink(Integer.parseInt(fields[1]), Integer.parseInt(fields[2]),
+							Integer.parseInt(fields[3]));
+					if (fields.length > 4) {
+						topology.setMtu(Integer.parseInt(fields[1]), Integer.parseInt(fields[2]),
+								Integer.parseInt(fields[4]));
+					}
+					break;
+				default:
+					throw new IOException(file + ":" + lineNumber + ": unknown entry " + fields[0]);
+				}
+			} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+				throw new IOException(file + ":" + lineNumber + ": malformed line: " + line);
+			}
+		}
+		return topology;
+	}
+
+	static Topology load(String file) throws IOException {
+		return load(Paths.get(file));
+	}
+
+	private static InetSocketAddress parseAddress(String field) {
+		int colon = field.lastIndexOf(':');
+		if (colon <= 0) {
+			throw new NumberFormatException(field);
+		}
+		return new InetSocketAddress(field.substring(0, colon), Integer.parseInt(field.substring(colon + 1)));
+	}
+
+	synchronized void addNode(int id, byte type) {
+		int index = insert(id);
+		types[index] = type;
+	}
+
+	/*
+	 * Set the address a node listens on, overriding the one AddressBook would
+	 * give it.
+	 */
+	synchronized void setAddress(int id, InetSocketAddress address) {
+		addresses.put(id, address);
+	}
+
+	/*
+	 * Return the address given for a node, or null if there is none.
+	 */
+	synchronized InetSocketAddress getAddress(int id) {
+		return addresses.get(id);
+	}
+
+	/*
+	 * Add a link, change its cost, or remove it when the cost is not positive.
+	 * Returns the previous cost, or 0 if there was no link.
+	 */
+	synchronized int setLink(int a, int b, int cost) {
+		int indexA = index(a);
+		int indexB = index(b);
+		if (indexA <= 0 || indexB <= 0) {
+			throw new IllegalArgumentException("Link between unknown nodes " + a + " and " + b);
+		}
+		int previous = setHalfLink(indexA, b, cost);
+		setHalfLink(indexB, a, cost);
+		return previous;
+	}
+
+	/*
+	 * Set the MTU of the link between a and b, which stays with the pair if the
+	 * link is removed and added again.
+	 */
+	synchronized void setMtu(int a, int b, int mtu) {
+		if (mtu < Node.MIN_MTU || mtu > Node.MAX_MTU) {
+			throw new IllegalArgumentException("MTU out of range: " + mtu);
+		}
+		mtus.put(linkKey(a, b), mtu);
+	}
+
+	synchronized int getMtu(int a, int b) {
+		Integer mtu = mtus.get(linkKey(a, b));
+		return mtu != null ? mtu : Node.DEFAULT_MTU;
+	}
+
+	private static long linkKey(int a, int b) {
+		return ((long) Math.min(a, b) << 32) | Math.max(a, b);
+	}
+
+	/*
+	 * Set the cost of the link from the node at index from to the node with id
+	 * to.
+	 */
+	private int setHalfLink(int from, int to, int cost) {
+		int[] nodes = neighbours[from];
+		for (int i = 0; i < nodes.length; i++) {
+			if (nodes[i] == to) {
+				int previous = costs[from][i];
+				if (cost > 0) {
+					costs[from][i] = cost;
+				} else {
+					neighbours[from] = remove(nodes, i);
+					costs[from] = remove(costs[from], i);
+				}
+				return previous;
+			}
+		}
+		if (cost > 0) {
+			neighbours[from] = Arrays.copyOf(nodes, nodes.length + 1);
+			neighbours[from][nodes.length] = to;
+			costs[from] = Arrays.copyOf(costs[from], nodes.length + 1);
+			costs[from][nodes.length] = cost;
+		}
+		return 0;
+	}
+
+	/*
+	 * Return a copy that later changes to this topology do not affect, for route
+	 * computations running on other threads.
+	 */
+	synchronized Topology snapshot() {
+		Topology copy = new Topology();
+		copy.ids = ids.clone();
+		copy.types = types.clone();
+		copy.neighbours = new int[neighbours.length][];
+		copy.costs = new int[costs.length][];
+		copy.addresses = new HashMap<Integer, InetSocketAddress>(addresses);
+		copy.mtus = new HashMap<Long, Integer>(mtus);
+		for (int i = 0; i < neighbours.length; i++) {
+			copy.neighbours[i] = neighbours[i].clone();
+			copy.costs[i] = costs[i].clone();
+		}
+		return copy;
+	}
+
+	/*
+	 * Return the number of indices: one per node, and index 0 for the
+	 * controller.
+	 */
+	synchronized int size() {
+		return ids.length;
+	}
+
+	/*
+	 * Return the id of the node at an index.
+	 */
+	synchronized int id(int index) {
+		return ids[index];
+	}
+
+	/*
+	 * Return the index of a node, or -1 if it is not in the topology. Indices
+	 * stay the same while no node is added.
+	 */
+	synchronized int index(int id) {
+		int index = Arrays.binarySearch(ids, id);
+		return index > 0 ? index : -1;
+	}
+
+	synchronized byte getType(int id) {
+		int index = index(id);
+		return index > 0 ? types[index] : NONE;
+	}
+
+	synchronized int[] getNeighbours(int id) {
+		int index = index(id);
+		return index > 0 ? neighbours[index].clone() : new int[0];
+	}
+
+	synchronized int[] getCosts(int id) {
+		int index = index(id);
+		return index > 0 ? costs[index].clone() : new int[0];
+	}
+
+	/*
+	 * Return the cost of the link between a and b, or 0 if there is none.
+	 */
+	synchronized int getCost(int a, int b) {
+		int index = index(a);
+		if (index <= 0) {
+			return 0;
+		}
+		for (int i = 0; i < neighbours[index].length; i++) {
+			if (neighbours[index][i] == b) {
+				return costs[index][i];
+			}
+		}
+		return 0;
+	}
+
+	/*
+	 * Return the ids of every node of a type, in increasing order.
+	 */
+	synchronized int[] nodesOfType(byte type) {
+		List<Integer> result = new ArrayList<Integer>();
+		for (int index = 1; index < types.length; index++) {
+			if (types[index] == type) {
+				result.add(ids[index]);
+			}
+		}
+		return result.stream().mapToInt(Integer::intValue).toArray();
+	}
+
+	/*
+	 * Return the index of a node, first making room for it in id order if it is
+	 * new.
+	 */
+	private int insert(int id) {
+		if (id <= 0) {
+			throw new IllegalArgumentException("Node ids must be positive: " + id);
+		}
+		int index = Arrays.binarySearch(ids, id);
+		if (index >= 0) {
+			return index;
+		}
+		index = -index - 1;
+		ids = insert(ids, index, id);
+		byte[] newTypes = new byte[types.length + 1];
+		System.arraycopy(types, 0, newTypes, 0, index);
+		System.arraycopy(types, index, newTypes, index + 1, types.length - index);
+		types = newTypes;
+		neighbours = insert(neighbours, index, new int[0]);
+		costs = insert(costs, index, new int[0]);
+		return index;
+	}
+
+	private static int[] insert(int[] array, int index, int value) {
+		int[] result = new int[array.length + 1];
+		System.arraycopy(array, 0, result, 0, index);
+		result[index] = value;
+		System.arraycopy(array, index, result, index + 1, array.length - index);
+		return result;
+	}
+
+	private static int[][] insert(int[][] array, int index, int[] value) {
+		int[][] result = new int[array.length + 1][];
+		System.arraycopy(array, 0, result, 0, index);
+		result[index] = value;
+		System.arraycopy(array, index, result, index + 1, array.length - index);
+		return result;
+	}
+
+	private static int[] remove(int[] array, int index) {
+		int[] result = new int[array.length - 1];
+		System.arraycopy(array, 0, result, 0, index);
+		System.arraycopy(array, index + 1, result, index, result.length - index);
+		return result;
+	}
+}
@@ -0,0 +1,155 @@
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends a stream of probe messages from one end user to others, paced by a
+ * pattern: constant (evenly spaced), poisson (exponentially distributed gaps)
+ * or burst (groups of messages back to back, the groups evenly spaced). The
+ * messages are shared out between the destinations in turn, and each
+ * destination gets its own stream.
+ *
+ * A probe is a NODE_MESSAGE with the probe flag set in its traffic class byte.
+ * Content layout; bytes 0-3 = sequence number within the stream, bytes 4-7 =
+ * number of messages in the stream, bytes 8-15 = System.nanoTime when sent.
+ *
+ * A generator is described by a line such as "poisson 200 1000 10 12": the
+ * pattern, the rate in messages a second, the number of messages and the ids
+ * of the destinations. A burst pattern may name its size, as in "burst:20";
+ * the default is 10.
+ */
+public class TrafficGenerator {
+	/** Set in the traffic class byte of a probe. */
+	static final int PROBE_FLAG = 0x40;
+	static final int PAYLOAD_LENGTH = 16;
+
+	static final String CONSTANT = "constant";
+	static final String POISSON = "poisson";
+	static final String BURST = "burst";
+
+	/** Sends one message to the router. */
+	interface Sender {
+		void send(byte[] message);
+	}
+
+	final String pattern;
+	final double rate;
+	final int count;
+	final int burst;
+	final int[] destinations;
+
+	TrafficGenerator(String pattern, double rate, int count, int burst, int[] destinations) {
+		if (!pattern.equals(CONSTANT) && !pattern.equals(POISSON) && !pattern.equals(BURST)) {
+			throw new IllegalArgumentException("Unknown pattern: " + pattern);
+		}
+		if (rate <= 0 || count <= 0 || burst <= 0 || destinations.length == 0) {
+			throw new IllegalArgumentException("A generator needs a rate, a count and a destination");
+		}
+		this.pattern = pattern;
+		this.rate = rate;
+		this.count = count;
+		this.burst = burst;
+		this.destinations = destinations;
+	}
+
+	/*
+	 * Read a generator from its description.
+	 */
+	static TrafficGenerator parse(String line) {
+		String[] fields = line.trim().toLowerCase().split("\\s+");
+		if (fields.length < 4) {
+			throw new IllegalArgumentException("Expected: pattern rate count destination...");
+		}
+		String[] pattern = fields[0].split(":");
+		int burst = pattern.length > 1 ? Integer.parseInt(pattern[1]) : 10;
+		int[] destinations = new int[fields.length - 3];
+		for (int i = 3; i < fields.length; i++) {
+			destinations[i - 3] = Integer.parseInt(fields[i]);
+		}
+		return new TrafficGenerator(pattern[0], Double.parseDouble(fields[1]), Integer.parseInt(fields[2]), burst,
+				destinations);
+	}
+
+	/*
+	 * Send every message of the streams from src, sleeping between them as the
+	 * pattern says. Gaps are measured from when each message was due rather than
+	 * when it went, so a late message does not slow the rest. Blocks until the
+	 * last message is sent.
+	 */
+	void run(int src, int trafficClass, boolean telemetry, Sender sender) throws InterruptedException {
+		Random random = new Random();
+		int[] sequence = new int[destinations.length];
+		long due = System.nanoTime();
+		for (int i = 0; i < count; i++) {
+			long wait = due - System.nanoTime();
+			if (wait > 0) {
+				LockSupport.parkNanos(wait);
+			}
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+			int d = i % destinations.length;
+			byte[] message = probe(src, destinations[d], sequence[d]++, streamLength(d), trafficClass);
+			if (telemetry) {
+				Telemetry.start(message);
+			}
+			sender.send(message);
+			due += gap(i, random);
+		}
+	}
+
+	/*
+	 * Return the number of messages sent to the destination at an index.
+	 */
+	private int streamLength(int index) {
+		return count / destinations.length + (index < count % destinations.length ? 1 : 0);
+	}
+
+	/*
+	 * Return the nanoseconds from message i being due to the next one.
+	 */
+	private long gap(int i, Random random) {
+		double seconds;
+		switch (pattern) {
+		case POISSON:
+			seconds = -Math.log(1 - random.nextDouble()) / rate;
+			break;
+		case BURST:
+			seconds = (i + 1) % burst == 0 ? burst / rate : 0;
+			break;
+		default:
+			seconds = 1 / rate;
+		}
+		return (long) (seconds * TimeUnit.SECONDS.toNanos(1));
+	}
+
+	/*
+	 * Return a probe message, stamped with the time now.
+	 */
+	static byte[] probe(int src, int dst, int sequence, int count, int trafficClass) {
+		byte[] data = new byte[Node.PACKETSIZE];
+		data[0] = Node.NODE_MESSAGE;
+		data[1] = PAYLOAD_LENGTH;
+		Node.setInt(data, 2, src);
+		Node.setInt(data, 2 + Node.ID_LENGTH, dst);
+		data[Node.TRAFFIC_CLASS_OFFSET] = (byte) (trafficClass | PROBE_FLAG);
+		int offset = Node.MESSAGE_HEADER_LENGTH;
+		Node.setInt(data, offset, sequence);
+		Node.setInt(data, offset + 4, count);
+		long now = System.nanoTime();
+		Node.setInt(data, offset + 8, (int) (now >>> 32));
+		Node.setInt(data, offset + 12, (int) now);
+		return data;
+	}
+
+	static boolean isProbe(byte[] message, int length) {
+		return length >= Node.MESSAGE_HEADER_LENGTH + PAYLOAD_LENGTH
+				&& (message[Node.TRAFFIC_CLASS_OFFSET] & PROBE_FLAG) != 0;
+	}
+
+	@Override
+	public String toString() {
+		return (pattern.equals(BURST) ? BURST + ":" + burst : pattern) + " at " + rate + " messages/s, " + count
+				+ " message(s)";
+	}
+}
@@ -0,0 +1,137 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The receiving side of TrafficGenerator streams: per source end user, counts
+ * the probes that arrive and reports goodput, loss, reordering and latency
+ * percentiles. A stream is reported once every message has arrived, or once
+ * it has been idle for a while with some still missing, and a new stream from
+ * the same source starts when sequence number 0 arrives after a report.
+ *
+ * Latency is the receiver's System.nanoTime less the sender's stamp, so it
+ * only means something between end users that share a clock, as they do on
+ * one host.
+ */
+public class TrafficStats {
+	private final Map<Integer, Stream> streams = new HashMap<Integer, Stream>();
+
+	/*
+	 * Count a probe from a source. Returns the stream's report if this probe
+	 * completed it, or null.
+	 */
+	synchronized String receive(byte[] message) {
+		long now = System.nanoTime();
+		int offset = Node.MESSAGE_HEADER_LENGTH;
+		int src = Node.getInt(message, 2);
+		int sequence = Node.getInt(message, offset);
+		int count = Node.getInt(message, offset + 4);
+		long sent = ((long) Node.getInt(message, offset + 8) << 32) | (Node.getInt(message, offset + 12) & 0xFFFFFFFFL);
+		Stream stream = streams.get(src);
+		if (stream == null || stream.reported && sequence == 0) {
+			stream = new Stream(count, now);
+			streams.put(src, stream);
+		}
+		stream.add(sequence, now, now - sent);
+		if (!stream.reported && stream.distinct == stream.count) {
+			stream.reported = true;
+			return report(src, stream);
+		}
+		return null;
+	}
+
+	/*
+	 * Return the reports of the streams not yet reported that have had nothing
+	 * for idleNanos, and mark them reported.
+	 */
+	synchronized List<String> idleReports(long idleNanos) {
+		long now = System.nanoTime();
+		List<String> reports = new ArrayList<String>();
+		for (Map.Entry<Integer, Stream> entry : streams.entrySet()) {
+			Stream stream = entry.getValue();
+			if (!stream.reported && now - stream.last >= idleNanos) {
+				stream.reported = true;
+				reports.add(report(entry.getKey(), stream));
+			}
+		}
+		return reports;
+	}
+
+	/*
+	 * Return the reports of every stream so far, finished or not.
+	 */
+	synchronized List<String> reports() {
+		List<String> reports = new ArrayList<String>();
+		for (Map.Entry<Integer, Stream> entry : streams.entrySet()) {
+			reports.add(report(entry.getKey(), entry.getValue()));
+		}
+		return reports;
+	}
+
+	private static String report(int src, Stream stream) {
+		double seconds = (stream.last - stream.first) / 1e9;
+		long lost = Math.max(0, stream.count - stream.distinct);
+		long[] sorted = Arrays.copyOf(stream.latencies, stream.distinct);
+		Arrays.sort(sorted);
+		return String.format("From end user %d: %d of %d received (%d lost, %.1f%%), %d reordered, %d duplicate(s); "
+				+ "goodput %s; latency p50 %s, p90 %s, p99 %s, max %s.", src, stream.distinct, stream.count, lost,
+				stream.count > 0 ? 100.0 * lost / stream.count : 0, stream.reordered, stream.duplicates,
+				seconds > 0 ? String.format("%.1f messages/s, %.0f B/s", (stream.distinct - 1) / seconds,
+						(stream.distinct - 1) * TrafficGenerator.PAYLOAD_LENGTH / seconds) : "n/a",
+				micros(percentile(sorted, 50)), micros(percentile(sorted, 90)), micros(percentile(sorted, 99)),
+				micros(sorted.length > 0 ? sorted[sorted.length - 1] : -1));
+	}
+
+	private static long percentile(long[] sorted, int percent) {
+		if (sorted.length == 0) {
+			return -1;
+		}
+		return sorted[Math.min(sorted.length - 1, (int) Math.ceil(percent / 100.0 * sorted.length) - 1)];
+	}
+
+	private static String micros(long nanos) {
+		return nanos < 0 ? "n/a" : String.format("%.1f us", nanos / 1e3);
+	}
+
+	/**
+	 * What has arrived of one stream. Latencies are kept for the distinct
+	 * messages only, so a duplicate cannot skew the percentiles.
+	 */
+	private static class Stream {
+		final int count;
+		final BitSet seen = new BitSet();
+		long[] latencies = new long[16];
+		int distinct;
+		long duplicates;
+		long reordered;
+		int highest = -1;
+		final long first;
+		long last;
+		boolean reported;
+
+		Stream(int count, long now) {
+			this.count = count;
+			first = now;
+		}
+
+		void add(int sequence, long now, long latency) {
+			last = now;
+			if (sequence < 0 || seen.get(sequence)) {
+				duplicates++;
+				return;
+			}
+			seen.set(sequence);
+			if (sequence < highest) {
+				reordered++;
+			}
+			highest = Math.max(highest, sequence);
+			if (distinct == latencies.length) {
+				latencies = Arrays.copyOf(latencies, distinct * 2);
+			}
+			latencies[distinct++] = latency;
+		}
+	}
+}
@@ -0,0 +1,31 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Carries datagrams from one node to others, named by node id. A node opens
+ * one transport and is handed every datagram sent to it through its receiver.
+ * UdpTransport gives each node its own socket; MemoryTransport connects nodes
+ * running in the same JVM without sockets.
+ */
+public interface Transport {
+
+	/*
+	 * Send the remaining bytes of a buffer to a node. The buffer may be reused
+	 * once this returns. Returns false if the datagram was dropped.
+	 */
+	boolean send(int to, ByteBuffer data);
+
+	void close();
+
+	interface Receiver {
+		/*
+		 * Handle a datagram from a node. The buffer starts at position 0, is
+		 * backed by an array, and is only valid until this returns.
+		 */
+		void receive(int from, ByteBuffer data);
+	}
+
+	interface Factory {
+		Transport open(int id, Receiver receiver) throws IOException;
+	}
+}
@@ -0,0 +1,88 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+/**
+ * Transport over a non-blocking UDP channel bound to the node's port in the
+ * address book. A receiving thread waits on a Selector and, each time the
+ * channel is readable, receives every datagram waiting into one reused buffer
+ * and hands each to the receiver before taking the next. Datagrams from
+ * addresses that are not in the book are ignored.
+ */
+public class UdpTransport implements Transport {
+	private final DatagramChannel channel;
+	private final AddressBook addresses;
+
+	UdpTransport(AddressBook addresses, int id, Receiver receiver) throws IOException {
+		if (addresses.address(id) == null) {
+			throw new IOException("Node " + id + " has no address");
+		}
+		this.addresses = addresses;
+		channel = DatagramChannel.open();
+		channel.setOption(StandardSocketOptions.SO_RCVBUF, 1 << 20);
+		channel.bind(new InetSocketAddress(addresses.address(id).getPort()));
+		channel.configureBlocking(false);
+		Thread thread = new Thread(() -> run(receiver), "Node " + id + " receiver");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void run(Receiver receiver) {
+		ByteBuffer buffer = ByteBuffer.allocate(Node.MAX_PACKETSIZE);
+		try (Selector selector = Selector.open()) {
+			channel.register(selector, SelectionKey.OP_READ);
+			while (channel.isOpen()) {
+				selector.select();
+				selector.selectedKeys().clear();
+				InetSocketAddress from;
+				while ((from = (InetSocketAddress) channel.receive(buffer)) != null) {
+					buffer.flip();
+					int node = addresses.id(from);
+					try {
+						if (node >= 0) {
+							receiver.receive(node, buffer);
+						}
+					} catch (RuntimeException e) {
+						e.printStackTrace();
+					}
+					buffer.clear();
+				}
+			}
+		} catch (IOException e) {
+			if (channel.isOpen()) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/*
+	 * Send without blocking. A datagram that does not fit in the send buffer, or
+	 * is for a node with no address, is dropped.
+	 */
+	@Override
+	public boolean send(int to, ByteBuffer data) {
+		InetSocketAddress address = addresses.address(to);
+		if (address == null) {
+			return false;
+		}
+		try {
+			return channel.send(data, address) != 0;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	@Override
+	public void close() {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}